@@ -50,6 +50,8 @@ public class MainActivity extends Activity {
         // Pause playback when app goes to background
         if (winampView != null && winampView.getPlaybackController() != null) {
             winampView.getPlaybackController().pause();
+            // The process may be killed from here on; save without waiting
+            winampView.getPlaybackController().getSessionManager().flush();
         }
     }
 
@@ -3,6 +3,9 @@ package com.rockbox.winamp.audio;
 import android.content.Context;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.IOException;
@@ -12,10 +15,27 @@ import java.util.List;
 /**
  * Audio playback engine wrapping Android MediaPlayer.
  * Handles audio decoding, playback, and audio focus.
+ *
+ * In gapless mode a second MediaPlayer is prepared for the upcoming track
+ * and chained with setNextMediaPlayer(), so the switch between tracks
+ * costs no decoder setup time.
+ *
+ * In crossfade mode the prepared player is started early instead and the
+ * two players' volumes are ramped by the AudioTimer thread. Fade progress
+ * follows the incoming track's position, so it survives seekTo() and
+ * pause/resume.
+ *
+ * Volume changes are ramped on the same timer thread; repeated changes
+ * while a ramp is running retarget it rather than stacking new jumps.
+ *
+ * Each player's volume is the user volume times its track's ReplayGain,
+ * looked up from memory when the player is loaded or prepared.
  */
-public class AudioEngine implements MediaPlayer.OnCompletionListener,
+public class AudioEngine implements PlaybackEngine,
+                                     MediaPlayer.OnCompletionListener,
                                      MediaPlayer.OnErrorListener,
-                                     MediaPlayer.OnPreparedListener {
+                                     MediaPlayer.OnPreparedListener,
+                                     AudioTimer.Task {
 
     private static final String TAG = "AudioEngine";
 
@@ -31,10 +51,45 @@ public class AudioEngine implements MediaPlayer.OnCompletionListener,
     private Context context;
     private MediaPlayer mediaPlayer;
     private Track currentTrack;
-    private int state;
+    private volatile int state;
     private float volume;
     private Equalizer equalizer;
 
+    // Audio session shared by every player this engine creates, so the
+    // effects attached to it survive player re-creation
+    private int audioSessionId;
+    private boolean reuseAudioSession;
+    private EqualizerState savedEqualizerState;
+
+    // Where the track being prepared should start
+    private int startPositionMs;
+
+    // Volume smoothing (applied by the timer thread)
+    public static final int DEFAULT_VOLUME_RAMP_MS = 60;
+    private ParameterRamp volumeRamp;
+    private float appliedVolume;
+
+    // ReplayGain (linear) for the current, next and outgoing players
+    private ReplayGain replayGain;
+    private float currentGain = 1.0f;
+    private float nextGain = 1.0f;
+    private float fadingGain = 1.0f;
+
+    // Gapless playback: pre-prepared player for the upcoming track
+    private boolean gaplessEnabled;
+    private MediaPlayer nextPlayer;
+    private Track nextTrack;
+    private boolean nextPrepared;
+    private boolean nextChained;
+
+    // Crossfade: outgoing player while a fade is running
+    private Crossfader crossfader;
+    private AudioTimer audioTimer;
+    private MediaPlayer fadingPlayer;
+    private boolean fadeStartPosted;
+    private final Object playerLock = new Object();
+    private Handler handler;
+
     // Listeners
     private List<AudioEngineListener> listeners;
 
@@ -43,6 +98,7 @@ public class AudioEngine implements MediaPlayer.OnCompletionListener,
         void onPlaybackPaused();
         void onPlaybackStopped();
         void onPlaybackCompleted(Track track);
+        void onTrackAdvanced(Track previous, Track current);
         void onPlaybackError(String error);
         void onProgressUpdate(int currentMs, int durationMs);
     }
@@ -51,6 +107,13 @@ public class AudioEngine implements MediaPlayer.OnCompletionListener,
         this.context = context.getApplicationContext();
         this.state = STATE_IDLE;
         this.volume = 1.0f;
+        this.volumeRamp = new ParameterRamp(volume, DEFAULT_VOLUME_RAMP_MS);
+        this.appliedVolume = volume;
+        this.gaplessEnabled = true;
+        this.reuseAudioSession = true;
+        this.crossfader = new Crossfader();
+        this.audioTimer = new AudioTimer();
+        this.handler = new Handler(Looper.getMainLooper());
         this.listeners = new ArrayList<AudioEngineListener>();
         initMediaPlayer();
     }
@@ -60,50 +123,110 @@ public class AudioEngine implements MediaPlayer.OnCompletionListener,
      */
     private void initMediaPlayer() {
         if (mediaPlayer != null) {
-            release();
+            releasePlayers();
         }
 
-        mediaPlayer = new MediaPlayer();
-        mediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-        mediaPlayer.setOnCompletionListener(this);
-        mediaPlayer.setOnErrorListener(this);
-        mediaPlayer.setOnPreparedListener(this);
-        mediaPlayer.setVolume(volume, volume);
+        MediaPlayer player = createPlayer();
+        synchronized (playerLock) {
+            mediaPlayer = player;
+        }
 
-        // Initialize equalizer with audio session
-        int audioSessionId = mediaPlayer.getAudioSessionId();
-        if (equalizer != null) {
-            equalizer.release();
+        if (reuseAudioSession && audioSessionId != 0) {
+            try {
+                mediaPlayer.setAudioSessionId(audioSessionId);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Could not reuse audio session " + audioSessionId, e);
+            }
         }
-        equalizer = new Equalizer(audioSessionId);
+
+        // Effects are bound to the session; only rebuild them when it changes
+        int sessionId = mediaPlayer.getAudioSessionId();
+        if (equalizer == null || sessionId != audioSessionId) {
+            if (equalizer != null) {
+                savedEqualizerState = equalizer.getState();
+                equalizer.release();
+            }
+            equalizer = new Equalizer(sessionId);
+            equalizer.setTimer(audioTimer);
+            equalizer.applyState(savedEqualizerState);
+        }
+        audioSessionId = sessionId;
+
+        audioTimer.schedule(this);
 
         Log.d(TAG, "MediaPlayer initialized (session: " + audioSessionId + ")");
     }
 
+    /**
+     * Create a MediaPlayer wired to this engine's callbacks
+     */
+    private MediaPlayer createPlayer() {
+        MediaPlayer player = new MediaPlayer();
+        player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+        player.setOnCompletionListener(this);
+        player.setOnErrorListener(this);
+        player.setOnPreparedListener(this);
+        float v = volumeRamp.valueAt(SystemClock.uptimeMillis());
+        player.setVolume(v, v);
+        return player;
+    }
+
     /**
      * Load and prepare a track for playback
      */
     public void loadTrack(Track track) {
+        loadTrack(track, 0);
+    }
+
+    /**
+     * Load a track and start it at a position (e.g. resuming a session)
+     */
+    public void loadTrack(Track track, int startMs) {
         if (track == null) {
             Log.e(TAG, "Cannot load null track");
             return;
         }
 
-        try {
-            // Stop current playback
+        // Upcoming track already prepared: switch players instead of decoding again
+        if (nextPrepared && track.equals(nextTrack)) {
             stop();
+            promoteNextPlayer();
+            startPositionMs = startMs;
+            Log.d(TAG, "Loaded pre-prepared track: " + track.getDisplayString());
+            onPrepared(mediaPlayer);
+            return;
+        }
 
-            // Reset player
-            mediaPlayer.reset();
-            state = STATE_IDLE;
+        // Still preparing for this track: start over on the current player
+        if (track.equals(nextTrack)) {
+            clearNext();
+        }
 
-            // Set data source
-            mediaPlayer.setDataSource(track.getFilePath());
+        try {
+            // Stop current playback
+            stop();
 
-            // Prepare asynchronously
-            state = STATE_PREPARING;
-            currentTrack = track;
-            mediaPlayer.prepareAsync();
+            // The timer thread must not touch the player while it is reset
+            synchronized (playerLock) {
+                // Reset player (drops any chained next player)
+                mediaPlayer.reset();
+                nextChained = false;
+                state = STATE_IDLE;
+
+                // Set data source
+                mediaPlayer.setDataSource(track.getFilePath());
+
+                currentGain = gainFor(track);
+                float v = volumeRamp.valueAt(SystemClock.uptimeMillis()) * currentGain;
+                mediaPlayer.setVolume(v, v);
+                appliedVolume = v;
+
+                // Prepare asynchronously
+                state = STATE_PREPARING;
+                currentTrack = track;
+                startPositionMs = startMs;
+                mediaPlayer.prepareAsync();
+            }
 
             Log.d(TAG, "Loading track: " + track.getDisplayString());
 
@@ -126,7 +249,11 @@ public class AudioEngine implements MediaPlayer.OnCompletionListener,
         if (state == STATE_PREPARED || state == STATE_PAUSED) {
             try {
                 mediaPlayer.start();
+                if (fadingPlayer != null) {
+                    fadingPlayer.start();
+                }
                 state = STATE_PLAYING;
+                audioTimer.wake();
                 notifyPlaybackStarted();
                 Log.d(TAG, "Playback started");
             } catch (IllegalStateException e) {
@@ -145,6 +272,9 @@ public class AudioEngine implements MediaPlayer.OnCompletionListener,
         if (state == STATE_PLAYING) {
             try {
                 mediaPlayer.pause();
+                if (fadingPlayer != null) {
+                    fadingPlayer.pause();
+                }
                 state = STATE_PAUSED;
                 notifyPlaybackPaused();
                 Log.d(TAG, "Playback paused");
@@ -158,6 +288,7 @@ public class AudioEngine implements MediaPlayer.OnCompletionListener,
      * Stop playback
      */
     public void stop() {
+        finishCrossfade();
         if (state == STATE_PLAYING || state == STATE_PAUSED || state == STATE_PREPARED) {
             try {
                 mediaPlayer.stop();
@@ -177,6 +308,9 @@ public class AudioEngine implements MediaPlayer.OnCompletionListener,
         if (state == STATE_PREPARED || state == STATE_PLAYING || state == STATE_PAUSED) {
             try {
                 mediaPlayer.seekTo(positionMs);
+                // Re-arm the fade check for the new position
+                fadeStartPosted = false;
+                audioTimer.wake();
                 Log.d(TAG, "Seeked to " + positionMs + "ms");
             } catch (IllegalStateException e) {
                 Log.e(TAG, "Error seeking", e);
@@ -217,17 +351,20 @@ public class AudioEngine implements MediaPlayer.OnCompletionListener,
      */
     public void setVolume(float volume) {
         this.volume = Math.max(0.0f, Math.min(1.0f, volume));
-        if (mediaPlayer != null) {
-            try {
-                mediaPlayer.setVolume(this.volume, this.volume);
-            } catch (IllegalStateException e) {
-                Log.e(TAG, "Error setting volume", e);
-            }
-        }
+        // Ramped by the timer thread
+        volumeRamp.setTarget(this.volume, SystemClock.uptimeMillis());
+        audioTimer.wake();
     }
 
     /**
-     * Get current volume (0.0 - 1.0)
+     * Set ramp time for volume changes (0 = immediate)
+     */
+    public void setVolumeRampMs(int rampMs) {
+        volumeRamp.setDurationMs(rampMs);
+    }
+
+    /**
+     * Get current volume target (0.0 - 1.0)
      */
     public float getVolume() {
         return volume;
@@ -261,6 +398,375 @@ public class AudioEngine implements MediaPlayer.OnCompletionListener,
         return currentTrack;
     }
 
+    /**
+     * Enable or disable gapless playback
+     */
+    public void setGaplessEnabled(boolean enabled) {
+        this.gaplessEnabled = enabled;
+        if (!enabled) {
+            clearNext();
+        }
+        Log.d(TAG, "Gapless " + (enabled ? "enabled" : "disabled"));
+    }
+
+    /**
+     * Check if gapless playback is enabled
+     */
+    public boolean isGaplessEnabled() {
+        return gaplessEnabled;
+    }
+
+    /**
+     * Prepare the track that should follow the current one.
+     * Passing a different track (or null) invalidates the previously
+     * prepared player, e.g. after shuffle, repeat or playlist edits.
+     */
+    public void prepareNext(Track track) {
+        if (!(gaplessEnabled || crossfader.isEnabled()) || track == null || mediaPlayer == null) {
+            clearNext();
+            return;
+        }
+
+        if (nextPlayer != null && track.equals(nextTrack)) {
+            // Already prepared (or preparing) for this track
+            return;
+        }
+
+        clearNext();
+
+        try {
+            nextPlayer = createPlayer();
+            // Share the session so audio effects carry over to the next track
+            nextPlayer.setAudioSessionId(mediaPlayer.getAudioSessionId());
+            nextGain = gainFor(track);
+            float v = volumeRamp.valueAt(SystemClock.uptimeMillis()) * nextGain;
+            nextPlayer.setVolume(v, v);
+            nextPlayer.setDataSource(track.getFilePath());
+            nextTrack = track;
+            nextPlayer.prepareAsync();
+
+            Log.d(TAG, "Preparing next track: " + track.getDisplayString());
+
+        } catch (IOException e) {
+            Log.e(TAG, "Error preparing next track", e);
+            clearNext();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Illegal state when preparing next track", e);
+            clearNext();
+        }
+    }
+
+    /**
+     * Get the track prepared to follow the current one
+     */
+    public Track getNextTrack() {
+        return nextTrack;
+    }
+
+    /**
+     * Chain the prepared next player behind the current one
+     */
+    private void chainNext() {
+        if (!nextPrepared || nextChained || mediaPlayer == null) return;
+        if (crossfader.isEnabled()) {
+            // Crossfade starts the next player itself
+            audioTimer.wake();
+            return;
+        }
+        if (state != STATE_PREPARED && state != STATE_PLAYING && state != STATE_PAUSED) return;
+
+        try {
+            mediaPlayer.setNextMediaPlayer(nextPlayer);
+            nextChained = true;
+            Log.d(TAG, "Next track chained: " + nextTrack.getDisplayString());
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Error chaining next player", e);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Next player rejected", e);
+            clearNext();
+        }
+    }
+
+    /**
+     * Release the pre-prepared next player, if any
+     */
+    private void clearNext() {
+        if (nextPlayer == null) return;
+
+        synchronized (playerLock) {
+            clearNextLocked();
+        }
+    }
+
+    private void clearNextLocked() {
+        if (nextPlayer == null) return;
+
+        if (nextChained && mediaPlayer != null) {
+            try {
+                mediaPlayer.setNextMediaPlayer(null);
+            } catch (IllegalStateException e) {
+                // Current player already gone
+            }
+        }
+
+        try {
+            nextPlayer.release();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Error releasing next player", e);
+        }
+
+        nextPlayer = null;
+        nextTrack = null;
+        nextPrepared = false;
+        nextChained = false;
+    }
+
+    /**
+     * Make the prepared next player the current one
+     */
+    private void promoteNextPlayer() {
+        MediaPlayer finished;
+        synchronized (playerLock) {
+            finished = mediaPlayer;
+            mediaPlayer = nextPlayer;
+            currentTrack = nextTrack;
+            currentGain = nextGain;
+
+            nextPlayer = null;
+            nextTrack = null;
+            nextPrepared = false;
+            nextChained = false;
+        }
+
+        if (finished != null) {
+            try {
+                finished.release();
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Error releasing finished player", e);
+            }
+        }
+    }
+
+    /**
+     * Configure crossfade (fadeMs of 0 disables it)
+     */
+    public void setCrossfade(int fadeMs, int curve) {
+        crossfader.setFadeMs(fadeMs);
+        crossfader.setCurve(curve);
+
+        if (crossfader.isEnabled()) {
+            // Crossfade drives the next player itself; undo any chaining
+            if (nextChained && mediaPlayer != null) {
+                try {
+                    mediaPlayer.setNextMediaPlayer(null);
+                } catch (IllegalStateException e) {
+                    // Ignore
+                }
+                nextChained = false;
+            }
+            audioTimer.schedule(this);
+        } else {
+            finishCrossfade();
+            chainNext();
+        }
+
+        Log.d(TAG, "Crossfade: " + crossfader.getFadeMs() + "ms, "
+                + Crossfader.getCurveName(crossfader.getCurve()));
+    }
+
+    /**
+     * Get crossfade settings
+     */
+    public Crossfader getCrossfader() {
+        return crossfader;
+    }
+
+    /**
+     * Check if a crossfade is in progress
+     */
+    public boolean isCrossfading() {
+        return fadingPlayer != null;
+    }
+
+    // AudioTimer.Task - runs on the timer thread
+    @Override
+    public long tick() {
+        long now = SystemClock.uptimeMillis();
+        float vol = volumeRamp.valueAt(now);
+        boolean ramping = volumeRamp.isActive(now);
+
+        synchronized (playerLock) {
+            // No volume or position calls until the player is prepared;
+            // play() wakes the timer again
+            if (mediaPlayer == null || state == STATE_IDLE || state == STATE_PREPARING
+                    || state == STATE_ERROR) {
+                return AudioTimer.IDLE;
+            }
+
+            try {
+                if (fadingPlayer != null) {
+                    if (state != STATE_PLAYING) return AudioTimer.IDLE;
+
+                    float progress = crossfader.getProgress(mediaPlayer.getCurrentPosition());
+                    float in = vol * currentGain * crossfader.fadeInGain(progress);
+                    float out = vol * fadingGain * crossfader.fadeOutGain(progress);
+                    mediaPlayer.setVolume(in, in);
+                    fadingPlayer.setVolume(out, out);
+                    appliedVolume = -1.0f;
+
+                    if (progress >= 1.0f) {
+                        handler.post(finishCrossfadeRunnable);
+                        return AudioTimer.IDLE;
+                    }
+                    return AudioTimer.MIN_TICK_MS;
+                }
+
+                float current = vol * currentGain;
+                if (current != appliedVolume) {
+                    mediaPlayer.setVolume(current, current);
+                    if (nextPlayer != null) {
+                        float next = vol * nextGain;
+                        nextPlayer.setVolume(next, next);
+                    }
+                    appliedVolume = current;
+                }
+                long delay = ramping ? AudioTimer.MIN_TICK_MS : AudioTimer.IDLE;
+
+                if (!crossfader.isEnabled() || state != STATE_PLAYING
+                        || !nextPrepared || fadeStartPosted) {
+                    return delay;
+                }
+
+                int remaining = mediaPlayer.getDuration() - mediaPlayer.getCurrentPosition();
+                int untilFade = remaining - crossfader.getFadeMs();
+                if (untilFade <= 0) {
+                    fadeStartPosted = true;
+                    handler.post(startCrossfadeRunnable);
+                    return AudioTimer.MIN_TICK_MS;
+                }
+                return ramping ? AudioTimer.MIN_TICK_MS : Math.min(250, untilFade);
+
+            } catch (IllegalStateException e) {
+                // Player changed state under us; try again shortly
+                return AudioTimer.MIN_TICK_MS;
+            }
+        }
+    }
+
+    private final Runnable startCrossfadeRunnable = new Runnable() {
+        public void run() {
+            startCrossfade();
+        }
+    };
+
+    private final Runnable finishCrossfadeRunnable = new Runnable() {
+        public void run() {
+            finishCrossfade();
+        }
+    };
+
+    /**
+     * Start the prepared next player silently and hand it the current role.
+     * The outgoing player keeps playing until the fade completes.
+     */
+    private void startCrossfade() {
+        Track previous;
+        synchronized (playerLock) {
+            fadeStartPosted = false;
+            if (fadingPlayer != null || !nextPrepared || state != STATE_PLAYING) {
+                return;
+            }
+
+            previous = currentTrack;
+            fadingPlayer = mediaPlayer;
+            fadingGain = currentGain;
+            mediaPlayer = nextPlayer;
+            currentTrack = nextTrack;
+            currentGain = nextGain;
+
+            nextPlayer = null;
+            nextTrack = null;
+            nextPrepared = false;
+            nextChained = false;
+
+            try {
+                mediaPlayer.setVolume(0.0f, 0.0f);
+                mediaPlayer.start();
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Error starting crossfade", e);
+            }
+        }
+
+        if (currentTrack != null) {
+            currentTrack.setDurationMs(getDuration());
+        }
+        audioTimer.wake();
+
+        Log.d(TAG, "Crossfading to: " + currentTrack.getDisplayString());
+        notifyTrackAdvanced(previous);
+    }
+
+    /**
+     * Release the outgoing player and restore full volume
+     */
+    private void finishCrossfade() {
+        MediaPlayer finished;
+        synchronized (playerLock) {
+            finished = fadingPlayer;
+            fadingPlayer = null;
+            if (finished == null) return;
+
+            if (mediaPlayer != null) {
+                try {
+                    float v = volumeRamp.valueAt(SystemClock.uptimeMillis()) * currentGain;
+                    mediaPlayer.setVolume(v, v);
+                    appliedVolume = v;
+                } catch (IllegalStateException e) {
+                    // Ignore
+                }
+            }
+        }
+
+        try {
+            finished.release();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Error releasing faded player", e);
+        }
+        Log.d(TAG, "Crossfade finished");
+    }
+
+    /**
+     * Use ReplayGain for per-track volume (null = off)
+     */
+    public void setReplayGain(ReplayGain replayGain) {
+        this.replayGain = replayGain;
+        refreshReplayGain();
+    }
+
+    /**
+     * Re-read gains for the loaded tracks, e.g. after a gain was resolved
+     * or the ReplayGain mode changed
+     */
+    public void refreshReplayGain() {
+        synchronized (playerLock) {
+            currentGain = gainFor(currentTrack);
+            nextGain = gainFor(nextTrack);
+            appliedVolume = -1.0f;
+        }
+        audioTimer.wake();
+    }
+
+    private float gainFor(Track track) {
+        return replayGain != null ? replayGain.getGain(track) : 1.0f;
+    }
+
+    /**
+     * Get audio session id shared by this engine's players
+     */
+    public int getAudioSessionId() {
+        return audioSessionId;
+    }
+
     /**
      * Get equalizer
      */
@@ -268,34 +774,101 @@ public class AudioEngine implements MediaPlayer.OnCompletionListener,
         return equalizer;
     }
 
+    /**
+     * Get a snapshot of the equalizer settings (also while released)
+     */
+    public EqualizerState getEqualizerState() {
+        if (equalizer != null) {
+            return equalizer.getState();
+        }
+        return savedEqualizerState != null ? new EqualizerState(savedEqualizerState) : new EqualizerState();
+    }
+
+    /**
+     * Apply saved equalizer settings now, and to any later session
+     */
+    public void setEqualizerState(EqualizerState state) {
+        savedEqualizerState = new EqualizerState(state);
+        if (equalizer != null) {
+            equalizer.applyState(state);
+        }
+    }
+
+    /**
+     * Keep one audio session across player re-creation (default on)
+     */
+    public void setReuseAudioSession(boolean reuse) {
+        this.reuseAudioSession = reuse;
+    }
+
+    public boolean isReuseAudioSession() {
+        return reuseAudioSession;
+    }
+
     /**
      * Release resources
      */
     public void release() {
+        audioTimer.shutdown();
+        releasePlayers();
+
         if (equalizer != null) {
+            savedEqualizerState = equalizer.getState();
             equalizer.release();
             equalizer = null;
         }
+        audioSessionId = 0;
+        Log.d(TAG, "AudioEngine released");
+    }
 
-        if (mediaPlayer != null) {
-            try {
-                if (state == STATE_PLAYING) {
-                    mediaPlayer.stop();
+    /**
+     * Release all players, keeping the session and its effects
+     */
+    private void releasePlayers() {
+        finishCrossfade();
+        clearNext();
+
+        synchronized (playerLock) {
+            if (mediaPlayer != null) {
+                try {
+                    if (state == STATE_PLAYING) {
+                        mediaPlayer.stop();
+                    }
+                    mediaPlayer.release();
+                } catch (IllegalStateException e) {
+                    Log.e(TAG, "Error releasing MediaPlayer", e);
                 }
-                mediaPlayer.release();
-            } catch (IllegalStateException e) {
-                Log.e(TAG, "Error releasing MediaPlayer", e);
+                mediaPlayer = null;
             }
-            mediaPlayer = null;
+            state = STATE_IDLE;
+            currentTrack = null;
         }
-        state = STATE_IDLE;
-        currentTrack = null;
-        Log.d(TAG, "AudioEngine released");
     }
 
     // MediaPlayer.OnCompletionListener
     @Override
     public void onCompletion(MediaPlayer mp) {
+        if (mp == fadingPlayer) {
+            // Outgoing track ran out before the fade did
+            finishCrossfade();
+            return;
+        }
+        if (mp != mediaPlayer) return;
+        finishCrossfade();
+
+        if (nextChained) {
+            // Framework already started the next player; just swap roles
+            Track previous = currentTrack;
+            promoteNextPlayer();
+            state = STATE_PLAYING;
+            if (currentTrack != null) {
+                currentTrack.setDurationMs(getDuration());
+            }
+            Log.d(TAG, "Gapless transition to: " + currentTrack.getDisplayString());
+            notifyTrackAdvanced(previous);
+            return;
+        }
+
         Log.d(TAG, "Playback completed");
         state = STATE_STOPPED;
         notifyPlaybackCompleted();
@@ -304,6 +877,13 @@ public class AudioEngine implements MediaPlayer.OnCompletionListener,
     // MediaPlayer.OnErrorListener
     @Override
     public boolean onError(MediaPlayer mp, int what, int extra) {
+        if (mp == nextPlayer) {
+            // Upcoming track failed; it will be retried by a normal load
+            Log.w(TAG, "Next player error: what=" + what + ", extra=" + extra);
+            clearNext();
+            return true;
+        }
+
         Log.e(TAG, "MediaPlayer error: what=" + what + ", extra=" + extra);
         state = STATE_ERROR;
         notifyPlaybackError("Playback error: " + what);
@@ -316,6 +896,12 @@ public class AudioEngine implements MediaPlayer.OnCompletionListener,
     // MediaPlayer.OnPreparedListener
     @Override
     public void onPrepared(MediaPlayer mp) {
+        if (mp == nextPlayer) {
+            nextPrepared = true;
+            chainNext();
+            return;
+        }
+
         Log.d(TAG, "Track prepared: " + currentTrack.getDisplayString());
         state = STATE_PREPARED;
 
@@ -325,8 +911,17 @@ public class AudioEngine implements MediaPlayer.OnCompletionListener,
             currentTrack.setDurationMs(duration);
         }
 
+        // Resume point, if any, before the first sample is heard
+        if (startPositionMs > 0 && startPositionMs < getDuration()) {
+            seekTo(startPositionMs);
+        }
+        startPositionMs = 0;
+
         // Auto-play after preparing
         play();
+
+        // Next track may have finished preparing first
+        chainNext();
     }
 
     /**
@@ -384,6 +979,12 @@ public class AudioEngine implements MediaPlayer.OnCompletionListener,
         }
     }
 
+    private void notifyTrackAdvanced(Track previous) {
+        for (AudioEngineListener listener : listeners) {
+            listener.onTrackAdvanced(previous, currentTrack);
+        }
+    }
+
     private void notifyPlaybackError(String error) {
         for (AudioEngineListener listener : listeners) {
             listener.onPlaybackError(error);
@@ -0,0 +1,146 @@
+package com.rockbox.winamp.audio;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Dedicated timer thread for audio parameter changes (fades, ramps).
+ * Runs independently of the UI RenderThread so volume changes stay
+ * smooth even when drawing stalls.
+ */
+public class AudioTimer implements Runnable {
+
+    private static final String TAG = "AudioTimer";
+
+    // Shortest interval between ticks (ms)
+    public static final int MIN_TICK_MS = 10;
+
+    // Returned by a task that has nothing to do until woken
+    public static final long IDLE = -1;
+
+    /**
+     * Periodic task run on the timer thread.
+     */
+    public interface Task {
+        /**
+         * @return delay in ms until the next tick, or IDLE
+         */
+        long tick();
+    }
+
+    private final List<Task> tasks;
+    private final Object lock;
+    private Thread thread;
+    private boolean running;
+    private boolean woken;
+
+    public AudioTimer() {
+        this.tasks = new ArrayList<Task>();
+        this.lock = new Object();
+    }
+
+    /**
+     * Register a task and start the thread if needed
+     */
+    public void schedule(Task task) {
+        synchronized (lock) {
+            if (!tasks.contains(task)) {
+                tasks.add(task);
+            }
+            if (thread == null) {
+                running = true;
+                thread = new Thread(this, TAG);
+                thread.start();
+            }
+            woken = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Unregister a task (the thread keeps running)
+     */
+    public void cancel(Task task) {
+        synchronized (lock) {
+            tasks.remove(task);
+        }
+    }
+
+    /**
+     * Wake the thread so idle tasks are ticked immediately
+     */
+    public void wake() {
+        synchronized (lock) {
+            woken = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Stop the timer thread
+     */
+    public void shutdown() {
+        Thread t;
+        synchronized (lock) {
+            running = false;
+            tasks.clear();
+            lock.notifyAll();
+            t = thread;
+            thread = null;
+        }
+        if (t != null && t != Thread.currentThread()) {
+            try {
+                t.join(500);
+            } catch (InterruptedException e) {
+                // Ignore
+            }
+        }
+        Log.d(TAG, "AudioTimer stopped");
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+        Task[] snapshot = new Task[0];
+
+        while (true) {
+            synchronized (lock) {
+                if (!running) return;
+                woken = false;
+                if (snapshot.length != tasks.size()) {
+                    snapshot = new Task[tasks.size()];
+                }
+                tasks.toArray(snapshot);
+            }
+
+            long delay = Long.MAX_VALUE;
+            for (Task task : snapshot) {
+                try {
+                    long next = task.tick();
+                    if (next != IDLE) {
+                        delay = Math.min(delay, Math.max(MIN_TICK_MS, next));
+                    }
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Timer task failed", e);
+                }
+            }
+
+            synchronized (lock) {
+                if (!running) return;
+                if (woken) continue;
+                try {
+                    if (delay == Long.MAX_VALUE) {
+                        lock.wait();
+                    } else {
+                        lock.wait(delay);
+                    }
+                } catch (InterruptedException e) {
+                    // Continue
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.rockbox.winamp.audio;
+
+/**
+ * Float kernel of the software 10-band equalizer: cascaded peaking
+ * biquads at all 10 Equalizer band frequencies, so presets are applied in
+ * full regardless of how many bands the device's AudioEffect exposes.
+ *
+ * Coefficients are recomputed only when a band level or the sample rate
+ * changes. Processing runs in place (transposed direct form II) and only
+ * touches preallocated state.
+ */
+public class BiquadEqualizer extends SoftwareEqualizer {
+
+    // Coefficients per band: b0, b1, b2, a1, a2 (normalized by a0)
+    private static final int COEFFS = 5;
+
+    private final float[] pendingCoeffs;
+    private final float[] targetCoeffs;
+    private final float[] coeffs;
+    private final float[] deltaCoeffs;
+    private final int[] activeBands;
+    private final double[] tmp;
+    private int activeCount;
+    private float pendingGain;
+    private float targetGain;
+    private float gain;
+    private float deltaGain;
+    private int rampSteps;
+
+    // Filter state: z1, z2 per band per channel
+    private float[] state;
+    // Scratch buffer for 16-bit processing, grown only on larger input
+    private float[] scratch;
+
+    public BiquadEqualizer() {
+        this.pendingCoeffs = new float[NUM_BANDS * COEFFS];
+        this.targetCoeffs = new float[NUM_BANDS * COEFFS];
+        this.coeffs = new float[NUM_BANDS * COEFFS];
+        this.deltaCoeffs = new float[NUM_BANDS * COEFFS];
+        this.activeBands = new int[NUM_BANDS];
+        this.tmp = new double[COEFFS];
+        this.scratch = new float[4096];
+        this.gain = 1.0f;
+        configure(44100, 2);
+    }
+
+    @Override
+    public int getKernel() {
+        return DspKernels.KERNEL_FLOAT;
+    }
+
+    @Override
+    protected void allocateState() {
+        state = new float[NUM_BANDS * channelCount * 2];
+    }
+
+    @Override
+    protected void computeCoefficients(int band) {
+        int base = band * COEFFS;
+
+        if (isBypassed(band)) {
+            pendingCoeffs[base] = 1.0f;
+            pendingCoeffs[base + 1] = 0.0f;
+            pendingCoeffs[base + 2] = 0.0f;
+            pendingCoeffs[base + 3] = 0.0f;
+            pendingCoeffs[base + 4] = 0.0f;
+            return;
+        }
+
+        peakingCoefficients(band, tmp);
+        for (int i = 0; i < COEFFS; i++) {
+            pendingCoeffs[base + i] = (float) tmp[i];
+        }
+    }
+
+    @Override
+    protected void computePreamp() {
+        pendingGain = (float) preampGain();
+    }
+
+    /**
+     * Pick up coefficients published by the control thread and start
+     * interpolating towards them
+     */
+    private void publishCoefficients() {
+        synchronized (lock) {
+            System.arraycopy(pendingCoeffs, 0, targetCoeffs, 0, targetCoeffs.length);
+            targetGain = pendingGain;
+            rampSteps = takeRampSteps();
+            dirty = false;
+        }
+
+        if (rampSteps == 0) {
+            finishRamp();
+            return;
+        }
+        for (int i = 0; i < coeffs.length; i++) {
+            deltaCoeffs[i] = (targetCoeffs[i] - coeffs[i]) / rampSteps;
+        }
+        deltaGain = (targetGain - gain) / rampSteps;
+        // Filter every band that is active before or after the change
+        updateActiveBands(true);
+    }
+
+    private void advanceRamp() {
+        for (int i = 0; i < coeffs.length; i++) {
+            coeffs[i] += deltaCoeffs[i];
+        }
+        gain += deltaGain;
+        if (--rampSteps == 0) {
+            finishRamp();
+        }
+    }
+
+    private void finishRamp() {
+        System.arraycopy(targetCoeffs, 0, coeffs, 0, coeffs.length);
+        gain = targetGain;
+        rampSteps = 0;
+        updateActiveBands(false);
+    }
+
+    private void updateActiveBands(boolean includeTarget) {
+        activeCount = 0;
+        for (int band = 0; band < NUM_BANDS; band++) {
+            int cb = band * COEFFS;
+            boolean active = !isPassThrough(coeffs, cb)
+                    || (includeTarget && !isPassThrough(targetCoeffs, cb));
+            if (active) {
+                activeBands[activeCount++] = band;
+            }
+        }
+    }
+
+    private static boolean isPassThrough(float[] c, int cb) {
+        return c[cb] == 1.0f && c[cb + 1] == 0.0f && c[cb + 2] == 0.0f;
+    }
+
+    @Override
+    public void process(short[] buffer, int offset, int length) {
+        if (!isEnabled()) return;
+        if (dirty) publishCoefficients();
+        if (activeCount == 0 && gain == 1.0f && rampSteps == 0) return;
+
+        if (scratch.length < length) {
+            scratch = new float[length];
+        }
+        float[] work = scratch;
+        for (int i = 0; i < length; i++) {
+            work[i] = buffer[offset + i] * (1.0f / 32768.0f);
+        }
+
+        run(work, 0, length);
+
+        for (int i = 0; i < length; i++) {
+            float v = work[i] * 32768.0f;
+            if (v > 32767.0f) v = 32767.0f;
+            else if (v < -32768.0f) v = -32768.0f;
+            buffer[offset + i] = (short) v;
+        }
+    }
+
+    /**
+     * Process interleaved float samples (-1.0 to 1.0) in place
+     */
+    public void process(float[] buffer, int offset, int length) {
+        if (!isEnabled()) return;
+        if (dirty) publishCoefficients();
+
+        run(buffer, offset, length);
+    }
+
+    /**
+     * Apply gain and filters, stepping the coefficient ramp per sub-block
+     */
+    private void run(float[] buf, int offset, int length) {
+        int end = offset + length;
+        int pos = offset;
+        int step = SUB_BLOCK_FRAMES * channelCount;
+
+        while (rampSteps > 0 && pos < end) {
+            advanceRamp();
+            int n = Math.min(step, end - pos);
+            applyGain(buf, pos, n);
+            filter(buf, pos, n);
+            pos += n;
+        }
+
+        if (pos < end) {
+            applyGain(buf, pos, end - pos);
+            filter(buf, pos, end - pos);
+        }
+    }
+
+    private void applyGain(float[] buf, int offset, int length) {
+        float g = gain;
+        if (g == 1.0f) return;
+        for (int i = offset; i < offset + length; i++) {
+            buf[i] *= g;
+        }
+    }
+
+    private void filter(float[] buf, int offset, int length) {
+        int channels = channelCount;
+        int end = offset + length;
+        float[] c = coeffs;
+        float[] s = state;
+
+        for (int k = 0; k < activeCount; k++) {
+            int band = activeBands[k];
+            int cb = band * COEFFS;
+            float b0 = c[cb];
+            float b1 = c[cb + 1];
+            float b2 = c[cb + 2];
+            float a1 = c[cb + 3];
+            float a2 = c[cb + 4];
+
+            for (int ch = 0; ch < channels; ch++) {
+                int si = (band * channels + ch) * 2;
+                float z1 = s[si];
+                float z2 = s[si + 1];
+
+                for (int i = offset + ch; i < end; i += channels) {
+                    float x = buf[i];
+                    float y = b0 * x + z1;
+                    z1 = b1 * x - a1 * y + z2;
+                    z2 = b2 * x - a2 * y;
+                    buf[i] = y;
+                }
+
+                s[si] = z1;
+                s[si + 1] = z2;
+            }
+        }
+    }
+
+    /**
+     * Clear filter history (e.g. after a seek)
+     */
+    public void clearState() {
+        synchronized (lock) {
+            for (int i = 0; i < state.length; i++) {
+                state[i] = 0.0f;
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.rockbox.winamp.audio;
+
+/**
+ * Crossfade settings and gain curves.
+ * Progress runs from 0.0 (fade start) to 1.0 (fade complete).
+ */
+public class Crossfader {
+
+    // Fade curves
+    public static final int CURVE_LINEAR = 0;
+    public static final int CURVE_EQUAL_POWER = 1;
+
+    private static final String[] CURVE_NAMES = {
+        "Linear", "Equal Power"
+    };
+
+    // Allowed fade length range (ms)
+    public static final int MIN_FADE_MS = 500;
+    public static final int MAX_FADE_MS = 12000;
+
+    private int fadeMs;
+    private int curve;
+
+    public Crossfader() {
+        this.fadeMs = 0;
+        this.curve = CURVE_EQUAL_POWER;
+    }
+
+    /**
+     * Set fade length in milliseconds (0 disables crossfade)
+     */
+    public void setFadeMs(int fadeMs) {
+        if (fadeMs <= 0) {
+            this.fadeMs = 0;
+        } else {
+            this.fadeMs = Math.max(MIN_FADE_MS, Math.min(MAX_FADE_MS, fadeMs));
+        }
+    }
+
+    /**
+     * Get fade length in milliseconds
+     */
+    public int getFadeMs() {
+        return fadeMs;
+    }
+
+    /**
+     * Check if crossfade is enabled
+     */
+    public boolean isEnabled() {
+        return fadeMs > 0;
+    }
+
+    /**
+     * Set fade curve
+     */
+    public void setCurve(int curve) {
+        if (curve == CURVE_LINEAR || curve == CURVE_EQUAL_POWER) {
+            this.curve = curve;
+        }
+    }
+
+    /**
+     * Get fade curve
+     */
+    public int getCurve() {
+        return curve;
+    }
+
+    /**
+     * Get fade progress for a position within the incoming track
+     */
+    public float getProgress(int incomingPositionMs) {
+        if (fadeMs <= 0) return 1.0f;
+        return Math.max(0.0f, Math.min(1.0f, (float) incomingPositionMs / fadeMs));
+    }
+
+    /**
+     * Gain for the incoming track
+     */
+    public float fadeInGain(float progress) {
+        if (curve == CURVE_EQUAL_POWER) {
+            return (float) Math.sin(progress * Math.PI / 2);
+        }
+        return progress;
+    }
+
+    /**
+     * Gain for the outgoing track
+     */
+    public float fadeOutGain(float progress) {
+        if (curve == CURVE_EQUAL_POWER) {
+            return (float) Math.cos(progress * Math.PI / 2);
+        }
+        return 1.0f - progress;
+    }
+
+    /**
+     * Get curve name
+     */
+    public static String getCurveName(int curve) {
+        if (curve >= 0 && curve < CURVE_NAMES.length) {
+            return CURVE_NAMES[curve];
+        }
+        return "Unknown";
+    }
+}
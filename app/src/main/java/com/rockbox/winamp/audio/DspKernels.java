@@ -0,0 +1,81 @@
+package com.rockbox.winamp.audio;
+
+import java.util.Random;
+
+/**
+ * Chooses between the float and fixed-point DSP kernels.
+ * A short microbenchmark runs once per process and the faster kernel is
+ * used for the equalizer and gain stages.
+ */
+public class DspKernels {
+
+    public static final int KERNEL_FLOAT = 0;
+    public static final int KERNEL_FIXED = 1;
+
+    private static final int BLOCK = 2048;
+    private static final int WARMUP_BLOCKS = 40;
+    private static final int MEASURE_BLOCKS = 60;
+
+    private static int selected = -1;
+    private static long floatNs;
+    private static long fixedNs;
+
+    /**
+     * Create an equalizer for the given kernel
+     */
+    public static SoftwareEqualizer createEqualizer(int kernel) {
+        if (kernel == KERNEL_FIXED) {
+            return new FixedPointEqualizer();
+        }
+        return new BiquadEqualizer();
+    }
+
+    /**
+     * Get the faster kernel on this device, benchmarking on first call.
+     * Takes a few tens of milliseconds; call off the UI thread.
+     */
+    public static synchronized int getPreferredKernel() {
+        if (selected < 0) {
+            short[] pcm = new short[BLOCK];
+            Random random = new Random(1);
+            for (int i = 0; i < BLOCK; i++) {
+                pcm[i] = (short) (random.nextGaussian() * 4000);
+            }
+            floatNs = time(createEqualizer(KERNEL_FLOAT), pcm);
+            fixedNs = time(createEqualizer(KERNEL_FIXED), pcm);
+            selected = fixedNs < floatNs ? KERNEL_FIXED : KERNEL_FLOAT;
+        }
+        return selected;
+    }
+
+    /**
+     * Describe the last benchmark result
+     */
+    public static synchronized String getReport() {
+        if (selected < 0) return "not benchmarked";
+        return getKernelName(selected) + " (float " + floatNs / 1000 + " us, fixed "
+                + fixedNs / 1000 + " us per " + MEASURE_BLOCKS + " blocks)";
+    }
+
+    public static String getKernelName(int kernel) {
+        return kernel == KERNEL_FIXED ? "Fixed-point" : "Float";
+    }
+
+    private static long time(SoftwareEqualizer eq, short[] pcm) {
+        eq.configure(44100, 2);
+        eq.applyPreset(Equalizer.PRESET_ROCK);
+        eq.setEnabled(true);
+
+        short[] work = new short[pcm.length];
+        for (int i = 0; i < WARMUP_BLOCKS; i++) {
+            System.arraycopy(pcm, 0, work, 0, pcm.length);
+            eq.process(work, 0, work.length);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURE_BLOCKS; i++) {
+            System.arraycopy(pcm, 0, work, 0, pcm.length);
+            eq.process(work, 0, work.length);
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,240 @@
+package com.rockbox.winamp.audio;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Works out track duration from headers alone, without a decoder:
+ * Xing/Info (with LAME delay/padding) or VBRI for VBR MP3 and frame size
+ * for CBR MP3, FLAC STREAMINFO, WAV data length, MP4 mvhd and the last
+ * Ogg granule position. Reads a few KB per file. One instance per thread.
+ */
+public class DurationEstimator {
+
+    // How far past the tags we look for the first MPEG frame
+    private static final int SCAN_SIZE = 4096;
+    private static final int OGG_TAIL_SIZE = 8192;
+
+    // Bitrates (kbps) by [version row][layer row][index]
+    private static final int[][] BITRATES = {
+        // MPEG 1: layer I, II, III
+        { 0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448 },
+        { 0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384 },
+        { 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320 },
+        // MPEG 2/2.5: layer I, II/III
+        { 0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256 },
+        { 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 },
+    };
+
+    private static final int[] SAMPLE_RATES = { 44100, 48000, 32000 };
+
+    private final TagReader tagReader = new TagReader();
+    private final TagReader.Tags tags = new TagReader.Tags();
+    private final byte[] buffer = new byte[Math.max(SCAN_SIZE, OGG_TAIL_SIZE)];
+
+    // Decoded fields of the last header passed to parseFrameHeader
+    private int frameBitrate;
+    private int frameSampleRate;
+    private int frameSamples;
+    private int frameLength;
+    private boolean frameMpeg1;
+    private boolean frameMono;
+
+    /**
+     * Estimate duration of a file
+     * @return milliseconds, or 0 if unknown
+     */
+    public int estimate(String path) {
+        if (!tagReader.read(path, tags)) return 0;
+        return estimate(path, tags);
+    }
+
+    /**
+     * Estimate duration using tags the caller has already read
+     * @return milliseconds, or 0 if unknown
+     */
+    public int estimate(String path, TagReader.Tags tags) {
+        switch (tags.format) {
+            case TagReader.FORMAT_MP3:
+                int ms = estimateMp3(path, tags.audioOffset);
+                // TLEN is often missing or stale; trust it only as a fallback
+                return ms > 0 ? ms : tags.durationMs;
+            case TagReader.FORMAT_OGG:
+                return estimateOgg(path, tags.sampleRate);
+            default:
+                // FLAC, WAV and MP4 durations come straight from their headers
+                return tags.durationMs;
+        }
+    }
+
+    private int estimateMp3(String path, long audioOffset) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(path, "r");
+            long length = file.length();
+            if (audioOffset >= length) return 0;
+
+            int n = (int) Math.min(buffer.length, length - audioOffset);
+            file.seek(audioOffset);
+            file.readFully(buffer, 0, n);
+
+            int frame = findFrame(n);
+            if (frame < 0) return 0;
+            if (!parseFrameHeader(buffer, frame)) return 0;
+            int sampleRate = frameSampleRate;
+            int samplesPerFrame = frameSamples;
+            int bitrate = frameBitrate;
+
+            // Xing/Info sits after the side information of the first frame
+            int xing = frame + 4 + (frameMpeg1 ? (frameMono ? 17 : 32) : (frameMono ? 9 : 17));
+            if (xing + 16 <= n && (matches(buffer, xing, "Xing") || matches(buffer, xing, "Info"))) {
+                int flags = int32(buffer, xing + 4);
+                if ((flags & 0x01) != 0) {
+                    long frames = int32(buffer, xing + 8) & 0xFFFFFFFFL;
+                    long samples = frames * samplesPerFrame;
+
+                    // LAME tag: encoder delay and padding in samples
+                    int lame = xing + 8 + ((flags & 0x01) != 0 ? 4 : 0) + ((flags & 0x02) != 0 ? 4 : 0)
+                            + ((flags & 0x04) != 0 ? 100 : 0) + ((flags & 0x08) != 0 ? 4 : 0);
+                    if (lame + 24 <= n && matches(buffer, lame, "LAME")) {
+                        int delay = ((buffer[lame + 21] & 0xFF) << 4) | ((buffer[lame + 22] & 0xFF) >> 4);
+                        int padding = ((buffer[lame + 22] & 0x0F) << 8) | (buffer[lame + 23] & 0xFF);
+                        if (delay + padding < samples) {
+                            samples -= delay + padding;
+                        }
+                    }
+                    return (int) (samples * 1000 / sampleRate);
+                }
+            }
+
+            // VBRI is always 32 bytes after the header
+            int vbri = frame + 36;
+            if (vbri + 18 <= n && matches(buffer, vbri, "VBRI")) {
+                long frames = int32(buffer, vbri + 14) & 0xFFFFFFFFL;
+                return (int) (frames * samplesPerFrame * 1000 / sampleRate);
+            }
+
+            // CBR: audio bytes over bitrate, minus a trailing ID3v1 tag
+            long end = length;
+            if (length >= 128) {
+                file.seek(length - 128);
+                file.readFully(buffer, 0, 3);
+                if (matches(buffer, 0, "TAG")) end -= 128;
+            }
+            long bytes = end - (audioOffset + frame);
+            return bytes > 0 ? (int) (bytes * 8 / bitrate) : 0;
+
+        } catch (IOException e) {
+            return 0;
+        } finally {
+            close(file);
+        }
+    }
+
+    /**
+     * Find the first frame header whose successor is also a valid header
+     * (rules out stray 0xFF bytes in junk before the audio)
+     */
+    private int findFrame(int n) {
+        for (int i = 0; i + 4 <= n; i++) {
+            if ((buffer[i] & 0xFF) != 0xFF || (buffer[i + 1] & 0xE0) != 0xE0) continue;
+            if (!parseFrameHeader(buffer, i)) continue;
+
+            int next = i + frameLength;
+            if (next + 4 > n) return i; // Cannot confirm; accept
+            int rate = frameSampleRate;
+            if (parseFrameHeader(buffer, next) && frameSampleRate == rate) {
+                parseFrameHeader(buffer, i);
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean parseFrameHeader(byte[] b, int off) {
+        if ((b[off] & 0xFF) != 0xFF || (b[off + 1] & 0xE0) != 0xE0) return false;
+
+        int version = (b[off + 1] >> 3) & 0x03; // 0 = 2.5, 2 = 2, 3 = 1
+        int layer = (b[off + 1] >> 1) & 0x03;   // 1 = III, 2 = II, 3 = I
+        int bitrateIndex = (b[off + 2] >> 4) & 0x0F;
+        int rateIndex = (b[off + 2] >> 2) & 0x03;
+        int padding = (b[off + 2] >> 1) & 0x01;
+        if (version == 1 || layer == 0 || bitrateIndex == 0 || bitrateIndex == 15 || rateIndex == 3) {
+            return false;
+        }
+
+        boolean mpeg1 = version == 3;
+        int row = mpeg1 ? 3 - layer : (layer == 3 ? 3 : 4);
+        int bitrate = BITRATES[row][bitrateIndex] * 1000;
+        int sampleRate = SAMPLE_RATES[rateIndex] >> (mpeg1 ? 0 : version == 2 ? 1 : 2);
+
+        if (layer == 3) {
+            frameSamples = 384;
+            frameLength = (12 * bitrate / sampleRate + padding) * 4;
+        } else if (layer == 2 || mpeg1) {
+            frameSamples = 1152;
+            frameLength = 144 * bitrate / sampleRate + padding;
+        } else {
+            frameSamples = 576;
+            frameLength = 72 * bitrate / sampleRate + padding;
+        }
+        frameBitrate = bitrate / 1000;
+        frameSampleRate = sampleRate;
+        frameMpeg1 = mpeg1;
+        frameMono = ((b[off + 3] >> 6) & 0x03) == 3;
+        return frameLength > 4;
+    }
+
+    private int estimateOgg(String path, int sampleRate) {
+        if (sampleRate <= 0) return 0;
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(path, "r");
+            long length = file.length();
+            int n = (int) Math.min(OGG_TAIL_SIZE, length);
+            file.seek(length - n);
+            file.readFully(buffer, 0, n);
+
+            // Last page with a granule position (-1 = no packet ends there)
+            for (int i = n - 27; i >= 0; i--) {
+                if (buffer[i] == 'O' && matches(buffer, i, "OggS")) {
+                    long granule = (int32le(buffer, i + 6) & 0xFFFFFFFFL)
+                            | ((long) int32le(buffer, i + 10) << 32);
+                    if (granule > 0) return (int) (granule * 1000 / sampleRate);
+                }
+            }
+            return 0;
+        } catch (IOException e) {
+            return 0;
+        } finally {
+            close(file);
+        }
+    }
+
+    private static void close(RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    private static boolean matches(byte[] b, int off, String magic) {
+        for (int i = 0; i < magic.length(); i++) {
+            if (b[off + i] != magic.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static int int32(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16)
+                | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+
+    private static int int32le(byte[] b, int off) {
+        return (b[off] & 0xFF) | ((b[off + 1] & 0xFF) << 8)
+                | ((b[off + 2] & 0xFF) << 16) | ((b[off + 3] & 0xFF) << 24);
+    }
+}
@@ -0,0 +1,159 @@
+package com.rockbox.winamp.audio;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fills in missing track durations on a small background pool using
+ * DurationEstimator. Results are applied on the main thread in batches
+ * through Playlist.updateTrackInfo(), so views redraw only the updated
+ * rows and the session is saved with the durations.
+ */
+public class DurationResolver {
+
+    private static final String TAG = "DurationResolver";
+    private static final int POOL_SIZE = 2;
+    private static final int PUBLISH_INTERVAL_MS = 200;
+
+    private final Playlist playlist;
+    private final Handler handler;
+    private final ThreadPoolExecutor executor;
+
+    // Main thread only: tracks waiting on each path
+    private final Map<String, List<Track>> pending;
+
+    // Main thread only: paths whose headers gave no duration
+    private final Set<String> failed;
+
+    // Worker results waiting to be published (guarded by itself)
+    private final Map<String, Integer> results;
+    private boolean publishScheduled;
+
+    private final ThreadLocal<DurationEstimator> estimators = new ThreadLocal<DurationEstimator>() {
+        @Override
+        protected DurationEstimator initialValue() {
+            return new DurationEstimator();
+        }
+    };
+
+    public DurationResolver(Playlist playlist) {
+        this.playlist = playlist;
+        this.handler = new Handler(Looper.getMainLooper());
+        this.pending = new HashMap<String, List<Track>>();
+        this.failed = new HashSet<String>();
+        this.results = new HashMap<String, Integer>();
+        this.executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 5, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private int count;
+
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, TAG + "-" + (++count));
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queue every track that has no duration yet (call on the main thread)
+     */
+    public void requestAll(List<Track> tracks) {
+        for (Track track : tracks) {
+            request(track);
+        }
+    }
+
+    /**
+     * Queue a track if its duration is unknown (call on the main thread)
+     */
+    public void request(Track track) {
+        if (track == null || track.getDurationMs() > 0) return;
+
+        final String path = track.getFilePath();
+        if (failed.contains(path)) return;
+
+        List<Track> waiting = pending.get(path);
+        if (waiting != null) {
+            // Same file may be in the playlist more than once
+            for (Track t : waiting) {
+                if (t == track) return;
+            }
+            waiting.add(track);
+            return;
+        }
+        waiting = new ArrayList<Track>(1);
+        waiting.add(track);
+        pending.put(path, waiting);
+
+        executor.execute(new Runnable() {
+            public void run() {
+                int ms = estimators.get().estimate(path);
+                synchronized (results) {
+                    results.put(path, ms);
+                    if (!publishScheduled) {
+                        publishScheduled = true;
+                        handler.postDelayed(publish, PUBLISH_INTERVAL_MS);
+                    }
+                }
+            }
+        });
+    }
+
+    private final Runnable publish = new Runnable() {
+        public void run() {
+            Map<String, Integer> batch;
+            synchronized (results) {
+                batch = new HashMap<String, Integer>(results);
+                results.clear();
+                publishScheduled = false;
+            }
+
+            List<Track> updated = new ArrayList<Track>();
+            for (Map.Entry<String, Integer> entry : batch.entrySet()) {
+                List<Track> waiting = pending.remove(entry.getKey());
+                int ms = entry.getValue();
+                if (ms <= 0) {
+                    // Left for the player to report when the track is prepared
+                    failed.add(entry.getKey());
+                    continue;
+                }
+                if (waiting == null) continue;
+                for (Track track : waiting) {
+                    // The player may have reported an exact value meanwhile
+                    if (track.getDurationMs() <= 0) {
+                        track.setDurationMs(ms);
+                        updated.add(track);
+                    }
+                }
+            }
+
+            // One range event per track, batched into a single redraw
+            playlist.updateTrackInfo(updated);
+        }
+    };
+
+    /**
+     * Drop queued work and stop the pool
+     */
+    public void release() {
+        executor.shutdownNow();
+        handler.removeCallbacks(publish);
+        pending.clear();
+    }
+}
@@ -2,23 +2,57 @@ package com.rockbox.winamp.audio;
 
 import android.media.audiofx.AudioEffect;
 import android.media.audiofx.BassBoost;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
  * 10-band equalizer using Android AudioEffect API.
  * Controls frequency bands and presets.
+ *
+ * Preset changes are ramped on the AudioTimer thread in small steps
+ * instead of jumping, and a change that arrives mid-ramp continues from
+ * the levels reached so far.
+ *
+ * Band count and level range are read from the effect once at
+ * construction. Level vectors (presets and every ramp step) go to the
+ * effect in a single setProperties() call, and only when some band
+ * actually changes; single-band edits use setBandLevel().
+ *
+ * User settings are mirrored into an EqualizerState that is kept even if
+ * the effect is unavailable, so they can be carried to a new session.
  */
-public class Equalizer {
+public class Equalizer implements AudioTimer.Task {
 
     private static final String TAG = "Equalizer";
 
     private android.media.audiofx.Equalizer androidEqualizer;
     private BassBoost bassBoost;
-    private boolean enabled;
+    private final EqualizerState state;
     private int audioSessionId;
 
-    // Standard 10-band frequencies (Hz)
-    private static final int[] BAND_FREQUENCIES = {
+    // Cached effect properties (avoid a JNI round trip per call)
+    private int numBands;
+    private short minLevel = -1500;
+    private short maxLevel = 1500;
+
+    // Reused for batched updates; covers every band the effect has
+    private android.media.audiofx.Equalizer.Settings settings;
+
+    // Level ramping
+    public static final int DEFAULT_RAMP_MS = 120;
+    private static final int RAMP_STEP_MS = 20;
+    private final Object rampLock = new Object();
+    private final short[] startLevels = new short[BAND_FREQUENCIES.length];
+    private final short[] targetLevels = new short[BAND_FREQUENCIES.length];
+    private final short[] appliedLevels = new short[BAND_FREQUENCIES.length];
+    private final short[] stepLevels = new short[BAND_FREQUENCIES.length];
+    private AudioTimer timer;
+    private int rampMs = DEFAULT_RAMP_MS;
+    private long rampStartMs;
+    private boolean ramping;
+
+    // Standard 10-band frequencies (Hz), shared with the software equalizer
+    static final int[] BAND_FREQUENCIES = {
         31, 62, 125, 250, 500, 1000, 2000, 4000, 8000, 16000
     };
 
@@ -35,7 +69,7 @@ public class Equalizer {
     };
 
     // Preset values (in millibels, -1500 to +1500)
-    private static final short[][] PRESET_VALUES = {
+    static final short[][] PRESET_VALUES = {
         {0, 0, 0, 0, 0, 0, 0, 0, 0, 0},              // Flat
         {500, 300, -100, -300, -100, 200, 500, 700, 700, 700},  // Rock
         {0, 0, 0, 300, 300, 300, 0, 200, 300, 400},  // Jazz
@@ -46,13 +80,32 @@ public class Equalizer {
 
     public Equalizer(int audioSessionId) {
         this.audioSessionId = audioSessionId;
-        this.enabled = false;
+        this.state = new EqualizerState();
 
         try {
             // Initialize Android Equalizer
             androidEqualizer = new android.media.audiofx.Equalizer(0, audioSessionId);
             androidEqualizer.setEnabled(false);
 
+            numBands = Math.min(BAND_FREQUENCIES.length, androidEqualizer.getNumberOfBands());
+            short[] range = androidEqualizer.getBandLevelRange();
+            if (range != null && range.length >= 2) {
+                minLevel = range[0];
+                maxLevel = range[1];
+            }
+            settings = new android.media.audiofx.Equalizer.Settings();
+            settings.curPreset = -1; // Custom levels, not a device preset
+            settings.numBands = androidEqualizer.getNumberOfBands();
+            settings.bandLevels = new short[settings.numBands];
+            for (int i = 0; i < settings.numBands; i++) {
+                settings.bandLevels[i] = androidEqualizer.getBandLevel((short) i);
+            }
+            for (int i = 0; i < numBands; i++) {
+                appliedLevels[i] = settings.bandLevels[i];
+                startLevels[i] = appliedLevels[i];
+                targetLevels[i] = appliedLevels[i];
+            }
+
             // Initialize Bass Boost
             bassBoost = new BassBoost(0, audioSessionId);
             bassBoost.setEnabled(false);
@@ -63,9 +116,24 @@ public class Equalizer {
             Log.e(TAG, "Failed to initialize equalizer", e);
             androidEqualizer = null;
             bassBoost = null;
+            numBands = 0;
         }
     }
 
+    /**
+     * Ramp level changes on the given timer (null = apply immediately)
+     */
+    public void setTimer(AudioTimer timer) {
+        this.timer = timer;
+    }
+
+    /**
+     * Set ramp time for preset changes (0 = immediate)
+     */
+    public void setRampMs(int rampMs) {
+        this.rampMs = Math.max(0, rampMs);
+    }
+
     /**
      * Check if equalizer is available
      */
@@ -77,10 +145,10 @@ public class Equalizer {
      * Enable or disable equalizer
      */
     public void setEnabled(boolean enabled) {
+        state.setEnabled(enabled);
         if (!isAvailable()) return;
 
         try {
-            this.enabled = enabled;
             androidEqualizer.setEnabled(enabled);
             Log.d(TAG, "Equalizer " + (enabled ? "enabled" : "disabled"));
         } catch (Exception e) {
@@ -92,7 +160,7 @@ public class Equalizer {
      * Check if equalizer is enabled
      */
     public boolean isEnabled() {
-        return enabled && isAvailable();
+        return state.isEnabled() && isAvailable();
     }
 
     /**
@@ -100,35 +168,127 @@ public class Equalizer {
      */
     public int getNumberOfBands() {
         if (!isAvailable()) return 0;
-        return Math.min(10, androidEqualizer.getNumberOfBands());
+        return numBands;
     }
 
     /**
      * Set band level (-1500 to +1500 millibels)
      */
     public void setBandLevel(int band, short level) {
+        if (band < 0 || band >= BAND_FREQUENCIES.length) return;
+        state.setBandLevel(band, level);
         if (!isAvailable()) return;
-        if (band < 0 || band >= getNumberOfBands()) return;
+        if (band >= numBands) return;
+
+        level = clampLevel(level);
+        synchronized (rampLock) {
+            // Direct edits win over a running ramp for this band
+            startLevels[band] = level;
+            targetLevels[band] = level;
+            applyBandLevel(band, level);
+        }
+    }
+
+    /**
+     * Ramp all bands to new levels (millibels, one per band)
+     */
+    public void setBandLevels(short[] levels) {
+        state.setBandLevels(levels);
+        if (!isAvailable()) return;
+
+        int count = Math.min(numBands, levels.length);
+        synchronized (rampLock) {
+            boolean changed = false;
+            for (int i = 0; i < count; i++) {
+                // Restart from wherever the previous ramp got to
+                startLevels[i] = appliedLevels[i];
+                targetLevels[i] = clampLevel(levels[i]);
+                changed |= targetLevels[i] != appliedLevels[i];
+            }
+            if (!changed) {
+                ramping = false;
+                return;
+            }
+            if (timer == null || rampMs == 0) {
+                System.arraycopy(targetLevels, 0, startLevels, 0, count);
+                applyBandLevels(targetLevels);
+                ramping = false;
+                return;
+            }
+            rampStartMs = SystemClock.uptimeMillis();
+            ramping = true;
+        }
+        timer.schedule(this);
+    }
+
+    // AudioTimer.Task - runs on the timer thread
+    @Override
+    public long tick() {
+        synchronized (rampLock) {
+            if (!ramping || !isAvailable()) return AudioTimer.IDLE;
+
+            long elapsed = SystemClock.uptimeMillis() - rampStartMs;
+            float t = Math.min(1.0f, (float) elapsed / rampMs);
+            for (int i = 0; i < numBands; i++) {
+                stepLevels[i] = (short) Math.round(startLevels[i]
+                        + (targetLevels[i] - startLevels[i]) * t);
+            }
+            applyBandLevels(stepLevels);
+
+            if (t >= 1.0f) {
+                ramping = false;
+                return AudioTimer.IDLE;
+            }
+            return RAMP_STEP_MS;
+        }
+    }
+
+    /**
+     * Apply a full band vector in one setProperties() call; nothing is
+     * sent if every band is already at its level. Caller holds rampLock.
+     */
+    private void applyBandLevels(short[] levels) {
+        boolean changed = false;
+        for (int i = 0; i < numBands; i++) {
+            changed |= levels[i] != appliedLevels[i];
+        }
+        if (!changed) return;
+
+        System.arraycopy(levels, 0, settings.bandLevels, 0, numBands);
+        try {
+            androidEqualizer.setProperties(settings);
+            System.arraycopy(levels, 0, appliedLevels, 0, numBands);
+        } catch (Exception e) {
+            Log.e(TAG, "Error setting band levels", e);
+            // Keep the batch in step with what the effect holds
+            System.arraycopy(appliedLevels, 0, settings.bandLevels, 0, numBands);
+        }
+    }
 
+    private void applyBandLevel(int band, short level) {
+        if (level == appliedLevels[band]) return;
         try {
-            short actualBand = (short) band;
-            androidEqualizer.setBandLevel(actualBand, level);
+            androidEqualizer.setBandLevel((short) band, level);
+            appliedLevels[band] = level;
+            settings.bandLevels[band] = level;
         } catch (Exception e) {
             Log.e(TAG, "Error setting band level", e);
         }
     }
 
+    private short clampLevel(short level) {
+        return (short) Math.max(minLevel, Math.min(maxLevel, level));
+    }
+
     /**
-     * Get band level
+     * Get band level (target of any running ramp)
      */
     public short getBandLevel(int band) {
-        if (!isAvailable()) return 0;
-        if (band < 0 || band >= getNumberOfBands()) return 0;
+        if (band < 0 || band >= BAND_FREQUENCIES.length) return 0;
+        if (!isAvailable() || band >= numBands) return state.getBandLevel(band);
 
-        try {
-            return androidEqualizer.getBandLevel((short) band);
-        } catch (Exception e) {
-            return 0;
+        synchronized (rampLock) {
+            return targetLevels[band];
         }
     }
 
@@ -146,15 +306,10 @@ public class Equalizer {
      * Apply preset
      */
     public void applyPreset(int presetIndex) {
-        if (!isAvailable()) return;
         if (presetIndex < 0 || presetIndex >= PRESET_VALUES.length) return;
 
-        short[] values = PRESET_VALUES[presetIndex];
-        int numBands = Math.min(getNumberOfBands(), values.length);
-
-        for (int i = 0; i < numBands; i++) {
-            setBandLevel(i, values[i]);
-        }
+        setBandLevels(PRESET_VALUES[presetIndex]);
+        state.setPreset(presetIndex);
 
         Log.d(TAG, "Applied preset: " + PRESET_NAMES[presetIndex]);
     }
@@ -187,20 +342,21 @@ public class Equalizer {
      * Get min band level
      */
     public short getMinLevel() {
-        return -1500; // -15 dB
+        return minLevel; // -15 dB unless the effect reports otherwise
     }
 
     /**
      * Get max band level
      */
     public short getMaxLevel() {
-        return 1500; // +15 dB
+        return maxLevel; // +15 dB unless the effect reports otherwise
     }
 
     /**
      * Set bass boost strength (0-1000)
      */
     public void setBassBoost(short strength) {
+        state.setBassBoost(strength);
         if (bassBoost == null) return;
 
         try {
@@ -215,7 +371,7 @@ public class Equalizer {
      * Get bass boost strength
      */
     public short getBassBoost() {
-        if (bassBoost == null) return 0;
+        if (bassBoost == null) return state.getBassBoost();
 
         try {
             return bassBoost.getRoundedStrength();
@@ -224,17 +380,69 @@ public class Equalizer {
         }
     }
 
+    /**
+     * Get a snapshot of the current settings
+     */
+    public EqualizerState getState() {
+        return new EqualizerState(state);
+    }
+
+    /**
+     * Apply saved settings in one shot, without ramping
+     */
+    public void applyState(EqualizerState saved) {
+        if (saved == null) return;
+        state.copyFrom(saved);
+        if (!isAvailable()) return;
+
+        synchronized (rampLock) {
+            ramping = false;
+            short[] levels = saved.getBandLevels();
+            for (int i = 0; i < numBands; i++) {
+                targetLevels[i] = clampLevel(levels[i]);
+                startLevels[i] = targetLevels[i];
+            }
+            applyBandLevels(targetLevels);
+        }
+
+        try {
+            androidEqualizer.setEnabled(saved.isEnabled());
+            if (bassBoost != null) {
+                bassBoost.setStrength(saved.getBassBoost());
+                bassBoost.setEnabled(saved.getBassBoost() > 0);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error applying equalizer state", e);
+        }
+
+        Log.d(TAG, "Equalizer state applied (preset: " + saved.getPreset() + ")");
+    }
+
+    /**
+     * Get last applied preset, or EqualizerState.PRESET_CUSTOM
+     */
+    public int getCurrentPreset() {
+        return state.getPreset();
+    }
+
     /**
      * Release resources
      */
     public void release() {
-        if (androidEqualizer != null) {
-            try {
-                androidEqualizer.release();
-            } catch (Exception e) {
-                Log.e(TAG, "Error releasing equalizer", e);
+        if (timer != null) {
+            timer.cancel(this);
+        }
+        synchronized (rampLock) {
+            ramping = false;
+
+            if (androidEqualizer != null) {
+                try {
+                    androidEqualizer.release();
+                } catch (Exception e) {
+                    Log.e(TAG, "Error releasing equalizer", e);
+                }
+                androidEqualizer = null;
             }
-            androidEqualizer = null;
         }
 
         if (bassBoost != null) {
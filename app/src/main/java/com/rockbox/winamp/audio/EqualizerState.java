@@ -0,0 +1,89 @@
+package com.rockbox.winamp.audio;
+
+/**
+ * Session-independent equalizer settings.
+ * Outlives the AudioEffect instances so it can be re-applied in one shot
+ * when the audio session changes.
+ */
+public class EqualizerState {
+
+    public static final int PRESET_CUSTOM = -1;
+
+    private boolean enabled;
+    private final short[] bandLevels;
+    private short bassBoost;
+    private int preset;
+
+    public EqualizerState() {
+        this.enabled = false;
+        this.bandLevels = new short[Equalizer.BAND_FREQUENCIES.length];
+        this.bassBoost = 0;
+        this.preset = Equalizer.PRESET_FLAT;
+    }
+
+    public EqualizerState(EqualizerState other) {
+        this();
+        copyFrom(other);
+    }
+
+    /**
+     * Copy all settings from another state
+     */
+    public void copyFrom(EqualizerState other) {
+        enabled = other.enabled;
+        System.arraycopy(other.bandLevels, 0, bandLevels, 0, bandLevels.length);
+        bassBoost = other.bassBoost;
+        preset = other.preset;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Get band levels (millibels); the array is live, do not modify
+     */
+    public short[] getBandLevels() {
+        return bandLevels;
+    }
+
+    public short getBandLevel(int band) {
+        return bandLevels[band];
+    }
+
+    public void setBandLevel(int band, short level) {
+        bandLevels[band] = level;
+        preset = PRESET_CUSTOM;
+    }
+
+    /**
+     * Set all band levels at once (missing bands keep their level)
+     */
+    public void setBandLevels(short[] levels) {
+        System.arraycopy(levels, 0, bandLevels, 0, Math.min(levels.length, bandLevels.length));
+        preset = PRESET_CUSTOM;
+    }
+
+    public short getBassBoost() {
+        return bassBoost;
+    }
+
+    public void setBassBoost(short strength) {
+        this.bassBoost = strength;
+    }
+
+    /**
+     * Get last applied preset, or PRESET_CUSTOM after manual edits
+     */
+    public int getPreset() {
+        return preset;
+    }
+
+    public void setPreset(int preset) {
+        this.preset = preset;
+    }
+}
@@ -0,0 +1,234 @@
+package com.rockbox.winamp.audio;
+
+/**
+ * In-place radix-2 FFT for real input.
+ * A size-N real transform runs as an N/2-point complex FFT on the packed
+ * input followed by a split step. Twiddles, bit-reversal order and the
+ * window are tabulated at construction, so transforms allocate nothing.
+ * Not thread-safe; use one instance per thread.
+ */
+public class Fft {
+
+    public static final int MIN_SIZE = 256;
+    public static final int MAX_SIZE = 4096;
+
+    // Window types
+    public static final int WINDOW_NONE = 0;
+    public static final int WINDOW_HANN = 1;
+    public static final int WINDOW_BLACKMAN = 2;
+
+    private final int size;
+    private final int half;
+    private final float[] cosTable;   // cos(2*pi*m/size), m < size/2
+    private final float[] sinTable;
+    private final int[] bitReverse;   // for the size/2 complex stage
+    private final float[] window;
+    private final float[] scratch;
+    private int windowType;
+    private float windowSum;
+
+    public Fft(int size, int windowType) {
+        if (size < MIN_SIZE || size > MAX_SIZE || (size & (size - 1)) != 0) {
+            throw new IllegalArgumentException("FFT size must be a power of two in "
+                    + MIN_SIZE + ".." + MAX_SIZE + ": " + size);
+        }
+        this.size = size;
+        this.half = size / 2;
+
+        cosTable = new float[half];
+        sinTable = new float[half];
+        for (int m = 0; m < half; m++) {
+            double angle = 2.0 * Math.PI * m / size;
+            cosTable[m] = (float) Math.cos(angle);
+            sinTable[m] = (float) Math.sin(angle);
+        }
+
+        bitReverse = new int[half];
+        int bits = Integer.numberOfTrailingZeros(half);
+        for (int i = 0; i < half; i++) {
+            bitReverse[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+
+        window = new float[size];
+        scratch = new float[size];
+        setWindow(windowType);
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Get number of magnitude bins produced (DC..Nyquist exclusive)
+     */
+    public int getBinCount() {
+        return half;
+    }
+
+    /**
+     * Set window applied by magnitudes()
+     */
+    public void setWindow(int windowType) {
+        this.windowType = windowType;
+        double sum = 0;
+        for (int i = 0; i < size; i++) {
+            double phase = 2.0 * Math.PI * i / (size - 1);
+            double w;
+            switch (windowType) {
+                case WINDOW_HANN:
+                    w = 0.5 - 0.5 * Math.cos(phase);
+                    break;
+                case WINDOW_BLACKMAN:
+                    w = 0.42 - 0.5 * Math.cos(phase) + 0.08 * Math.cos(2.0 * phase);
+                    break;
+                default:
+                    w = 1.0;
+                    break;
+            }
+            window[i] = (float) w;
+            sum += w;
+        }
+        windowSum = (float) sum;
+    }
+
+    public int getWindow() {
+        return windowType;
+    }
+
+    /**
+     * Forward transform of size real samples, in place.
+     * Output is packed: data[0] = DC, data[1] = Nyquist (both real), then
+     * data[2k], data[2k+1] = real, imaginary part of bin k.
+     */
+    public void forward(float[] data) {
+        // Even/odd samples already sit in the real/imaginary slots
+        complexForward(data);
+
+        float z0r = data[0];
+        float z0i = data[1];
+        data[0] = z0r + z0i;
+        data[1] = z0r - z0i;
+
+        int quarter = half / 2;
+        for (int k = 1; k < quarter; k++) {
+            int a = 2 * k;
+            int b = 2 * (half - k);
+            float zkr = data[a];
+            float zki = data[a + 1];
+            float zjr = data[b];
+            float zji = data[b + 1];
+
+            // Even part E = (Zk + conj Zj) / 2, odd part O = (Zk - conj Zj) / 2i
+            float er = 0.5f * (zkr + zjr);
+            float ei = 0.5f * (zki - zji);
+            float or = 0.5f * (zki + zji);
+            float oi = -0.5f * (zkr - zjr);
+
+            // W^k O with W = exp(-2*pi*i/size)
+            float wr = cosTable[k];
+            float wi = -sinTable[k];
+            float tr = or * wr - oi * wi;
+            float ti = or * wi + oi * wr;
+
+            data[a] = er + tr;
+            data[a + 1] = ei + ti;
+            data[b] = er - tr;
+            data[b + 1] = ti - ei;
+        }
+
+        // Bin size/4 is its own mirror: X = conj(Z)
+        data[half + 1] = -data[half + 1];
+    }
+
+    /**
+     * Window and transform size samples, writing normalized magnitudes.
+     * A full-scale sine at a bin centre reads about 1.0.
+     * @return number of bins written (size / 2)
+     */
+    public int magnitudes(float[] input, int offset, float[] out) {
+        float[] d = scratch;
+        for (int i = 0; i < size; i++) {
+            d[i] = input[offset + i] * window[i];
+        }
+        forward(d);
+
+        float norm = 2.0f / windowSum;
+        out[0] = Math.abs(d[0]) * norm * 0.5f;
+        for (int k = 1; k < half; k++) {
+            float re = d[2 * k];
+            float im = d[2 * k + 1];
+            out[k] = (float) Math.sqrt(re * re + im * im) * norm;
+        }
+        return half;
+    }
+
+    private void complexForward(float[] d) {
+        int n = half;
+        for (int i = 0; i < n; i++) {
+            int j = bitReverse[i];
+            if (j > i) {
+                int a = 2 * i;
+                int b = 2 * j;
+                float tr = d[a];
+                float ti = d[a + 1];
+                d[a] = d[b];
+                d[a + 1] = d[b + 1];
+                d[b] = tr;
+                d[b + 1] = ti;
+            }
+        }
+
+        for (int len = 2; len <= n; len <<= 1) {
+            int span = len >> 1;
+            // Twiddle exp(-2*pi*i*k/len) = table index 2 * k * (n / len)
+            int stride = 2 * (n / len);
+            for (int k = 0; k < span; k++) {
+                float wr = cosTable[k * stride];
+                float wi = -sinTable[k * stride];
+                for (int i = k; i < n; i += len) {
+                    int a = 2 * i;
+                    int b = 2 * (i + span);
+                    float br = d[b];
+                    float bi = d[b + 1];
+                    float tr = br * wr - bi * wi;
+                    float ti = br * wi + bi * wr;
+                    d[b] = d[a] - tr;
+                    d[b + 1] = d[a + 1] - ti;
+                    d[a] += tr;
+                    d[a + 1] += ti;
+                }
+            }
+        }
+    }
+
+    /**
+     * Compute log-spaced bin ranges for edges.length - 1 bands.
+     * Band i covers bins [edges[i], edges[i + 1]); every band gets at
+     * least one bin and DC is skipped.
+     */
+    public static void computeBandEdges(int bins, int sampleRate, float minFreq, int[] edges) {
+        int bands = edges.length - 1;
+        float nyquist = Math.max(2.0f * minFreq, sampleRate * 0.5f);
+        float ratio = nyquist / minFreq;
+        edges[0] = 1;
+        for (int i = 1; i <= bands; i++) {
+            float freq = minFreq * (float) Math.pow(ratio, (float) i / bands);
+            int bin = Math.round(freq / nyquist * bins);
+            edges[i] = Math.min(bins, Math.max(edges[i - 1] + 1, bin));
+        }
+    }
+
+    /**
+     * Reduce magnitudes to bands (peak magnitude per band)
+     */
+    public static void binToBands(float[] magnitudes, int[] edges, float[] bands) {
+        int count = Math.min(bands.length, edges.length - 1);
+        for (int i = 0; i < count; i++) {
+            float max = 0.0f;
+            for (int k = edges[i]; k < edges[i + 1]; k++) {
+                if (magnitudes[k] > max) max = magnitudes[k];
+            }
+            bands[i] = max;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.rockbox.winamp.audio;
+
+/**
+ * Fixed-point kernel of the software 10-band equalizer for devices where
+ * float DSP is expensive (older ARM cores without fast VFP).
+ *
+ * Biquads run in direct form I with Q28 coefficients and 64-bit
+ * accumulation (Q31-style multiply-accumulate). Samples carry 8 extra
+ * fractional bits internally and the truncated accumulator fraction is
+ * fed back into the next sample, which keeps the 31/62 Hz bands (poles
+ * close to the unit circle) accurate. The preamp is a Q15 gain.
+ * Same preset API as BiquadEqualizer.
+ */
+public class FixedPointEqualizer extends SoftwareEqualizer {
+
+    private static final int COEFF_BITS = 28;
+    private static final double COEFF_ONE = 1 << COEFF_BITS;
+    private static final int SAMPLE_SHIFT = 8;
+    private static final int COEFFS = 5;
+    private static final int STATE = 5;
+
+    private final int[] pendingCoeffs;
+    private final int[] targetCoeffs;
+    private final int[] coeffs;
+    private final int[] deltaCoeffs;
+    private final int[] activeBands;
+    private final double[] tmp;
+    private int activeCount;
+    private int pendingGainQ15;
+    private int targetGainQ15;
+    private int gainQ15;
+    private int deltaGainQ15;
+    private int rampSteps;
+
+    // Filter state: x1, x2, y1, y2, error per band per channel
+    private int[] state;
+    // Scratch buffer, grown only on larger input
+    private int[] scratch;
+
+    public FixedPointEqualizer() {
+        this.pendingCoeffs = new int[NUM_BANDS * COEFFS];
+        this.targetCoeffs = new int[NUM_BANDS * COEFFS];
+        this.coeffs = new int[NUM_BANDS * COEFFS];
+        this.deltaCoeffs = new int[NUM_BANDS * COEFFS];
+        this.activeBands = new int[NUM_BANDS];
+        this.tmp = new double[COEFFS];
+        this.scratch = new int[4096];
+        this.gainQ15 = 1 << 15;
+        configure(44100, 2);
+    }
+
+    @Override
+    public int getKernel() {
+        return DspKernels.KERNEL_FIXED;
+    }
+
+    @Override
+    protected void allocateState() {
+        state = new int[NUM_BANDS * channelCount * STATE];
+    }
+
+    @Override
+    protected void computeCoefficients(int band) {
+        int base = band * COEFFS;
+
+        if (isBypassed(band)) {
+            pendingCoeffs[base] = 1 << COEFF_BITS;
+            for (int i = 1; i < COEFFS; i++) {
+                pendingCoeffs[base + i] = 0;
+            }
+            return;
+        }
+
+        peakingCoefficients(band, tmp);
+        for (int i = 0; i < COEFFS; i++) {
+            pendingCoeffs[base + i] = (int) Math.round(tmp[i] * COEFF_ONE);
+        }
+    }
+
+    @Override
+    protected void computePreamp() {
+        pendingGainQ15 = (int) Math.round(preampGain() * 32768.0);
+    }
+
+    /**
+     * Pick up coefficients published by the control thread and start
+     * interpolating towards them
+     */
+    private void publishCoefficients() {
+        synchronized (lock) {
+            System.arraycopy(pendingCoeffs, 0, targetCoeffs, 0, targetCoeffs.length);
+            targetGainQ15 = pendingGainQ15;
+            rampSteps = takeRampSteps();
+            dirty = false;
+        }
+
+        if (rampSteps == 0) {
+            finishRamp();
+            return;
+        }
+        for (int i = 0; i < coeffs.length; i++) {
+            deltaCoeffs[i] = (targetCoeffs[i] - coeffs[i]) / rampSteps;
+        }
+        deltaGainQ15 = (targetGainQ15 - gainQ15) / rampSteps;
+        // Filter every band that is active before or after the change
+        updateActiveBands(true);
+    }
+
+    private void advanceRamp() {
+        for (int i = 0; i < coeffs.length; i++) {
+            coeffs[i] += deltaCoeffs[i];
+        }
+        gainQ15 += deltaGainQ15;
+        if (--rampSteps == 0) {
+            finishRamp();
+        }
+    }
+
+    private void finishRamp() {
+        System.arraycopy(targetCoeffs, 0, coeffs, 0, coeffs.length);
+        gainQ15 = targetGainQ15;
+        rampSteps = 0;
+        updateActiveBands(false);
+    }
+
+    private void updateActiveBands(boolean includeTarget) {
+        activeCount = 0;
+        for (int band = 0; band < NUM_BANDS; band++) {
+            int cb = band * COEFFS;
+            boolean active = !isPassThrough(coeffs, cb)
+                    || (includeTarget && !isPassThrough(targetCoeffs, cb));
+            if (active) {
+                activeBands[activeCount++] = band;
+            }
+        }
+    }
+
+    private static boolean isPassThrough(int[] c, int cb) {
+        return c[cb] == (1 << COEFF_BITS) && c[cb + 1] == 0 && c[cb + 2] == 0;
+    }
+
+    @Override
+    public void process(short[] buffer, int offset, int length) {
+        if (!isEnabled()) return;
+        if (dirty) publishCoefficients();
+        if (activeCount == 0 && gainQ15 == (1 << 15) && rampSteps == 0) return;
+
+        if (scratch.length < length) {
+            scratch = new int[length];
+        }
+        int[] work = scratch;
+        for (int i = 0; i < length; i++) {
+            work[i] = buffer[offset + i] << SAMPLE_SHIFT;
+        }
+
+        // Step the coefficient ramp per sub-block
+        int pos = 0;
+        int step = SUB_BLOCK_FRAMES * channelCount;
+        while (rampSteps > 0 && pos < length) {
+            advanceRamp();
+            int n = Math.min(step, length - pos);
+            applyGain(work, pos, n);
+            filter(work, pos, n);
+            pos += n;
+        }
+        if (pos < length) {
+            applyGain(work, pos, length - pos);
+            filter(work, pos, length - pos);
+        }
+
+        for (int i = 0; i < length; i++) {
+            int v = work[i] >> SAMPLE_SHIFT;
+            if (v > 32767) v = 32767;
+            else if (v < -32768) v = -32768;
+            buffer[offset + i] = (short) v;
+        }
+    }
+
+    private void applyGain(int[] buf, int offset, int length) {
+        long g = gainQ15;
+        if (g == (1 << 15)) return;
+        for (int i = offset; i < offset + length; i++) {
+            buf[i] = (int) ((buf[i] * g) >> 15);
+        }
+    }
+
+    private void filter(int[] buf, int offset, int length) {
+        int channels = channelCount;
+        int end = offset + length;
+        int[] c = coeffs;
+        int[] s = state;
+
+        for (int k = 0; k < activeCount; k++) {
+            int band = activeBands[k];
+            int cb = band * COEFFS;
+            long b0 = c[cb];
+            long b1 = c[cb + 1];
+            long b2 = c[cb + 2];
+            long a1 = c[cb + 3];
+            long a2 = c[cb + 4];
+
+            for (int ch = 0; ch < channels; ch++) {
+                int si = (band * channels + ch) * STATE;
+                int x1 = s[si];
+                int x2 = s[si + 1];
+                int y1 = s[si + 2];
+                int y2 = s[si + 3];
+                long err = s[si + 4];
+
+                for (int i = offset + ch; i < end; i += channels) {
+                    int x = buf[i];
+                    long acc = b0 * x + b1 * x1 + b2 * x2 - a1 * y1 - a2 * y2 + err;
+                    int y = (int) (acc >> COEFF_BITS);
+                    err = acc - ((long) y << COEFF_BITS);
+                    x2 = x1;
+                    x1 = x;
+                    y2 = y1;
+                    y1 = y;
+                    buf[i] = y;
+                }
+
+                s[si] = x1;
+                s[si + 1] = x2;
+                s[si + 2] = y1;
+                s[si + 3] = y2;
+                s[si + 4] = (int) err;
+            }
+        }
+    }
+
+    /**
+     * Clear filter history (e.g. after a seek)
+     */
+    public void clearState() {
+        synchronized (lock) {
+            for (int i = 0; i < state.length; i++) {
+                state[i] = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.rockbox.winamp.audio;
+
+/**
+ * Software volume stage for the PCM pipeline.
+ * Uses a Q15 integer multiply on the fixed-point kernel and a float
+ * multiply otherwise.
+ *
+ * Gain changes ramp linearly per frame over a configurable time, so
+ * volume steps never click. A new target set mid-ramp continues from the
+ * current gain instead of starting another ramp.
+ */
+public class GainStage implements PcmProcessor {
+
+    public static final int DEFAULT_RAMP_MS = 30;
+
+    // Fixed-point ramp state carries 8 bits below Q15
+    private static final int RAMP_SHIFT = 8;
+
+    private volatile float gain;
+    private volatile boolean fixedPoint;
+    private volatile int rampMs;
+
+    // Audio thread state
+    private int sampleRate;
+    private int channelCount;
+    private float appliedTarget;
+    private float current;
+    private float increment;
+    private int currentFixed;
+    private int incrementFixed;
+    private int remainingFrames;
+
+    public GainStage() {
+        this.gain = 1.0f;
+        this.fixedPoint = false;
+        this.rampMs = DEFAULT_RAMP_MS;
+        this.sampleRate = 44100;
+        this.channelCount = 2;
+        this.appliedTarget = 1.0f;
+        this.current = 1.0f;
+    }
+
+    /**
+     * Set linear gain (0.0 - 1.0); applied with a ramp
+     */
+    public void setGain(float gain) {
+        this.gain = Math.max(0.0f, Math.min(1.0f, gain));
+    }
+
+    public float getGain() {
+        return gain;
+    }
+
+    /**
+     * Set ramp time for gain changes (0 = immediate)
+     */
+    public void setRampMs(int rampMs) {
+        this.rampMs = Math.max(0, rampMs);
+    }
+
+    public int getRampMs() {
+        return rampMs;
+    }
+
+    /**
+     * Select Q15 fixed-point arithmetic
+     */
+    public void setFixedPoint(boolean fixedPoint) {
+        this.fixedPoint = fixedPoint;
+    }
+
+    public boolean isFixedPoint() {
+        return fixedPoint;
+    }
+
+    @Override
+    public void configure(int sampleRate, int channelCount) {
+        this.sampleRate = sampleRate;
+        this.channelCount = Math.max(1, channelCount);
+    }
+
+    @Override
+    public void process(short[] buffer, int offset, int length) {
+        float target = gain;
+        if (target != appliedTarget) {
+            startRamp(target);
+        }
+        if (remainingFrames == 0 && current == 1.0f) return;
+
+        if (fixedPoint) {
+            processFixed(buffer, offset, length);
+        } else {
+            processFloat(buffer, offset, length);
+        }
+    }
+
+    private void startRamp(float target) {
+        appliedTarget = target;
+        int frames = (int) ((long) rampMs * sampleRate / 1000);
+        if (frames <= 0) {
+            current = target;
+            remainingFrames = 0;
+            return;
+        }
+        remainingFrames = frames;
+        increment = (target - current) / frames;
+        currentFixed = (int) (current * (32768 << RAMP_SHIFT));
+        int targetFixed = (int) (target * (32768 << RAMP_SHIFT));
+        incrementFixed = (targetFixed - currentFixed) / frames;
+    }
+
+    private void processFloat(short[] buffer, int offset, int length) {
+        int channels = channelCount;
+        int end = offset + length;
+        int i = offset;
+
+        while (remainingFrames > 0 && i < end) {
+            current += increment;
+            if (--remainingFrames == 0) {
+                current = appliedTarget;
+            }
+            for (int ch = 0; ch < channels && i < end; ch++, i++) {
+                buffer[i] = (short) (buffer[i] * current);
+            }
+        }
+
+        float g = current;
+        if (g == 1.0f) return;
+        for (; i < end; i++) {
+            buffer[i] = (short) (buffer[i] * g);
+        }
+    }
+
+    private void processFixed(short[] buffer, int offset, int length) {
+        int channels = channelCount;
+        int end = offset + length;
+        int i = offset;
+
+        while (remainingFrames > 0 && i < end) {
+            currentFixed += incrementFixed;
+            if (--remainingFrames == 0) {
+                current = appliedTarget;
+                currentFixed = (int) (current * (32768 << RAMP_SHIFT));
+            }
+            int q15 = currentFixed >> RAMP_SHIFT;
+            for (int ch = 0; ch < channels && i < end; ch++, i++) {
+                buffer[i] = (short) ((buffer[i] * q15) >> 15);
+            }
+        }
+        if (remainingFrames > 0) {
+            current = (float) currentFixed / (32768 << RAMP_SHIFT);
+        }
+
+        if (current == 1.0f) return;
+        int q15 = (int) (current * 32768.0f);
+        for (; i < end; i++) {
+            buffer[i] = (short) ((buffer[i] * q15) >> 15);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.rockbox.winamp.audio;
+
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * EBU R128 / ITU-R BS.1770 integrated loudness measurement.
+ * K-weights each channel, takes mean square over 400 ms blocks with 75%
+ * overlap, then applies the absolute (-70 LUFS) and relative (-10 LU)
+ * gates. Also tracks the sample peak for clipping protection.
+ */
+public class LoudnessAnalyzer {
+
+    private static final String TAG = "LoudnessAnalyzer";
+
+    // ReplayGain 2.0 reference level
+    public static final float REFERENCE_LUFS = -18.0f;
+
+    private static final double ABSOLUTE_GATE_LUFS = -70.0;
+    private static final double RELATIVE_GATE_LU = -10.0;
+    private static final int STEPS_PER_BLOCK = 4; // 4 x 100 ms
+
+    private static final int CHUNK = 8192;
+
+    private final int channels;
+    private final int stepFrames;
+
+    // K-weighting: high shelf then RLB high-pass, per channel
+    private final double sb0, sb1, sb2, sa1, sa2;
+    private final double ha1, ha2;
+    private final double[] state;
+
+    // Per-step channel energy sums (ring of the last 4 steps)
+    private final double[] stepEnergy = new double[STEPS_PER_BLOCK];
+    private double currentStep;
+    private int stepFill;
+    private int stepCount;
+
+    // Gated block energies
+    private double[] blocks = new double[1024];
+    private int blockCount;
+    private int peak;
+
+    public LoudnessAnalyzer(int sampleRate, int channels) {
+        this.channels = Math.max(1, channels);
+        this.stepFrames = Math.max(1, sampleRate / 10);
+        this.state = new double[this.channels * 4];
+
+        // Pre-filter (high shelf), BS.1770 coefficients generalised to any rate
+        double f0 = 1681.974450955533;
+        double gainDb = 3.999843853973347;
+        double q = 0.7071752369554196;
+        double k = Math.tan(Math.PI * f0 / sampleRate);
+        double vh = Math.pow(10.0, gainDb / 20.0);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1.0 + k / q + k * k;
+        sb0 = (vh + vb * k / q + k * k) / a0;
+        sb1 = 2.0 * (k * k - vh) / a0;
+        sb2 = (vh - vb * k / q + k * k) / a0;
+        sa1 = 2.0 * (k * k - 1.0) / a0;
+        sa2 = (1.0 - k / q + k * k) / a0;
+
+        // RLB high-pass (b = 1, -2, 1)
+        f0 = 38.13547087602444;
+        q = 0.5003270373238773;
+        k = Math.tan(Math.PI * f0 / sampleRate);
+        a0 = 1.0 + k / q + k * k;
+        ha1 = 2.0 * (k * k - 1.0) / a0;
+        ha2 = (1.0 - k / q + k * k) / a0;
+    }
+
+    /**
+     * Feed interleaved 16-bit samples
+     */
+    public void process(short[] pcm, int offset, int length) {
+        int end = offset + length - channels + 1;
+        for (int i = offset; i < end; i += channels) {
+            double sum = 0.0;
+            for (int c = 0; c < channels; c++) {
+                int sample = pcm[i + c];
+                int abs = sample < 0 ? -sample : sample;
+                if (abs > peak) peak = abs;
+
+                int s = c * 4;
+                double x = sample / 32768.0;
+
+                // Shelf, transposed direct form II
+                double y = sb0 * x + state[s];
+                state[s] = sb1 * x - sa1 * y + state[s + 1];
+                state[s + 1] = sb2 * x - sa2 * y;
+
+                // High-pass
+                double z = y + state[s + 2];
+                state[s + 2] = -2.0 * y - ha1 * z + state[s + 3];
+                state[s + 3] = y - ha2 * z;
+
+                sum += z * z;
+            }
+            currentStep += sum;
+
+            if (++stepFill == stepFrames) {
+                endStep();
+            }
+        }
+    }
+
+    private void endStep() {
+        stepEnergy[stepCount % STEPS_PER_BLOCK] = currentStep / stepFrames;
+        stepCount++;
+        currentStep = 0.0;
+        stepFill = 0;
+
+        if (stepCount >= STEPS_PER_BLOCK) {
+            double energy = 0.0;
+            for (int i = 0; i < STEPS_PER_BLOCK; i++) {
+                energy += stepEnergy[i];
+            }
+            addBlock(energy / STEPS_PER_BLOCK);
+        }
+    }
+
+    private void addBlock(double energy) {
+        if (blockCount == blocks.length) {
+            double[] grown = new double[blocks.length * 2];
+            System.arraycopy(blocks, 0, grown, 0, blockCount);
+            blocks = grown;
+        }
+        blocks[blockCount++] = energy;
+    }
+
+    /**
+     * Get gated integrated loudness (LUFS), or NaN if too short / silent
+     */
+    public double getIntegratedLoudness() {
+        double absGate = toEnergy(ABSOLUTE_GATE_LUFS);
+        double sum = 0.0;
+        int count = 0;
+        for (int i = 0; i < blockCount; i++) {
+            if (blocks[i] > absGate) {
+                sum += blocks[i];
+                count++;
+            }
+        }
+        if (count == 0) return Double.NaN;
+
+        double relGate = toEnergy(toLoudness(sum / count) + RELATIVE_GATE_LU);
+        double gate = Math.max(absGate, relGate);
+        sum = 0.0;
+        count = 0;
+        for (int i = 0; i < blockCount; i++) {
+            if (blocks[i] > gate) {
+                sum += blocks[i];
+                count++;
+            }
+        }
+        return count > 0 ? toLoudness(sum / count) : Double.NaN;
+    }
+
+    /**
+     * Get sample peak (0.0 - 1.0)
+     */
+    public float getPeak() {
+        return peak / 32768.0f;
+    }
+
+    private static double toLoudness(double energy) {
+        return -0.691 + 10.0 * Math.log10(energy);
+    }
+
+    private static double toEnergy(double lufs) {
+        return Math.pow(10.0, (lufs + 0.691) / 10.0);
+    }
+
+    /**
+     * Decode and measure a file (blocking; call from a background thread)
+     * @return track gain/peak, or null if the file could not be measured
+     */
+    public static ReplayGain.Info analyze(String path) throws IOException {
+        PcmDecoder decoder = new PcmDecoder();
+        try {
+            decoder.open(path);
+            LoudnessAnalyzer analyzer = new LoudnessAnalyzer(
+                    decoder.getSampleRate(), decoder.getChannelCount());
+            short[] chunk = new short[CHUNK];
+
+            while (true) {
+                if (Thread.currentThread().isInterrupted()) return null;
+                int n = decoder.read(chunk, 0, chunk.length);
+                if (n == PcmDecoder.END_OF_STREAM) break;
+                if (decoder.consumeFormatChange()) {
+                    // Real output format differs from the container's; restart
+                    analyzer = new LoudnessAnalyzer(
+                            decoder.getSampleRate(), decoder.getChannelCount());
+                }
+                if (n > 0) {
+                    analyzer.process(chunk, 0, n);
+                }
+            }
+
+            double lufs = analyzer.getIntegratedLoudness();
+            if (Double.isNaN(lufs)) {
+                Log.d(TAG, "No gated loudness for " + path);
+                return null;
+            }
+
+            ReplayGain.Info info = new ReplayGain.Info();
+            info.trackGainDb = (float) (REFERENCE_LUFS - lufs);
+            info.trackPeak = analyzer.getPeak();
+            info.source = ReplayGain.Info.SOURCE_ANALYSIS;
+            Log.d(TAG, String.format("%s: %.1f LUFS, gain %.2f dB, peak %.3f",
+                    path, lufs, info.trackGainDb, info.trackPeak));
+            return info;
+        } finally {
+            decoder.release();
+        }
+    }
+}
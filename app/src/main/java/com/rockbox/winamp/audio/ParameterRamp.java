@@ -0,0 +1,72 @@
+package com.rockbox.winamp.audio;
+
+/**
+ * Linear ramp between parameter values over a fixed duration.
+ * Setting a new target while a ramp is running restarts from the current
+ * value, so a burst of changes collapses into a single continuous ramp.
+ */
+public class ParameterRamp {
+
+    private float start;
+    private float target;
+    private long startMs;
+    private int durationMs;
+
+    public ParameterRamp(float initial, int durationMs) {
+        this.start = initial;
+        this.target = initial;
+        this.startMs = 0;
+        this.durationMs = Math.max(0, durationMs);
+    }
+
+    /**
+     * Set ramp duration for subsequent targets
+     */
+    public synchronized void setDurationMs(int durationMs) {
+        this.durationMs = Math.max(0, durationMs);
+    }
+
+    public synchronized int getDurationMs() {
+        return durationMs;
+    }
+
+    /**
+     * Ramp from the current value to a new target
+     */
+    public synchronized void setTarget(float value, long nowMs) {
+        start = valueAt(nowMs);
+        target = value;
+        startMs = nowMs;
+    }
+
+    /**
+     * Jump to a value without ramping
+     */
+    public synchronized void jumpTo(float value) {
+        start = value;
+        target = value;
+        startMs = 0;
+    }
+
+    public synchronized float getTarget() {
+        return target;
+    }
+
+    /**
+     * Get the ramped value at a point in time
+     */
+    public synchronized float valueAt(long nowMs) {
+        if (durationMs == 0 || start == target) return target;
+        long elapsed = nowMs - startMs;
+        if (elapsed >= durationMs) return target;
+        if (elapsed <= 0) return start;
+        return start + (target - start) * elapsed / durationMs;
+    }
+
+    /**
+     * Check if the ramp is still moving at a point in time
+     */
+    public synchronized boolean isActive(long nowMs) {
+        return start != target && durationMs > 0 && nowMs - startMs < durationMs;
+    }
+}
@@ -0,0 +1,783 @@
+package com.rockbox.winamp.audio;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Alternative playback engine that decodes to PCM itself.
+ * A decoder thread (MediaExtractor/MediaCodec) fills a PcmRingBuffer and
+ * an output thread drains it into an AudioTrack, so samples can be
+ * processed before they are played. Processing stages (PcmProcessor)
+ * run on the output thread; a 10-band SoftwareEqualizer and a GainStage
+ * for volume are installed by default. Their float or fixed-point kernel
+ * is picked by DspKernels' startup benchmark before the first track plays.
+ *
+ * Reports to the same AudioEngine.AudioEngineListener contract as
+ * AudioEngine and uses the same STATE_* constants. The ring and output
+ * buffers are allocated once per engine, the decoder once per track;
+ * steady-state playback allocates nothing.
+ *
+ * Stopping never blocks the caller for long: the pipeline threads are
+ * signalled and given PIPELINE_JOIN_MS to exit. A thread still stuck in
+ * the platform decoder after that is left to finish on its own; it checks
+ * its generation before touching shared state again.
+ */
+public class PcmAudioEngine implements PlaybackEngine {
+
+    private static final String TAG = "PcmAudioEngine";
+
+    // ~1.5 s of 44.1 kHz stereo
+    private static final int RING_CAPACITY = 1 << 17;
+    // Samples moved per decoder/output iteration
+    private static final int CHUNK_SAMPLES = 4096;
+    // Longest wait for the AudioTrack to drain at end of track (ms)
+    private static final int DRAIN_TIMEOUT_MS = 2000;
+    // Longest the caller waits for the pipeline threads to exit (ms)
+    private static final int PIPELINE_JOIN_MS = 250;
+
+    private final PcmRingBuffer ring;
+    private final short[] outputChunk;   // output thread only
+    private final Handler handler;
+    private final Object pauseLock = new Object();
+
+    private Track currentTrack;
+    private volatile int state;
+    private volatile float volume;
+    private volatile int audioSessionId;
+    private volatile int generation;
+
+    // Pipeline threads and shared flags
+    private Thread decoderThread;
+    private Thread outputThread;
+    private volatile boolean running;
+    private volatile boolean decoderEos;
+    private volatile boolean flushRequested;
+    private final AtomicLong seekRequestUs;
+    private volatile long seekBaseMs;
+    private volatile int sampleRate;
+    private volatile int channelCount;
+    private volatile int durationMs;
+    private volatile AudioTrack audioTrack;
+
+    // DSP stages, replaced (never mutated) so the output thread can read lock-free
+    private volatile PcmProcessor[] processors;
+    private volatile SoftwareEqualizer softwareEqualizer;
+    private final GainStage gainStage;
+    private volatile boolean kernelSelected;
+
+    // Metrics
+    private volatile int underrunCount;
+    private volatile long framesWritten;
+
+    // Listeners
+    private List<AudioEngine.AudioEngineListener> listeners;
+
+    public PcmAudioEngine() {
+        this.ring = new PcmRingBuffer(RING_CAPACITY);
+        this.outputChunk = new short[CHUNK_SAMPLES];
+        this.handler = new Handler(Looper.getMainLooper());
+        this.seekRequestUs = new AtomicLong(-1);
+        this.state = AudioEngine.STATE_IDLE;
+        this.volume = 1.0f;
+        this.listeners = new ArrayList<AudioEngine.AudioEngineListener>();
+        this.processors = new PcmProcessor[0];
+        this.softwareEqualizer = new BiquadEqualizer();
+        this.gainStage = new GainStage();
+        addProcessor(softwareEqualizer);
+        addProcessor(gainStage);
+    }
+
+    /**
+     * Load and prepare a track for playback (auto-plays when ready)
+     */
+    public void loadTrack(Track track) {
+        loadTrack(track, 0);
+    }
+
+    /**
+     * Load a track and start it at a position (e.g. resuming a session)
+     */
+    public void loadTrack(Track track, int startMs) {
+        if (track == null) {
+            Log.e(TAG, "Cannot load null track");
+            return;
+        }
+
+        stop();
+        stopPipeline();
+
+        currentTrack = track;
+        state = AudioEngine.STATE_PREPARING;
+        generation++;
+
+        // The ring is the consumer's to clear, and an output thread that
+        // outlived stopPipeline() may still be reading it: the new output
+        // thread empties it before the decoder writes anything
+        decoderEos = false;
+        flushRequested = true;
+        // The decoder seeks before its first read
+        seekRequestUs.set(startMs > 0 ? startMs * 1000L : -1);
+        seekBaseMs = 0;
+        framesWritten = 0;
+        running = true;
+
+        decoderThread = new Thread(new DecoderLoop(generation, track.getFilePath()), "PcmDecoder");
+        decoderThread.start();
+
+        Log.d(TAG, "Loading track: " + track.getDisplayString());
+    }
+
+    /**
+     * Start or resume playback
+     */
+    public void play() {
+        if (state == AudioEngine.STATE_PREPARED) {
+            state = AudioEngine.STATE_PLAYING;
+            outputThread = new Thread(new OutputLoop(generation), "PcmOutput");
+            outputThread.start();
+            notifyPlaybackStarted();
+            Log.d(TAG, "Playback started");
+        } else if (state == AudioEngine.STATE_PAUSED) {
+            synchronized (pauseLock) {
+                state = AudioEngine.STATE_PLAYING;
+                pauseLock.notifyAll();
+            }
+            notifyPlaybackStarted();
+            Log.d(TAG, "Playback resumed");
+        } else {
+            Log.w(TAG, "Cannot play in state: " + state);
+        }
+    }
+
+    /**
+     * Pause playback
+     */
+    public void pause() {
+        if (state == AudioEngine.STATE_PLAYING) {
+            state = AudioEngine.STATE_PAUSED;
+            notifyPlaybackPaused();
+            Log.d(TAG, "Playback paused");
+        }
+    }
+
+    /**
+     * Stop playback
+     */
+    public void stop() {
+        int s = state;
+        if (s == AudioEngine.STATE_PLAYING || s == AudioEngine.STATE_PAUSED
+                || s == AudioEngine.STATE_PREPARED) {
+            stopPipeline();
+            state = AudioEngine.STATE_STOPPED;
+            notifyPlaybackStopped();
+            Log.d(TAG, "Playback stopped");
+        }
+    }
+
+    /**
+     * Seek to position in milliseconds
+     */
+    public void seekTo(int positionMs) {
+        int s = state;
+        if (s == AudioEngine.STATE_PREPARED || s == AudioEngine.STATE_PLAYING
+                || s == AudioEngine.STATE_PAUSED) {
+            seekRequestUs.set(Math.max(0, positionMs) * 1000L);
+            synchronized (pauseLock) {
+                pauseLock.notifyAll();
+            }
+            Log.d(TAG, "Seek requested: " + positionMs + "ms");
+        }
+    }
+
+    /**
+     * Get current playback position in milliseconds
+     */
+    public int getCurrentPosition() {
+        int s = state;
+        if (s != AudioEngine.STATE_PLAYING && s != AudioEngine.STATE_PAUSED) {
+            return 0;
+        }
+        AudioTrack track = audioTrack;
+        int rate = sampleRate;
+        if (track == null || rate <= 0) {
+            return (int) seekBaseMs;
+        }
+        try {
+            long head = track.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+            return (int) (seekBaseMs + head * 1000 / rate);
+        } catch (IllegalStateException e) {
+            return (int) seekBaseMs;
+        }
+    }
+
+    /**
+     * Get track duration in milliseconds
+     */
+    public int getDuration() {
+        int s = state;
+        if (s == AudioEngine.STATE_PREPARED || s == AudioEngine.STATE_PLAYING
+                || s == AudioEngine.STATE_PAUSED) {
+            return durationMs;
+        }
+        return 0;
+    }
+
+    /**
+     * Set volume (0.0 - 1.0)
+     */
+    public void setVolume(float volume) {
+        this.volume = Math.max(0.0f, Math.min(1.0f, volume));
+        gainStage.setGain(this.volume);
+    }
+
+    /**
+     * Get current volume (0.0 - 1.0)
+     */
+    public float getVolume() {
+        return volume;
+    }
+
+    public boolean isPlaying() {
+        return state == AudioEngine.STATE_PLAYING;
+    }
+
+    public boolean isPaused() {
+        return state == AudioEngine.STATE_PAUSED;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public Track getCurrentTrack() {
+        return currentTrack;
+    }
+
+    /**
+     * Get the AudioTrack session (0 until the first track has played)
+     */
+    public int getAudioSessionId() {
+        return audioSessionId;
+    }
+
+    /**
+     * Get the software equalizer applied to the PCM stream.
+     * The instance changes when the DSP kernel is switched.
+     */
+    public SoftwareEqualizer getSoftwareEqualizer() {
+        return softwareEqualizer;
+    }
+
+    /**
+     * Switch equalizer and gain stages to a DSP kernel (DspKernels.KERNEL_*),
+     * keeping the current equalizer settings
+     */
+    public synchronized void setDspKernel(int kernel) {
+        kernelSelected = true;
+        gainStage.setFixedPoint(kernel == DspKernels.KERNEL_FIXED);
+
+        SoftwareEqualizer old = softwareEqualizer;
+        if (old.getKernel() == kernel) return;
+
+        SoftwareEqualizer replacement = DspKernels.createEqualizer(kernel);
+        replacement.copySettingsFrom(old);
+
+        PcmProcessor[] current = processors;
+        PcmProcessor[] updated = new PcmProcessor[current.length];
+        for (int i = 0; i < current.length; i++) {
+            updated[i] = current[i] == old ? replacement : current[i];
+        }
+        softwareEqualizer = replacement;
+        processors = updated;
+        Log.d(TAG, "DSP kernel: " + DspKernels.getKernelName(kernel));
+    }
+
+    /**
+     * Get active DSP kernel (DspKernels.KERNEL_*)
+     */
+    public int getDspKernel() {
+        return softwareEqualizer.getKernel();
+    }
+
+    /**
+     * Append a processing stage to the output chain
+     */
+    public synchronized void addProcessor(PcmProcessor processor) {
+        if (processor == null) return;
+        PcmProcessor[] current = processors;
+        for (PcmProcessor p : current) {
+            if (p == processor) return;
+        }
+        if (sampleRate > 0) {
+            processor.configure(sampleRate, channelCount);
+        }
+        PcmProcessor[] updated = new PcmProcessor[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = processor;
+        processors = updated;
+    }
+
+    /**
+     * Remove a processing stage from the output chain
+     */
+    public synchronized void removeProcessor(PcmProcessor processor) {
+        PcmProcessor[] current = processors;
+        List<PcmProcessor> remaining = new ArrayList<PcmProcessor>();
+        for (PcmProcessor p : current) {
+            if (p != processor) {
+                remaining.add(p);
+            }
+        }
+        processors = remaining.toArray(new PcmProcessor[remaining.size()]);
+    }
+
+    // Metrics
+
+    /**
+     * Number of times the output thread found the ring buffer empty
+     * while playing
+     */
+    public int getUnderrunCount() {
+        return underrunCount;
+    }
+
+    /**
+     * Ring buffer fill level (0-100)
+     */
+    public int getBufferFillPercent() {
+        return ring.available() * 100 / ring.capacity();
+    }
+
+    /**
+     * Buffered audio in milliseconds
+     */
+    public int getBufferedMs() {
+        int rate = sampleRate;
+        int channels = channelCount;
+        if (rate <= 0 || channels <= 0) return 0;
+        return (int) ((long) ring.available() * 1000 / ((long) rate * channels));
+    }
+
+    /**
+     * Total frames handed to the AudioTrack for the current track
+     */
+    public long getFramesWritten() {
+        return framesWritten;
+    }
+
+    public void resetMetrics() {
+        underrunCount = 0;
+    }
+
+    /**
+     * Release resources
+     */
+    public void release() {
+        stopPipeline();
+        state = AudioEngine.STATE_IDLE;
+        currentTrack = null;
+        Log.d(TAG, "PcmAudioEngine released");
+    }
+
+    /**
+     * Signal both pipeline threads to stop and wait briefly for them.
+     * Threads of an older generation never touch the pipeline again, so
+     * one that outlives the wait is left behind rather than joined.
+     */
+    private void stopPipeline() {
+        running = false;
+        generation++;
+        synchronized (pauseLock) {
+            pauseLock.notifyAll();
+        }
+        long deadline = SystemClock.uptimeMillis() + PIPELINE_JOIN_MS;
+        joinUntil(decoderThread, deadline);
+        joinUntil(outputThread, deadline);
+        decoderThread = null;
+        outputThread = null;
+    }
+
+    private static void joinUntil(Thread thread, long deadline) {
+        if (thread == null || thread == Thread.currentThread()) return;
+        while (thread.isAlive()) {
+            long remaining = deadline - SystemClock.uptimeMillis();
+            if (remaining <= 0) break;
+            try {
+                thread.join(remaining);
+            } catch (InterruptedException e) {
+                // Keep waiting until the deadline
+            }
+        }
+        if (thread.isAlive()) {
+            Log.w(TAG, thread.getName() + " still busy after " + PIPELINE_JOIN_MS + " ms, not waiting");
+        }
+    }
+
+    /**
+     * Check that a pipeline thread still belongs to the loaded track
+     */
+    private boolean isCurrent(int gen) {
+        return running && gen == generation;
+    }
+
+    private static void sleepQuietly(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            // Continue
+        }
+    }
+
+    /**
+     * Producer: decodes into the ring buffer
+     */
+    private class DecoderLoop implements Runnable {
+        private final int gen;
+        private final String path;
+        private final PcmDecoder decoder;
+        private final short[] decodeChunk;
+
+        DecoderLoop(int gen, String path) {
+            this.gen = gen;
+            this.path = path;
+            this.decoder = new PcmDecoder();
+            this.decodeChunk = new short[CHUNK_SAMPLES];
+        }
+
+        @Override
+        public void run() {
+            try {
+                decoder.open(path);
+            } catch (IOException e) {
+                Log.e(TAG, "Error opening track", e);
+                postError(gen, "Failed to load track: " + e.getMessage());
+                decoder.release();
+                return;
+            }
+            if (!isCurrent(gen)) {
+                // Stopped while opening
+                decoder.release();
+                return;
+            }
+
+            sampleRate = decoder.getSampleRate();
+            channelCount = decoder.getChannelCount();
+            durationMs = (int) (decoder.getDurationUs() / 1000);
+
+            if (!kernelSelected) {
+                // One-off microbenchmark, kept off the UI thread
+                setDspKernel(DspKernels.getPreferredKernel());
+                Log.i(TAG, "DSP kernel selected: " + DspKernels.getReport());
+            }
+            postPrepared(gen);
+
+            try {
+                while (isCurrent(gen) && flushRequested) {
+                    sleepQuietly(2);
+                }
+                while (isCurrent(gen)) {
+                    long seekUs = seekRequestUs.getAndSet(-1);
+                    if (seekUs >= 0) {
+                        decoder.seekTo(seekUs);
+                        decoderEos = false;
+                        seekBaseMs = seekUs / 1000;
+                        // Have the consumer drop everything decoded before the seek
+                        flushRequested = true;
+                        while (isCurrent(gen) && flushRequested) {
+                            sleepQuietly(2);
+                        }
+                        continue;
+                    }
+
+                    if (decoderEos) {
+                        // Nothing left to decode unless a seek arrives
+                        sleepQuietly(10);
+                        continue;
+                    }
+
+                    int n = decoder.read(decodeChunk, 0, decodeChunk.length);
+                    if (n == PcmDecoder.END_OF_STREAM) {
+                        decoderEos = true;
+                        continue;
+                    }
+                    if (decoder.consumeFormatChange()) {
+                        sampleRate = decoder.getSampleRate();
+                        channelCount = decoder.getChannelCount();
+                    }
+
+                    int written = 0;
+                    while (isCurrent(gen) && written < n && seekRequestUs.get() < 0) {
+                        written += ring.write(decodeChunk, written, n - written);
+                        if (written < n) {
+                            sleepQuietly(5);
+                        }
+                    }
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Decoder failed", e);
+                postError(gen, "Decode error: " + e.getMessage());
+            } finally {
+                decoder.release();
+            }
+        }
+    }
+
+    /**
+     * Consumer: drains the ring buffer into an AudioTrack
+     */
+    private class OutputLoop implements Runnable {
+        private final int gen;
+
+        OutputLoop(int gen) {
+            this.gen = gen;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+
+            AudioTrack track = null;
+            int trackRate = 0;
+            int trackChannels = 0;
+            boolean trackPaused = false;
+            boolean primed = false;
+            boolean starved = false;
+
+            try {
+                while (isCurrent(gen)) {
+                    if (flushRequested) {
+                        ring.clear();
+                        if (track != null) {
+                            track.pause();
+                            track.flush();
+                            trackPaused = true;
+                        }
+                        framesWritten = 0;
+                        primed = false;
+                        flushRequested = false;
+                        continue;
+                    }
+
+                    if (state == AudioEngine.STATE_PAUSED) {
+                        if (track != null && !trackPaused) {
+                            track.pause();
+                            trackPaused = true;
+                        }
+                        synchronized (pauseLock) {
+                            if (isCurrent(gen) && state == AudioEngine.STATE_PAUSED && !flushRequested) {
+                                try {
+                                    pauseLock.wait(50);
+                                } catch (InterruptedException e) {
+                                    // Continue
+                                }
+                            }
+                        }
+                        continue;
+                    }
+
+                    int rate = sampleRate;
+                    int channels = channelCount;
+                    if (track == null || rate != trackRate || channels != trackChannels) {
+                        if (track != null) {
+                            track.release();
+                        }
+                        track = createAudioTrack(rate, channels);
+                        if (!isCurrent(gen)) break;
+                        audioTrack = track;
+                        trackRate = rate;
+                        trackChannels = channels;
+                        trackPaused = true;
+                        for (PcmProcessor processor : processors) {
+                            processor.configure(rate, channels);
+                        }
+                    }
+
+                    // Only move whole frames
+                    int want = Math.min(outputChunk.length, ring.available());
+                    want -= want % channels;
+
+                    if (want == 0) {
+                        if (decoderEos) {
+                            drain(track, channels);
+                            postCompleted(gen);
+                            return;
+                        }
+                        if (primed && !starved) {
+                            underrunCount++;
+                            starved = true;
+                        }
+                        sleepQuietly(2);
+                        continue;
+                    }
+
+                    int n = ring.read(outputChunk, 0, want);
+                    PcmProcessor[] chain = processors;
+                    for (int i = 0; i < chain.length; i++) {
+                        chain[i].process(outputChunk, 0, n);
+                    }
+                    if (trackPaused) {
+                        track.play();
+                        trackPaused = false;
+                    }
+                    track.write(outputChunk, 0, n);
+                    framesWritten += n / channels;
+                    primed = true;
+                    starved = false;
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Output failed", e);
+                postError(gen, "Output error: " + e.getMessage());
+            } finally {
+                if (audioTrack == track) {
+                    audioTrack = null;
+                }
+                if (track != null) {
+                    try {
+                        track.stop();
+                    } catch (IllegalStateException e) {
+                        // Ignore
+                    }
+                    track.release();
+                }
+            }
+        }
+
+        private void drain(AudioTrack track, int channels) {
+            if (track.getPlayState() != AudioTrack.PLAYSTATE_PLAYING) return;
+            long target = framesWritten;
+            long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+            while (isCurrent(gen) && System.currentTimeMillis() < deadline
+                    && (track.getPlaybackHeadPosition() & 0xFFFFFFFFL) < target) {
+                sleepQuietly(10);
+            }
+        }
+    }
+
+    private AudioTrack createAudioTrack(int rate, int channels) {
+        int channelConfig = channels == 1
+                ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+        int minSize = AudioTrack.getMinBufferSize(rate, channelConfig,
+                AudioFormat.ENCODING_PCM_16BIT);
+        int bufferSize = Math.max(minSize * 2, CHUNK_SAMPLES * 2);
+
+        AudioTrack track = new AudioTrack(AudioManager.STREAM_MUSIC, rate, channelConfig,
+                AudioFormat.ENCODING_PCM_16BIT, bufferSize, AudioTrack.MODE_STREAM,
+                audioSessionId);
+        audioSessionId = track.getAudioSessionId();
+        Log.d(TAG, "AudioTrack created: " + rate + " Hz, " + channels + " ch, session "
+                + audioSessionId);
+        return track;
+    }
+
+    // Main-thread callbacks from the pipeline threads
+
+    private void postPrepared(final int gen) {
+        handler.post(new Runnable() {
+            public void run() {
+                if (gen != generation || state != AudioEngine.STATE_PREPARING) return;
+                state = AudioEngine.STATE_PREPARED;
+                if (currentTrack != null) {
+                    currentTrack.setDurationMs(durationMs);
+                    Log.d(TAG, "Track prepared: " + currentTrack.getDisplayString());
+                }
+                // Auto-play after preparing
+                play();
+            }
+        });
+    }
+
+    private void postCompleted(final int gen) {
+        handler.post(new Runnable() {
+            public void run() {
+                if (gen != generation) return;
+                Log.d(TAG, "Playback completed");
+                stopPipeline();
+                state = AudioEngine.STATE_STOPPED;
+                notifyPlaybackCompleted();
+            }
+        });
+    }
+
+    private void postError(final int gen, final String error) {
+        handler.post(new Runnable() {
+            public void run() {
+                if (gen != generation) return;
+                stopPipeline();
+                state = AudioEngine.STATE_ERROR;
+                notifyPlaybackError(error);
+            }
+        });
+    }
+
+    /**
+     * Add listener
+     */
+    public void addListener(AudioEngine.AudioEngineListener listener) {
+        if (listener != null && !listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    /**
+     * Remove listener
+     */
+    public void removeListener(AudioEngine.AudioEngineListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Notify progress update (call from UI thread periodically)
+     */
+    public void notifyProgress() {
+        if (state == AudioEngine.STATE_PLAYING || state == AudioEngine.STATE_PAUSED) {
+            int current = getCurrentPosition();
+            int duration = getDuration();
+            for (AudioEngine.AudioEngineListener listener : listeners) {
+                listener.onProgressUpdate(current, duration);
+            }
+        }
+    }
+
+    // Notification methods
+    private void notifyPlaybackStarted() {
+        for (AudioEngine.AudioEngineListener listener : listeners) {
+            listener.onPlaybackStarted(currentTrack);
+        }
+    }
+
+    private void notifyPlaybackPaused() {
+        for (AudioEngine.AudioEngineListener listener : listeners) {
+            listener.onPlaybackPaused();
+        }
+    }
+
+    private void notifyPlaybackStopped() {
+        for (AudioEngine.AudioEngineListener listener : listeners) {
+            listener.onPlaybackStopped();
+        }
+    }
+
+    private void notifyPlaybackCompleted() {
+        Track completedTrack = currentTrack;
+        for (AudioEngine.AudioEngineListener listener : listeners) {
+            listener.onPlaybackCompleted(completedTrack);
+        }
+    }
+
+    private void notifyPlaybackError(String error) {
+        for (AudioEngine.AudioEngineListener listener : listeners) {
+            listener.onPlaybackError(error);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.rockbox.winamp.audio;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Decodes an audio file to interleaved 16-bit PCM using
+ * MediaExtractor and MediaCodec.
+ *
+ * read() copies decoded samples straight out of the codec's output
+ * buffers through cached ShortBuffer views, so steady-state decoding
+ * allocates nothing.
+ */
+public class PcmDecoder {
+
+    private static final String TAG = "PcmDecoder";
+
+    // Result of read() once the stream is finished
+    public static final int END_OF_STREAM = -1;
+
+    private static final long TIMEOUT_US = 10000;
+
+    private MediaExtractor extractor;
+    private MediaCodec codec;
+    private ByteBuffer[] inputBuffers;
+    private ShortBuffer[] outputBuffers;
+    private final MediaCodec.BufferInfo info;
+
+    private int sampleRate;
+    private int channelCount;
+    private long durationUs;
+
+    private boolean inputDone;
+    private boolean outputDone;
+    private boolean formatChanged;
+
+    // Output buffer currently being drained
+    private int pendingIndex;
+    private int pendingRemaining;
+
+    public PcmDecoder() {
+        this.info = new MediaCodec.BufferInfo();
+        this.pendingIndex = -1;
+    }
+
+    /**
+     * Open a file and start the decoder
+     */
+    public void open(String path) throws IOException {
+        release();
+
+        extractor = new MediaExtractor();
+        extractor.setDataSource(path);
+
+        MediaFormat format = null;
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat candidate = extractor.getTrackFormat(i);
+            String mime = candidate.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("audio/")) {
+                extractor.selectTrack(i);
+                format = candidate;
+                break;
+            }
+        }
+
+        if (format == null) {
+            release();
+            throw new IOException("No audio track in " + path);
+        }
+
+        sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        durationUs = format.containsKey(MediaFormat.KEY_DURATION)
+                ? format.getLong(MediaFormat.KEY_DURATION) : 0;
+
+        try {
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+        } catch (RuntimeException e) {
+            release();
+            throw new IOException("Cannot create decoder: " + e.getMessage());
+        }
+
+        inputBuffers = codec.getInputBuffers();
+        refreshOutputBuffers();
+        inputDone = false;
+        outputDone = false;
+        pendingIndex = -1;
+        pendingRemaining = 0;
+
+        Log.d(TAG, "Opened " + path + " (" + sampleRate + " Hz, " + channelCount + " ch)");
+    }
+
+    /**
+     * Read decoded samples (interleaved)
+     * @return samples copied, 0 if none ready yet, or END_OF_STREAM
+     */
+    public int read(short[] dst, int offset, int length) {
+        if (codec == null) return END_OF_STREAM;
+
+        if (pendingIndex < 0) {
+            if (outputDone) return END_OF_STREAM;
+            feedInput();
+            if (!dequeueOutput()) return 0;
+        }
+
+        ShortBuffer src = outputBuffers[pendingIndex];
+        int n = Math.min(length, pendingRemaining);
+        src.get(dst, offset, n);
+        pendingRemaining -= n;
+
+        if (pendingRemaining == 0) {
+            codec.releaseOutputBuffer(pendingIndex, false);
+            pendingIndex = -1;
+        }
+        return n;
+    }
+
+    private void feedInput() {
+        if (inputDone) return;
+
+        int index = codec.dequeueInputBuffer(TIMEOUT_US);
+        if (index < 0) return;
+
+        ByteBuffer buffer = inputBuffers[index];
+        int size = extractor.readSampleData(buffer, 0);
+        if (size < 0) {
+            codec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            inputDone = true;
+        } else {
+            codec.queueInputBuffer(index, 0, size, extractor.getSampleTime(), 0);
+            extractor.advance();
+        }
+    }
+
+    private boolean dequeueOutput() {
+        int index = codec.dequeueOutputBuffer(info, TIMEOUT_US);
+
+        if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+            refreshOutputBuffers();
+            return false;
+        }
+        if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+            MediaFormat format = codec.getOutputFormat();
+            sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            formatChanged = true;
+            return false;
+        }
+        if (index < 0) {
+            return false;
+        }
+
+        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            outputDone = true;
+        }
+
+        if (info.size == 0) {
+            codec.releaseOutputBuffer(index, false);
+            return false;
+        }
+
+        ShortBuffer view = outputBuffers[index];
+        view.limit((info.offset + info.size) / 2);
+        view.position(info.offset / 2);
+        pendingIndex = index;
+        pendingRemaining = info.size / 2;
+        return true;
+    }
+
+    private void refreshOutputBuffers() {
+        ByteBuffer[] buffers = codec.getOutputBuffers();
+        outputBuffers = new ShortBuffer[buffers.length];
+        for (int i = 0; i < buffers.length; i++) {
+            outputBuffers[i] = buffers[i].duplicate().order(ByteOrder.nativeOrder()).asShortBuffer();
+        }
+    }
+
+    /**
+     * Seek to a position; buffered output is discarded
+     */
+    public void seekTo(long positionUs) {
+        if (codec == null) return;
+
+        if (pendingIndex >= 0) {
+            codec.releaseOutputBuffer(pendingIndex, false);
+            pendingIndex = -1;
+            pendingRemaining = 0;
+        }
+        extractor.seekTo(positionUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        codec.flush();
+        inputDone = false;
+        outputDone = false;
+    }
+
+    /**
+     * Check (and clear) whether the output format changed since last call
+     */
+    public boolean consumeFormatChange() {
+        boolean changed = formatChanged;
+        formatChanged = false;
+        return changed;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    public long getDurationUs() {
+        return durationUs;
+    }
+
+    /**
+     * Release codec and extractor
+     */
+    public void release() {
+        if (codec != null) {
+            try {
+                codec.stop();
+            } catch (IllegalStateException e) {
+                // Ignore
+            }
+            codec.release();
+            codec = null;
+        }
+        if (extractor != null) {
+            extractor.release();
+            extractor = null;
+        }
+        inputBuffers = null;
+        outputBuffers = null;
+        pendingIndex = -1;
+        pendingRemaining = 0;
+    }
+}
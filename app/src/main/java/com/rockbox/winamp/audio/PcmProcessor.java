@@ -0,0 +1,19 @@
+package com.rockbox.winamp.audio;
+
+/**
+ * In-place processing stage for the PCM pipeline.
+ * Called on the PcmAudioEngine output thread; implementations must not
+ * allocate or block in process().
+ */
+public interface PcmProcessor {
+
+    /**
+     * Called before the first buffer and whenever the stream format changes
+     */
+    void configure(int sampleRate, int channelCount);
+
+    /**
+     * Process interleaved 16-bit samples in place
+     */
+    void process(short[] buffer, int offset, int length);
+}
@@ -0,0 +1,100 @@
+package com.rockbox.winamp.audio;
+
+/**
+ * Lock-free single-producer/single-consumer ring buffer for 16-bit PCM.
+ * Storage is allocated once; read() and write() never allocate.
+ *
+ * Only the producer thread may call write(); only the consumer thread
+ * may call read() and clear(). Positions are free-running counters, so
+ * fill level is simply writePos - readPos.
+ */
+public class PcmRingBuffer {
+
+    private final short[] buffer;
+    private final int mask;
+
+    // Written by producer, read by consumer
+    private volatile long writePos;
+    // Written by consumer, read by producer
+    private volatile long readPos;
+
+    /**
+     * @param minCapacity Minimum capacity in samples (rounded up to a power of two)
+     */
+    public PcmRingBuffer(int minCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(2, minCapacity - 1)) << 1;
+        this.buffer = new short[capacity];
+        this.mask = capacity - 1;
+        this.writePos = 0;
+        this.readPos = 0;
+    }
+
+    /**
+     * Get capacity in samples
+     */
+    public int capacity() {
+        return buffer.length;
+    }
+
+    /**
+     * Get number of samples available to read
+     */
+    public int available() {
+        return (int) (writePos - readPos);
+    }
+
+    /**
+     * Get free space in samples
+     */
+    public int free() {
+        return buffer.length - available();
+    }
+
+    /**
+     * Write samples (producer thread only)
+     * @return number of samples written, may be less than length when full
+     */
+    public int write(short[] src, int offset, int length) {
+        long w = writePos;
+        int n = Math.min(length, buffer.length - (int) (w - readPos));
+        if (n <= 0) return 0;
+
+        int start = (int) (w & mask);
+        int first = Math.min(n, buffer.length - start);
+        System.arraycopy(src, offset, buffer, start, first);
+        if (n > first) {
+            System.arraycopy(src, offset + first, buffer, 0, n - first);
+        }
+
+        // Publish after the copy so the consumer never sees stale samples
+        writePos = w + n;
+        return n;
+    }
+
+    /**
+     * Read samples (consumer thread only)
+     * @return number of samples read, may be less than length when empty
+     */
+    public int read(short[] dst, int offset, int length) {
+        long r = readPos;
+        int n = Math.min(length, (int) (writePos - r));
+        if (n <= 0) return 0;
+
+        int start = (int) (r & mask);
+        int first = Math.min(n, buffer.length - start);
+        System.arraycopy(buffer, start, dst, offset, first);
+        if (n > first) {
+            System.arraycopy(buffer, 0, dst, offset + first, n - first);
+        }
+
+        readPos = r + n;
+        return n;
+    }
+
+    /**
+     * Drop all buffered samples (consumer thread only)
+     */
+    public void clear() {
+        readPos = writePos;
+    }
+}
@@ -3,27 +3,73 @@ package com.rockbox.winamp.audio;
 import android.content.Context;
 import android.util.Log;
 
+import com.rockbox.winamp.util.FileScanner;
+import com.rockbox.winamp.util.LibraryWatcher;
+
+import java.util.ArrayList;
+import java.util.List;
+
 /**
- * Coordinates playback between AudioEngine and Playlist.
+ * Coordinates playback between the selected engine and Playlist.
  * Implements Winamp-like playback logic.
+ *
+ * ENGINE_MEDIA_PLAYER (default) plays through AudioEngine with gapless,
+ * crossfade and ReplayGain. ENGINE_PCM decodes through PcmAudioEngine so
+ * the software equalizer and the visualizer's PCM tap see the samples;
+ * it is created on first selection and takes over the equalizer settings.
  */
 public class PlaybackController implements AudioEngine.AudioEngineListener,
-                                           Playlist.PlaylistListener {
+                                           Playlist.PlaylistRangeListener {
 
     private static final String TAG = "PlaybackController";
 
+    public static final int ENGINE_MEDIA_PLAYER = 0;
+    public static final int ENGINE_PCM = 1;
+
     private Context context;
     private AudioEngine audioEngine;
+    private PcmAudioEngine pcmEngine;
+    private PlaybackEngine engine;
+    private int engineType;
+    private List<AudioEngine.AudioEngineListener> engineListeners;
     private Playlist playlist;
+    private VisualizerFeed visualizerFeed;
+    private ReplayGain replayGain;
+    private DurationResolver durationResolver;
+    private LibraryWatcher libraryWatcher;
+    private SessionManager sessionManager;
+    private boolean visualizerEnabled;
+
+    // Restored track and where to start it on its first play()
+    private Track resumeTrack;
+    private int resumePositionMs;
 
     public PlaybackController(Context context) {
         this.context = context;
         this.audioEngine = new AudioEngine(context);
+        this.engine = audioEngine;
+        this.engineType = ENGINE_MEDIA_PLAYER;
+        this.engineListeners = new ArrayList<AudioEngine.AudioEngineListener>();
         this.playlist = new Playlist();
+        this.durationResolver = new DurationResolver(playlist);
+        this.visualizerFeed = new VisualizerFeed();
+        this.replayGain = new ReplayGain(context);
+        this.libraryWatcher = new LibraryWatcher(new FileScanner(context));
 
         // Wire listeners
-        audioEngine.addListener(this);
+        addEngineListener(this);
         playlist.addListener(this);
+        libraryWatcher.attachPlaylist(playlist);
+        audioEngine.setReplayGain(replayGain);
+        replayGain.setListener(new ReplayGain.Listener() {
+            public void onGainResolved(Track track) {
+                if (track.equals(audioEngine.getCurrentTrack())
+                        || track.equals(audioEngine.getNextTrack())) {
+                    audioEngine.refreshReplayGain();
+                }
+            }
+        });
+        this.sessionManager = new SessionManager(context, this);
 
         Log.d(TAG, "PlaybackController initialized");
     }
@@ -34,12 +80,15 @@ public class PlaybackController implements AudioEngine.AudioEngineListener,
     public void play() {
         Track track = playlist.getCurrentTrack();
         if (track != null) {
-            if (audioEngine.isPaused() && track.equals(audioEngine.getCurrentTrack())) {
+            replayGain.requestFirst(track);
+            if (engine.isPaused() && track.equals(engine.getCurrentTrack())) {
                 // Resume current track
-                audioEngine.play();
+                engine.play();
             } else {
-                // Load and play new track
-                audioEngine.loadTrack(track);
+                // Load and play new track (from the saved position if resuming)
+                int startMs = track.equals(resumeTrack) ? resumePositionMs : 0;
+                resumeTrack = null;
+                engine.loadTrack(track, startMs);
             }
         } else {
             Log.w(TAG, "No track to play");
@@ -50,21 +99,21 @@ public class PlaybackController implements AudioEngine.AudioEngineListener,
      * Pause playback
      */
     public void pause() {
-        audioEngine.pause();
+        engine.pause();
     }
 
     /**
      * Stop playback
      */
     public void stop() {
-        audioEngine.stop();
+        engine.stop();
     }
 
     /**
      * Toggle play/pause
      */
     public void togglePlayPause() {
-        if (audioEngine.isPlaying()) {
+        if (engine.isPlaying()) {
             pause();
         } else {
             play();
@@ -88,8 +137,8 @@ public class PlaybackController implements AudioEngine.AudioEngineListener,
      */
     public void previous() {
         // If more than 3 seconds into track, restart current track
-        if (audioEngine.getCurrentPosition() > 3000) {
-            audioEngine.seekTo(0);
+        if (engine.getCurrentPosition() > 3000) {
+            engine.seekTo(0);
         } else {
             // Otherwise go to previous track
             if (playlist.previous()) {
@@ -104,10 +153,11 @@ public class PlaybackController implements AudioEngine.AudioEngineListener,
      * Seek to position (0-100%)
      */
     public void seekToPercent(float percent) {
-        int duration = audioEngine.getDuration();
+        int duration = engine.getDuration();
         if (duration > 0) {
             int position = (int) (duration * Math.max(0, Math.min(1, percent)));
-            audioEngine.seekTo(position);
+            engine.seekTo(position);
+            sessionManager.requestSave();
         }
     }
 
@@ -116,14 +166,15 @@ public class PlaybackController implements AudioEngine.AudioEngineListener,
      */
     public void setVolume(int volume) {
         float normalizedVolume = Math.max(0, Math.min(100, volume)) / 100.0f;
-        audioEngine.setVolume(normalizedVolume);
+        engine.setVolume(normalizedVolume);
+        sessionManager.requestSave();
     }
 
     /**
      * Get volume (0-100)
      */
     public int getVolume() {
-        return (int) (audioEngine.getVolume() * 100);
+        return (int) (engine.getVolume() * 100);
     }
 
     /**
@@ -152,6 +203,8 @@ public class PlaybackController implements AudioEngine.AudioEngineListener,
      */
     public void cycleRepeat() {
         playlist.cycleRepeatMode();
+        prepareUpcoming();
+        sessionManager.requestSave();
     }
 
     /**
@@ -161,6 +214,82 @@ public class PlaybackController implements AudioEngine.AudioEngineListener,
         return playlist.getRepeatMode();
     }
 
+    /**
+     * Enable or disable gapless playback
+     */
+    public void setGapless(boolean enabled) {
+        audioEngine.setGaplessEnabled(enabled);
+        prepareUpcoming();
+    }
+
+    /**
+     * Get gapless state
+     */
+    public boolean isGapless() {
+        return audioEngine.isGaplessEnabled();
+    }
+
+    /**
+     * Configure crossfade between tracks (fadeMs of 0 disables it)
+     *
+     * @param fadeMs Fade length in milliseconds
+     * @param curve Crossfader.CURVE_LINEAR or Crossfader.CURVE_EQUAL_POWER
+     */
+    public void setCrossfade(int fadeMs, int curve) {
+        audioEngine.setCrossfade(fadeMs, curve);
+        prepareUpcoming();
+    }
+
+    /**
+     * Get crossfade length in milliseconds (0 = off)
+     */
+    public int getCrossfadeMs() {
+        return audioEngine.getCrossfader().getFadeMs();
+    }
+
+    /**
+     * Set ReplayGain mode (ReplayGain.MODE_OFF, MODE_TRACK, MODE_ALBUM)
+     */
+    public void setReplayGainMode(int mode) {
+        replayGain.setMode(mode);
+        if (mode != ReplayGain.MODE_OFF) {
+            replayGain.requestAll(playlist.getTracks());
+        }
+        audioEngine.refreshReplayGain();
+    }
+
+    public int getReplayGainMode() {
+        return replayGain.getMode();
+    }
+
+    /**
+     * Get ReplayGain settings
+     */
+    public ReplayGain getReplayGain() {
+        return replayGain;
+    }
+
+    /**
+     * Hand the upcoming playlist track to the engine for gapless playback.
+     * Only valid while the engine is playing the playlist's current track;
+     * otherwise any pre-prepared player is dropped, unless it is for the
+     * new current track (a skip to the next track), which loadTrack()
+     * then switches to without preparing again.
+     */
+    private void prepareUpcoming() {
+        // The PCM engine plays one track at a time
+        if (engine != audioEngine) return;
+        Track current = playlist.getCurrentTrack();
+        if (current != null && current.equals(audioEngine.getCurrentTrack())
+                && (audioEngine.isPlaying() || audioEngine.isPaused())) {
+            Track next = playlist.peekNext();
+            replayGain.requestFirst(next);
+            audioEngine.prepareNext(next);
+        } else if (current == null || !current.equals(audioEngine.getNextTrack())) {
+            audioEngine.prepareNext(null);
+        }
+    }
+
     /**
      * Get playlist
      */
@@ -169,12 +298,90 @@ public class PlaybackController implements AudioEngine.AudioEngineListener,
     }
 
     /**
-     * Get audio engine
+     * Get the MediaPlayer engine (owns gapless, crossfade and the
+     * equalizer settings, whichever engine is selected)
      */
     public AudioEngine getAudioEngine() {
         return audioEngine;
     }
 
+    /**
+     * Get the engine currently used for playback
+     */
+    public PlaybackEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Listen to whichever engine is selected, now and after switching
+     */
+    public void addEngineListener(AudioEngine.AudioEngineListener listener) {
+        if (listener != null && !engineListeners.contains(listener)) {
+            engineListeners.add(listener);
+            engine.addListener(listener);
+        }
+    }
+
+    /**
+     * Select the playback engine (ENGINE_MEDIA_PLAYER or ENGINE_PCM).
+     * Playback stops; the current track resumes where it was on the next
+     * play().
+     */
+    public void setEngineType(int type) {
+        if (type != ENGINE_MEDIA_PLAYER && type != ENGINE_PCM) return;
+        if (type == engineType) return;
+
+        PlaybackEngine previous = engine;
+        int positionMs = getResumePositionMs();
+        previous.stop();
+        for (AudioEngine.AudioEngineListener listener : engineListeners) {
+            previous.removeListener(listener);
+        }
+
+        if (type == ENGINE_PCM) {
+            audioEngine.prepareNext(null);
+            if (pcmEngine == null) {
+                pcmEngine = new PcmAudioEngine();
+                pcmEngine.addProcessor(visualizerFeed.createPcmTap());
+            }
+            applyEqualizerState(pcmEngine.getSoftwareEqualizer(), audioEngine.getEqualizerState());
+            engine = pcmEngine;
+        } else {
+            // Frees the decoder and AudioTrack; the instance is reused if selected again
+            pcmEngine.release();
+            engine = audioEngine;
+        }
+        engineType = type;
+        engine.setVolume(previous.getVolume());
+        for (AudioEngine.AudioEngineListener listener : engineListeners) {
+            engine.addListener(listener);
+        }
+        setResumePosition(positionMs);
+        sessionManager.requestSave();
+        Log.d(TAG, "Playback engine: " + (type == ENGINE_PCM ? "PCM" : "MediaPlayer"));
+    }
+
+    public int getEngineType() {
+        return engineType;
+    }
+
+    /**
+     * Get the PCM engine's software equalizer, or null if that engine is
+     * not selected
+     */
+    public SoftwareEqualizer getSoftwareEqualizer() {
+        return engine == pcmEngine ? pcmEngine.getSoftwareEqualizer() : null;
+    }
+
+    private static void applyEqualizerState(SoftwareEqualizer equalizer, EqualizerState state) {
+        short[] levels = state.getBandLevels();
+        int bands = Math.min(levels.length, SoftwareEqualizer.NUM_BANDS);
+        for (int band = 0; band < bands; band++) {
+            equalizer.setBandLevel(band, levels[band]);
+        }
+        equalizer.setEnabled(state.isEnabled());
+    }
+
     /**
      * Get current track
      */
@@ -186,41 +393,114 @@ public class PlaybackController implements AudioEngine.AudioEngineListener,
      * Check if playing
      */
     public boolean isPlaying() {
-        return audioEngine.isPlaying();
+        return engine.isPlaying();
     }
 
     /**
      * Check if paused
      */
     public boolean isPaused() {
-        return audioEngine.isPaused();
+        return engine.isPaused();
     }
 
     /**
      * Get current position in seconds
      */
     public int getCurrentPositionSeconds() {
-        return audioEngine.getCurrentPosition() / 1000;
+        return engine.getCurrentPosition() / 1000;
+    }
+
+    /**
+     * Get where the current track would resume, in milliseconds: the
+     * playback position, or the saved one until a restored track is played
+     */
+    public int getResumePositionMs() {
+        Track current = playlist.getCurrentTrack();
+        if (current == null) return 0;
+        if (resumeTrack != null) {
+            return current.equals(resumeTrack) ? resumePositionMs : 0;
+        }
+        if (current.equals(engine.getCurrentTrack()) && (isPlaying() || isPaused())) {
+            return engine.getCurrentPosition();
+        }
+        return 0;
+    }
+
+    /**
+     * Start the current track at a position the next time it is played
+     */
+    public void setResumePosition(int positionMs) {
+        resumeTrack = positionMs > 0 ? playlist.getCurrentTrack() : null;
+        resumePositionMs = positionMs;
     }
 
     /**
      * Get duration in seconds
      */
     public int getDurationSeconds() {
-        return audioEngine.getDuration() / 1000;
+        return engine.getDuration() / 1000;
+    }
+
+    /**
+     * Get visualizer data feed
+     */
+    public VisualizerFeed getVisualizerFeed() {
+        return visualizerFeed;
+    }
+
+    /**
+     * Enable or disable visualizer capture on the playback session
+     */
+    public void setVisualizerEnabled(boolean enabled) {
+        this.visualizerEnabled = enabled;
+        if (enabled) {
+            visualizerFeed.attach(engine.getAudioSessionId());
+        } else {
+            visualizerFeed.detach();
+        }
+    }
+
+    /**
+     * Get background duration resolver (listen to it to redraw durations)
+     */
+    public DurationResolver getDurationResolver() {
+        return durationResolver;
+    }
+
+    /**
+     * Get watcher that keeps the playlist in step with the disk
+     */
+    public LibraryWatcher getLibraryWatcher() {
+        return libraryWatcher;
+    }
+
+    /**
+     * Get session persistence (restore once the UI is up)
+     */
+    public SessionManager getSessionManager() {
+        return sessionManager;
     }
 
     /**
      * Notify progress (call periodically from UI)
      */
     public void notifyProgress() {
-        audioEngine.notifyProgress();
+        engine.notifyProgress();
     }
 
     /**
      * Release resources
      */
     public void release() {
+        // Before the engine goes, while position and equalizer are readable
+        sessionManager.release();
+        visualizerFeed.release();
+        replayGain.release();
+        durationResolver.release();
+        libraryWatcher.release();
+        if (pcmEngine != null) {
+            pcmEngine.release();
+        }
         audioEngine.release();
         Log.d(TAG, "PlaybackController released");
     }
@@ -229,6 +509,11 @@ public class PlaybackController implements AudioEngine.AudioEngineListener,
     @Override
     public void onPlaybackStarted(Track track) {
         Log.d(TAG, "Playback started: " + track.getDisplayString());
+        if (visualizerEnabled) {
+            // Follows the session if the engine had to create a new one
+            visualizerFeed.attach(engine.getAudioSessionId());
+        }
+        prepareUpcoming();
     }
 
     @Override
@@ -248,6 +533,18 @@ public class PlaybackController implements AudioEngine.AudioEngineListener,
         next();
     }
 
+    @Override
+    public void onTrackAdvanced(Track previous, Track current) {
+        Log.d(TAG, "Track advanced: " + current.getDisplayString());
+        // Engine already switched players; only move the playlist cursor
+        if (!playlist.next()) {
+            stop();
+        } else if (!current.equals(playlist.getCurrentTrack())) {
+            // Playlist no longer matches what the engine chained
+            play();
+        }
+    }
+
     @Override
     public void onPlaybackError(String error) {
         Log.e(TAG, "Playback error: " + error);
@@ -260,14 +557,52 @@ public class PlaybackController implements AudioEngine.AudioEngineListener,
         // Progress updates are forwarded to UI by getters
     }
 
-    // Playlist.PlaylistListener implementation
+    // Playlist.PlaylistRangeListener implementation
     @Override
     public void onPlaylistChanged() {
         Log.d(TAG, "Playlist changed: " + playlist.size() + " tracks");
+        requestTrackInfo(playlist.getTracks());
+        prepareUpcoming();
+    }
+
+    @Override
+    public void onTracksInserted(int from, int count) {
+        // Only the new tracks; a streaming scan inserts many small ranges
+        requestTrackInfo(new ArrayList<Track>(playlist.getTracks(from, from + count)));
+        prepareUpcoming();
+    }
+
+    @Override
+    public void onTracksRemoved(int from, int count) {
+        prepareUpcoming();
+    }
+
+    @Override
+    public void onTrackMoved(int from, int to) {
+        prepareUpcoming();
+    }
+
+    @Override
+    public void onTracksUpdated(int from, int count) {
+        // Order unchanged, nothing to prepare
+    }
+
+    /**
+     * Resolve gains and durations ahead of playback so track starts never
+     * wait on them, and watch the tracks' folders
+     */
+    private void requestTrackInfo(List<Track> tracks) {
+        replayGain.requestAll(tracks);
+        durationResolver.requestAll(tracks);
+        libraryWatcher.watchTracks(tracks);
     }
 
     @Override
     public void onCurrentTrackChanged(Track track) {
         Log.d(TAG, "Current track changed: " + (track != null ? track.getDisplayString() : "null"));
+        if (resumeTrack != null && !resumeTrack.equals(track)) {
+            resumeTrack = null;
+        }
+        prepareUpcoming();
     }
 }
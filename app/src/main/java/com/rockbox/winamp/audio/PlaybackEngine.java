@@ -0,0 +1,58 @@
+package com.rockbox.winamp.audio;
+
+/**
+ * Transport shared by the playback engines (AudioEngine on MediaPlayer,
+ * PcmAudioEngine on its own decoder), so PlaybackController can drive
+ * whichever one is selected. States are the AudioEngine.STATE_* constants;
+ * listeners are called on the main thread.
+ */
+public interface PlaybackEngine {
+
+    /**
+     * Load a track and start it at a position once prepared
+     */
+    void loadTrack(Track track, int startMs);
+
+    void play();
+
+    void pause();
+
+    void stop();
+
+    void seekTo(int positionMs);
+
+    int getCurrentPosition();
+
+    int getDuration();
+
+    /**
+     * Set volume (0.0 - 1.0)
+     */
+    void setVolume(float volume);
+
+    float getVolume();
+
+    boolean isPlaying();
+
+    boolean isPaused();
+
+    int getState();
+
+    Track getCurrentTrack();
+
+    /**
+     * Get the audio session for effects and the visualizer (0 if none yet)
+     */
+    int getAudioSessionId();
+
+    void addListener(AudioEngine.AudioEngineListener listener);
+
+    void removeListener(AudioEngine.AudioEngineListener listener);
+
+    /**
+     * Report progress to listeners (call from UI thread periodically)
+     */
+    void notifyProgress();
+
+    void release();
+}
@@ -2,16 +2,19 @@ package com.rockbox.winamp.audio;
 
 import android.util.Log;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 
 /**
  * Manages the playlist of tracks.
@@ -27,40 +30,88 @@ public class Playlist {
     public static final int REPEAT_ONE = 2;
 
     private List<Track> tracks;
-    private List<Track> shuffledTracks;
+    private List<Track> readOnlyTracks;
+
+    // Bumped on every change listeners are told about
+    private int modCount;
+
+    // Track (equal by file path) -> position in tracks, kept in step with
+    // the list so membership and lookups do not scan it; keyed by the
+    // tracks themselves so no path strings are kept
+    private Map<Track, Integer> positions;
+
+    // Shuffle play order as indices into tracks; the first tracks.size()
+    // entries are valid while shuffle is on. currentIndex is a position in
+    // this order when shuffled, so everything before it has been played.
+    private int[] order;
     private int currentIndex;
     private boolean shuffleEnabled;
     private int repeatMode;
     private Random random;
 
+    // Range event kinds, queued as (kind, a, b) triples during a batch
+    private static final int EVENT_INSERTED = 0;
+    private static final int EVENT_REMOVED = 1;
+    private static final int EVENT_MOVED = 2;
+    private static final int EVENT_UPDATED = 3;
+
+    // Past this many unmergeable ranges a batch is reported as one reset
+    private static final int MAX_BATCHED_EVENTS = 16;
+
     // Listeners
     private List<PlaylistListener> listeners;
 
+    // Batch state (see beginBatch())
+    private int batchDepth;
+    private int[] batchedEvents;
+    private int batchedCount;
+    private int batchInsertEnd;
+    private boolean batchChanged;
+    private boolean batchReset;
+
     public interface PlaylistListener {
         void onPlaylistChanged();
         void onCurrentTrackChanged(Track track);
     }
 
+    /**
+     * Listener told what changed, as index ranges in playlist order to be
+     * applied one after another. Range listeners get these instead of
+     * onPlaylistChanged(), which for them means anything may have changed
+     * (shuffle toggled, or a batch too scattered to describe).
+     */
+    public interface PlaylistRangeListener extends PlaylistListener {
+        void onTracksInserted(int from, int count);
+        void onTracksRemoved(int from, int count);
+        void onTrackMoved(int from, int to);
+
+        /** Track info (title, duration, ...) changed, order did not */
+        void onTracksUpdated(int from, int count);
+    }
+
     public Playlist() {
         this.tracks = new ArrayList<Track>();
-        this.shuffledTracks = new ArrayList<Track>();
+        this.readOnlyTracks = Collections.unmodifiableList(tracks);
+        this.positions = new HashMap<Track, Integer>();
+        this.order = new int[0];
         this.currentIndex = 0;
         this.shuffleEnabled = false;
         this.repeatMode = REPEAT_OFF;
         this.random = new Random();
         this.listeners = new ArrayList<PlaylistListener>();
+        this.batchedEvents = new int[MAX_BATCHED_EVENTS * 3];
     }
 
     /**
      * Add a track to the playlist
      */
     public void addTrack(Track track) {
-        if (track != null && !tracks.contains(track)) {
-            tracks.add(track);
+        int from = firstUnplayed();
+        if (track != null && append(track)) {
             if (shuffleEnabled) {
-                regenerateShuffle();
+                shuffleIn(from);
             }
-            notifyPlaylistChanged();
+            notifyRange(EVENT_INSERTED, tracks.size() - 1, 1);
             Log.d(TAG, "Track added: " + track.getDisplayString());
         }
     }
@@ -69,15 +120,16 @@ public class Playlist {
      * Add multiple tracks
      */
     public void addTracks(List<Track> newTracks) {
+        int from = firstUnplayed();
+        int before = tracks.size();
         for (Track track : newTracks) {
-            if (track != null && !tracks.contains(track)) {
-                tracks.add(track);
+            if (track != null && append(track) && shuffleEnabled) {
+                shuffleIn(from);
             }
         }
-        if (shuffleEnabled) {
-            regenerateShuffle();
+        if (tracks.size() > before) {
+            notifyRange(EVENT_INSERTED, before, tracks.size() - before);
         }
-        notifyPlaylistChanged();
         Log.d(TAG, "Added " + newTracks.size() + " tracks");
     }
 
@@ -87,13 +139,27 @@ public class Playlist {
     public void removeTrack(int index) {
         if (index >= 0 && index < tracks.size()) {
             Track removed = tracks.remove(index);
+            positions.remove(removed);
+            reindex(tracks, positions, index);
+
+            int position = index;
             if (shuffleEnabled) {
-                regenerateShuffle();
+                // Close the gap and renumber the indices above it, in place
+                position = -1;
+                int size = 0;
+                for (int p = 0; p <= tracks.size(); p++) {
+                    int value = order[p];
+                    if (value == index) {
+                        position = p;
+                    } else {
+                        order[size++] = value > index ? value - 1 : value;
+                    }
+                }
             }
-            if (index <= currentIndex && currentIndex > 0) {
+            if (position <= currentIndex && currentIndex > 0) {
                 currentIndex--;
             }
-            notifyPlaylistChanged();
+            notifyRange(EVENT_REMOVED, index, 1);
             Log.d(TAG, "Track removed: " + removed.getDisplayString());
         }
     }
@@ -102,20 +168,199 @@ public class Playlist {
      * Remove a track by object
      */
     public void removeTrack(Track track) {
-        int index = tracks.indexOf(track);
+        int index = indexOf(track);
         if (index >= 0) {
             removeTrack(index);
         }
     }
 
+    /**
+     * Move a track to another index, shifting those in between
+     */
+    public void moveTrack(int from, int to) {
+        int size = tracks.size();
+        if (from < 0 || from >= size || to < 0 || to >= size || from == to) return;
+
+        tracks.add(to, tracks.remove(from));
+        reindex(tracks, positions, Math.min(from, to));
+
+        // The cursor follows its track
+        if (shuffleEnabled) {
+            for (int p = 0; p < size; p++) {
+                order[p] = movedIndex(order[p], from, to);
+            }
+        } else {
+            currentIndex = movedIndex(currentIndex, from, to);
+        }
+        notifyRange(EVENT_MOVED, from, to);
+    }
+
+    /**
+     * Get where an index ends up after moveTrack(from, to)
+     */
+    public static int movedIndex(int index, int from, int to) {
+        if (index == from) return to;
+        if (from < to && index > from && index <= to) return index - 1;
+        if (from > to && index >= to && index < from) return index + 1;
+        return index;
+    }
+
+    /**
+     * Append unless a track with the same file is already listed
+     * @return true if added
+     */
+    private boolean append(Track track) {
+        if (positions.containsKey(track)) return false;
+        positions.put(track, tracks.size());
+        tracks.add(track);
+        return true;
+    }
+
+    /**
+     * Renumber positions from index on, after a removal
+     */
+    private static void reindex(List<Track> list, Map<Track, Integer> map, int from) {
+        for (int i = from; i < list.size(); i++) {
+            map.put(list.get(i), i);
+        }
+    }
+
+    /**
+     * Check if a track with the same file is in the playlist
+     */
+    public boolean contains(Track track) {
+        return track != null && positions.containsKey(track);
+    }
+
+    /**
+     * Get position of a track in playlist order
+     * @return index, or -1 if not listed
+     */
+    public int indexOf(Track track) {
+        if (track == null) return -1;
+        Integer index = positions.get(track);
+        return index != null ? index : -1;
+    }
+
+    /**
+     * Remove every track whose file is in paths (one change notification)
+     * @return true if anything was removed
+     */
+    public boolean removeTracksByPath(Set<String> paths) {
+        if (paths.isEmpty()) return false;
+
+        // Match as tracks, so no path is built per listed track
+        Set<Track> gone = new HashSet<Track>(paths.size() * 2);
+        for (String path : paths) {
+            gone.add(Track.probe(path));
+        }
+
+        Track current = getCurrentTrack();
+
+        // Compact the list in place, noting where each survivor went
+        int before = tracks.size();
+        int[] newIndex = new int[before];
+        int kept = 0;
+        int first = before;
+        for (int i = 0; i < before; i++) {
+            Track track = tracks.get(i);
+            if (gone.contains(track)) {
+                newIndex[i] = -1;
+                positions.remove(track);
+                if (first == before) first = i;
+            } else {
+                newIndex[i] = kept;
+                tracks.set(kept++, track);
+            }
+        }
+        if (kept == before) return false;
+        tracks.subList(kept, before).clear();
+        reindex(tracks, positions, first);
+
+        // One event per run of removed tracks, at its index after the
+        // runs before it are gone
+        beginBatch();
+        int removedSoFar = 0;
+        int runStart = -1;
+        for (int i = first; i <= before; i++) {
+            boolean removed = i < before && newIndex[i] < 0;
+            if (removed && runStart < 0) {
+                runStart = i;
+            } else if (!removed && runStart >= 0) {
+                notifyRange(EVENT_REMOVED, runStart - removedSoFar, i - runStart);
+                removedSoFar += i - runStart;
+                runStart = -1;
+            }
+        }
+
+        // Cursor stays on the current track, or whichever takes its place
+        int keptBefore = 0;
+        if (shuffleEnabled) {
+            int size = 0;
+            for (int p = 0; p < before; p++) {
+                int index = newIndex[order[p]];
+                if (index < 0) continue;
+                if (p < currentIndex) keptBefore++;
+                order[size++] = index;
+            }
+        } else {
+            for (int i = 0; i < currentIndex && i < before; i++) {
+                if (newIndex[i] >= 0) keptBefore++;
+            }
+        }
+
+        currentIndex = Math.min(keptBefore, Math.max(0, tracks.size() - 1));
+        endBatch();
+        if (current != null && gone.contains(current)) {
+            notifyCurrentTrackChanged();
+        }
+        Log.d(TAG, "Removed " + (before - tracks.size()) + " missing tracks");
+        return true;
+    }
+
+    /**
+     * Copy refreshed metadata onto matching tracks, or report changes made
+     * to the playlist's own instances (one change notification)
+     * @return true if any track was updated
+     */
+    public boolean updateTrackInfo(List<Track> updated) {
+        if (updated.isEmpty()) return false;
+
+        boolean changed = false;
+        beginBatch();
+        for (Track info : updated) {
+            int index = indexOf(info);
+            if (index >= 0) {
+                Track track = tracks.get(index);
+                if (track != info) {
+                    // A fresh read of the same file; the instance itself
+                    // already carries its changes
+                    track.setTitle(info.getTitle());
+                    track.setArtist(info.getArtist());
+                    track.setAlbum(info.getAlbum());
+                }
+                if (info.getDurationMs() > 0) {
+                    track.setDurationMs(info.getDurationMs());
+                }
+                notifyRange(EVENT_UPDATED, index, 1);
+                changed = true;
+            }
+        }
+        endBatch();
+        return changed;
+    }
+
     /**
      * Clear all tracks
      */
     public void clear() {
+        int count = tracks.size();
         tracks.clear();
-        shuffledTracks.clear();
+        positions.clear();
         currentIndex = 0;
-        notifyPlaylistChanged();
+        if (count > 0) {
+            notifyRange(EVENT_REMOVED, 0, count);
+        }
         Log.d(TAG, "Playlist cleared");
     }
 
@@ -123,11 +368,17 @@ public class Playlist {
      * Get current track
      */
     public Track getCurrentTrack() {
-        List<Track> activeList = shuffleEnabled ? shuffledTracks : tracks;
-        if (activeList.isEmpty() || currentIndex < 0 || currentIndex >= activeList.size()) {
+        if (currentIndex < 0 || currentIndex >= tracks.size()) {
             return null;
         }
-        return activeList.get(currentIndex);
+        return trackAt(currentIndex);
+    }
+
+    /**
+     * Get track at a position in play order (shuffled or not)
+     */
+    private Track trackAt(int position) {
+        return tracks.get(shuffleEnabled ? order[position] : position);
     }
 
     /**
@@ -141,12 +392,38 @@ public class Playlist {
     }
 
     /**
-     * Get all tracks
+     * Get all tracks (a copy, safe to hand to other threads)
      */
     public List<Track> getTracks() {
         return new ArrayList<Track>(tracks);
     }
 
+    /**
+     * Get a read-only view of all tracks. Not a copy: main thread only,
+     * and check getModCount() before reusing it across a change.
+     */
+    public List<Track> getTrackList() {
+        return readOnlyTracks;
+    }
+
+    /**
+     * Get a read-only view of tracks [from, to), clamped to the playlist
+     */
+    public List<Track> getTracks(int from, int to) {
+        from = Math.max(0, from);
+        to = Math.min(tracks.size(), to);
+        if (from >= to) return Collections.<Track>emptyList();
+        return readOnlyTracks.subList(from, to);
+    }
+
+    /**
+     * Get modification counter; changes whenever the tracks, their order
+     * or their info change, so views can tell cheaply if they are stale
+     */
+    public int getModCount() {
+        return modCount;
+    }
+
     /**
      * Get playlist size
      */
@@ -162,30 +439,81 @@ public class Playlist {
     }
 
     /**
-     * Get current track index
+     * Get current position in play order (shuffled or not)
      */
     public int getCurrentIndex() {
         return currentIndex;
     }
 
     /**
-     * Set current track index
+     * Set current position in play order (shuffled or not)
      */
     public void setCurrentIndex(int index) {
-        List<Track> activeList = shuffleEnabled ? shuffledTracks : tracks;
-        if (index >= 0 && index < activeList.size()) {
+        if (index >= 0 && index < tracks.size()) {
             currentIndex = index;
             notifyCurrentTrackChanged();
         }
     }
 
+    /**
+     * Get index of the current track in playlist order
+     * @return index, or -1 if there is none
+     */
+    public int getCurrentTrackIndex() {
+        if (currentIndex < 0 || currentIndex >= tracks.size()) return -1;
+        return shuffleEnabled ? order[currentIndex] : currentIndex;
+    }
+
+    /**
+     * Make the track at a playlist index current. When shuffled, an
+     * upcoming track is moved to just after the cursor so nothing else in
+     * the play order is skipped.
+     */
+    public void setCurrentTrackIndex(int index) {
+        if (index < 0 || index >= tracks.size()) return;
+        if (!shuffleEnabled) {
+            setCurrentIndex(index);
+            return;
+        }
+
+        int position = 0;
+        while (order[position] != index) position++;
+        if (position > currentIndex + 1) {
+            order[position] = order[currentIndex + 1];
+            order[currentIndex + 1] = index;
+            position = currentIndex + 1;
+            modCount++;
+        }
+        setCurrentIndex(position);
+    }
+
+    /**
+     * Peek at the track that next() would move to, without moving.
+     * Honours shuffle order and repeat mode.
+     * @return upcoming track, or null if playback would stop
+     */
+    public Track peekNext() {
+        if (tracks.isEmpty()) return null;
+
+        if (repeatMode == REPEAT_ONE) {
+            return getCurrentTrack();
+        }
+
+        if (currentIndex < tracks.size() - 1) {
+            return trackAt(currentIndex + 1);
+        } else if (repeatMode == REPEAT_ALL) {
+            return trackAt(0);
+        }
+
+        return null;
+    }
+
     /**
      * Move to next track
      * @return true if moved to next track, false if at end
      */
     public boolean next() {
-        List<Track> activeList = shuffleEnabled ? shuffledTracks : tracks;
-        if (activeList.isEmpty()) return false;
+        if (tracks.isEmpty()) return false;
 
         if (repeatMode == REPEAT_ONE) {
             // Stay on current track
@@ -193,7 +521,7 @@ public class Playlist {
             return true;
         }
 
-        if (currentIndex < activeList.size() - 1) {
+        if (currentIndex < tracks.size() - 1) {
             currentIndex++;
             notifyCurrentTrackChanged();
             return true;
@@ -211,8 +539,7 @@ public class Playlist {
      * @return true if moved to previous track, false if at beginning
      */
     public boolean previous() {
-        List<Track> activeList = shuffleEnabled ? shuffledTracks : tracks;
-        if (activeList.isEmpty()) return false;
+        if (tracks.isEmpty()) return false;
 
         if (repeatMode == REPEAT_ONE) {
             // Stay on current track
@@ -225,7 +552,7 @@ public class Playlist {
             notifyCurrentTrackChanged();
             return true;
         } else if (repeatMode == REPEAT_ALL) {
-            currentIndex = activeList.size() - 1;
+            currentIndex = tracks.size() - 1;
             notifyCurrentTrackChanged();
             return true;
         }
@@ -239,26 +566,69 @@ public class Playlist {
     public void setShuffle(boolean enabled) {
         if (shuffleEnabled == enabled) return;
 
-        Track currentTrack = getCurrentTrack();
+        int current = getCurrentTrackIndex();
         shuffleEnabled = enabled;
 
         if (enabled) {
-            regenerateShuffle();
-            // Find current track in shuffled list
-            if (currentTrack != null) {
-                currentIndex = shuffledTracks.indexOf(currentTrack);
-                if (currentIndex < 0) currentIndex = 0;
+            // Current track leads the new order; the rest follow at random
+            regenerateShuffle(current);
+            currentIndex = 0;
+        } else if (current >= 0) {
+            currentIndex = current;
+        }
+
+        Log.d(TAG, "Shuffle " + (enabled ? "enabled" : "disabled"));
+        notifyPlaylistChanged();
+    }
+
+    /**
+     * Get shuffle play order as track indices (a copy), or null when not
+     * shuffled
+     */
+    public int[] getShuffleOrder() {
+        return shuffleEnabled ? Arrays.copyOf(order, tracks.size()) : null;
+    }
+
+    /**
+     * Replace the contents with a saved queue, e.g. on startup (one
+     * change notification). An order that does not fit the tracks is
+     * replaced with a fresh shuffle.
+     * @param shuffleOrder play order to resume, or null for unshuffled
+     * @param index position in play order to resume at
+     */
+    public void restore(List<Track> newTracks, int[] shuffleOrder, int index, int repeat) {
+        tracks.clear();
+        positions.clear();
+        for (Track track : newTracks) {
+            if (track != null) {
+                append(track);
             }
-        } else {
-            // Find current track in original list
-            if (currentTrack != null) {
-                currentIndex = tracks.indexOf(currentTrack);
-                if (currentIndex < 0) currentIndex = 0;
+        }
+
+        shuffleEnabled = shuffleOrder != null;
+        if (shuffleEnabled) {
+            if (isPermutation(shuffleOrder, tracks.size())) {
+                order = Arrays.copyOf(shuffleOrder, tracks.size());
+            } else {
+                regenerateShuffle(-1);
             }
         }
+        currentIndex = index >= 0 && index < tracks.size() ? index : 0;
+        setRepeatMode(repeat);
 
-        Log.d(TAG, "Shuffle " + (enabled ? "enabled" : "disabled"));
         notifyPlaylistChanged();
+        notifyCurrentTrackChanged();
+        Log.d(TAG, "Restored " + tracks.size() + " tracks");
+    }
+
+    private static boolean isPermutation(int[] values, int n) {
+        if (values.length != n) return false;
+        boolean[] seen = new boolean[n];
+        for (int value : values) {
+            if (value < 0 || value >= n || seen[value]) return false;
+            seen[value] = true;
+        }
+        return true;
     }
 
     /**
@@ -294,16 +664,69 @@ public class Playlist {
     }
 
     /**
-     * Regenerate shuffle order
+     * Regenerate shuffle order, optionally with one track first
+     * @param first track index to put first, or -1
+     */
+    private void regenerateShuffle(int first) {
+        int n = tracks.size();
+        if (order.length < n) {
+            order = new int[n];
+        }
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        int from = 0;
+        if (first >= 0 && first < n) {
+            order[first] = 0;
+            order[0] = first;
+            from = 1;
+        }
+        shuffleRange(from, n);
+    }
+
+    /**
+     * Fisher-Yates over order[from, to)
      */
-    private void regenerateShuffle() {
-        shuffledTracks.clear();
-        shuffledTracks.addAll(tracks);
-        Collections.shuffle(shuffledTracks, random);
+    private void shuffleRange(int from, int to) {
+        for (int i = to - 1; i > from; i--) {
+            int j = from + random.nextInt(i - from + 1);
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+    }
+
+    /**
+     * First position in play order new tracks may go to: anywhere if
+     * nothing is queued yet, otherwise after the cursor
+     */
+    private int firstUnplayed() {
+        return tracks.isEmpty() ? 0 : currentIndex + 1;
+    }
+
+    /**
+     * Put the just-appended last track at a random position in
+     * [from, size), moving whatever was there to the end. Each step is one
+     * inside-out Fisher-Yates step, so the upcoming order stays uniformly
+     * random and the played prefix is untouched.
+     */
+    private void shuffleIn(int from) {
+        int last = tracks.size() - 1;
+        if (order.length <= last) {
+            order = Arrays.copyOf(order, Math.max(16, order.length + (order.length >> 1)));
+        }
+        order[last] = last;
+        if (from < last) {
+            int j = from + random.nextInt(last - from + 1);
+            order[last] = order[j];
+            order[j] = last;
+        }
     }
 
     /**
-     * Load playlist from .m3u file
+     * Load playlist from .m3u, .m3u8 or .pls file. Entries are added in
+     * one insert without touching the listed files; missing ones are
+     * dropped afterwards by a background check.
      */
     public boolean loadFromM3U(File file) {
         if (file == null || !file.exists()) {
@@ -311,49 +734,20 @@ public class Playlist {
             return false;
         }
 
-        BufferedReader reader = null;
+        List<Track> loaded;
         try {
-            reader = new BufferedReader(new FileReader(file));
-            String line;
-            int loaded = 0;
-
-            while ((line = reader.readLine()) != null) {
-                line = line.trim();
-
-                // Skip comments and empty lines
-                if (line.isEmpty() || line.startsWith("#")) {
-                    continue;
-                }
-
-                // Check if file exists
-                File trackFile = new File(line);
-                if (!trackFile.isAbsolute()) {
-                    // Relative path - resolve from m3u location
-                    trackFile = new File(file.getParentFile(), line);
-                }
-
-                if (trackFile.exists()) {
-                    Track track = new Track(trackFile.getAbsolutePath());
-                    addTrack(track);
-                    loaded++;
-                }
-            }
-
-            Log.i(TAG, "Loaded " + loaded + " tracks from " + file.getName());
-            return loaded > 0;
-
+            loaded = PlaylistImporter.parse(file);
         } catch (IOException e) {
             Log.e(TAG, "Error loading M3U", e);
             return false;
-        } finally {
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    // Ignore
-                }
-            }
         }
+
+        int before = tracks.size();
+        addTracks(loaded);
+        PlaylistImporter.validate(this, new ArrayList<Track>(getTracks(before, tracks.size())));
+
+        Log.i(TAG, "Loaded " + loaded.size() + " tracks from " + file.getName());
+        return !loaded.isEmpty();
     }
 
     /**
@@ -416,14 +810,141 @@ public class Playlist {
     }
 
     /**
-     * Notify listeners of playlist change
+     * Group changes until the matching endBatch(). Listeners then hear
+     * once: plain listeners get one onPlaylistChanged(), range listeners
+     * the batch's ranges with adjacent ones merged. Batches nest.
+     */
+    public void beginBatch() {
+        batchDepth++;
+    }
+
+    public void endBatch() {
+        if (batchDepth == 0 || --batchDepth > 0 || !batchChanged) return;
+
+        boolean reset = batchReset;
+        int count = batchedCount;
+        batchChanged = false;
+        batchReset = false;
+        batchedCount = 0;
+        batchInsertEnd = 0;
+
+        for (PlaylistListener listener : listeners) {
+            if (reset || !(listener instanceof PlaylistRangeListener)) {
+                listener.onPlaylistChanged();
+                continue;
+            }
+            PlaylistRangeListener rangeListener = (PlaylistRangeListener) listener;
+            for (int i = 0; i < count; i += 3) {
+                dispatchRange(rangeListener, batchedEvents[i], batchedEvents[i + 1], batchedEvents[i + 2]);
+            }
+        }
+    }
+
+    /**
+     * Notify listeners that anything may have changed
      */
     private void notifyPlaylistChanged() {
+        modCount++;
+        if (batchDepth > 0) {
+            batchChanged = true;
+            batchReset = true;
+            return;
+        }
         for (PlaylistListener listener : listeners) {
             listener.onPlaylistChanged();
         }
     }
 
+    /**
+     * Notify listeners of a range change (queued while batching)
+     */
+    private void notifyRange(int kind, int a, int b) {
+        modCount++;
+        if (batchDepth > 0) {
+            batchChanged = true;
+            if (!batchReset) {
+                queueRange(kind, a, b);
+            }
+            return;
+        }
+        for (PlaylistListener listener : listeners) {
+            if (listener instanceof PlaylistRangeListener) {
+                dispatchRange((PlaylistRangeListener) listener, kind, a, b);
+            } else {
+                listener.onPlaylistChanged();
+            }
+        }
+    }
+
+    /**
+     * Queue a range, merging it into the previous one where the two
+     * describe one contiguous change. Listeners read inserted tracks when
+     * the batch ends, so a later change at or before an inserted range
+     * (which would shift it) turns the batch into a reset.
+     */
+    private void queueRange(int kind, int a, int b) {
+        if (batchedCount > 0 && batchedEvents[batchedCount - 3] == kind) {
+            int last = batchedCount - 3;
+            int from = batchedEvents[last + 1];
+            int count = batchedEvents[last + 2];
+            switch (kind) {
+                case EVENT_INSERTED:
+                    // Appended after, or inserted in front of, the last block
+                    if (a == from + count || a == from) {
+                        batchedEvents[last + 2] = count + b;
+                        batchInsertEnd = Math.max(batchInsertEnd, from + count + b);
+                        return;
+                    }
+                    break;
+                case EVENT_REMOVED:
+                    // Removing forwards (same index) or backwards
+                    if (a == from || a + b == from) {
+                        batchedEvents[last + 1] = Math.min(a, from);
+                        batchedEvents[last + 2] = count + b;
+                        return;
+                    }
+                    break;
+                case EVENT_UPDATED:
+                    // Redrawing a few rows too many is cheaper than many events
+                    int start = Math.min(a, from);
+                    batchedEvents[last + 1] = start;
+                    batchedEvents[last + 2] = Math.max(a + b, from + count) - start;
+                    return;
+                default:
+                    break;
+            }
+        }
+        int lowest = kind == EVENT_MOVED ? Math.min(a, b) : a;
+        if (batchedCount == batchedEvents.length
+                || (kind != EVENT_UPDATED && lowest < batchInsertEnd)) {
+            batchReset = true;
+            return;
+        }
+        if (kind == EVENT_INSERTED) {
+            batchInsertEnd = a + b;
+        }
+        batchedEvents[batchedCount++] = kind;
+        batchedEvents[batchedCount++] = a;
+        batchedEvents[batchedCount++] = b;
+    }
+
+    private static void dispatchRange(PlaylistRangeListener listener, int kind, int a, int b) {
+        switch (kind) {
+            case EVENT_INSERTED:
+                listener.onTracksInserted(a, b);
+                break;
+            case EVENT_REMOVED:
+                listener.onTracksRemoved(a, b);
+                break;
+            case EVENT_MOVED:
+                listener.onTrackMoved(a, b);
+                break;
+            default:
+                listener.onTracksUpdated(a, b);
+                break;
+        }
+    }
+
     /**
      * Notify listeners of current track change
      */
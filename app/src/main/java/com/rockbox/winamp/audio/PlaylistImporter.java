@@ -0,0 +1,298 @@
+package com.rockbox.winamp.audio;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Reads .m3u, .m3u8 and .pls playlists in one streaming pass without
+ * touching the listed files. #EXTINF and PLS Title/Length supply title,
+ * artist and duration, so entries need no tag probing; whether the files
+ * exist is checked afterwards on a background thread (validate()).
+ */
+public class PlaylistImporter {
+
+    private static final String TAG = "PlaylistImporter";
+
+    // Android's default charset, and what .m3u8 requires
+    private static final String CHARSET = "UTF-8";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Check if a file name looks like a playlist we can read
+     */
+    public static boolean isPlaylistFile(String name) {
+        String lower = name.toLowerCase();
+        return lower.endsWith(".m3u") || lower.endsWith(".m3u8") || lower.endsWith(".pls");
+    }
+
+    /**
+     * Parse a playlist file into tracks, in file order. Relative entries
+     * are resolved against the playlist's folder; stream URLs are skipped.
+     */
+    public static List<Track> parse(File file) throws IOException {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET),
+                    BUFFER_SIZE);
+            File base = file.getAbsoluteFile().getParentFile();
+            if (file.getName().toLowerCase().endsWith(".pls")) {
+                return parsePls(reader, base);
+            }
+            return parseM3u(reader, base);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private static List<Track> parseM3u(BufferedReader reader, File base) throws IOException {
+        List<Track> tracks = new ArrayList<Track>();
+        String info = null;
+        int seconds = -1;
+        boolean first = true;
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (first) {
+                line = stripBom(line);
+                first = false;
+            }
+            line = line.trim();
+            if (line.isEmpty()) continue;
+
+            if (line.startsWith("#")) {
+                // #EXTINF:<seconds>[ attributes],<Artist - Title>
+                if (line.startsWith("#EXTINF:")) {
+                    int comma = findInfoComma(line, 8);
+                    seconds = parseSeconds(line, 8, comma < 0 ? line.length() : comma);
+                    info = comma < 0 ? null : line.substring(comma + 1).trim();
+                }
+                continue;
+            }
+
+            String path = resolve(base, line);
+            if (path != null) {
+                tracks.add(createTrack(path, info, seconds));
+            }
+            info = null;
+            seconds = -1;
+        }
+        return tracks;
+    }
+
+    private static List<Track> parsePls(BufferedReader reader, File base) throws IOException {
+        // FileN / TitleN / LengthN may come in any order
+        Map<Integer, String[]> entries = new TreeMap<Integer, String[]>();
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = stripBom(line).trim();
+            int eq = line.indexOf('=');
+            if (eq <= 0) continue;
+
+            String key = line.substring(0, eq).trim().toLowerCase();
+            int field;
+            if (key.startsWith("file")) {
+                field = 0;
+            } else if (key.startsWith("title")) {
+                field = 1;
+            } else if (key.startsWith("length")) {
+                field = 2;
+            } else {
+                continue;
+            }
+
+            int number;
+            try {
+                number = Integer.parseInt(key.substring(field == 0 ? 4 : field == 1 ? 5 : 6));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            String[] entry = entries.get(number);
+            if (entry == null) {
+                entry = new String[3];
+                entries.put(number, entry);
+            }
+            entry[field] = line.substring(eq + 1).trim();
+        }
+
+        List<Track> tracks = new ArrayList<Track>(entries.size());
+        for (String[] entry : entries.values()) {
+            if (entry[0] == null) continue;
+            String path = resolve(base, entry[0]);
+            if (path != null) {
+                int seconds = entry[2] != null ? parseSeconds(entry[2], 0, entry[2].length()) : -1;
+                tracks.add(createTrack(path, entry[1], seconds));
+            }
+        }
+        return tracks;
+    }
+
+    private static Track createTrack(String path, String info, int seconds) {
+        Track track = new Track(path, 0);
+        if (info != null && !info.isEmpty()) {
+            // saveToM3U() writes "Artist - Title"
+            int dash = info.indexOf(" - ");
+            if (dash > 0) {
+                track.setArtist(info.substring(0, dash));
+                track.setTitle(info.substring(dash + 3));
+            } else {
+                track.setTitle(info);
+            }
+        }
+        if (seconds > 0) {
+            track.setDurationMs(seconds * 1000);
+        }
+        return track;
+    }
+
+    /**
+     * Find the comma ending the duration and attributes (commas inside
+     * quoted attribute values do not count)
+     */
+    private static int findInfoComma(String line, int from) {
+        boolean quoted = false;
+        for (int i = from; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parse the leading whole seconds of s[from, to)
+     * @return seconds, or -1 if none
+     */
+    private static int parseSeconds(String s, int from, int to) {
+        int i = from;
+        while (i < to && s.charAt(i) == ' ') i++;
+        int value = 0;
+        int digits = 0;
+        while (i < to && digits < 9) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') break;
+            value = value * 10 + (c - '0');
+            digits++;
+            i++;
+        }
+        return digits > 0 ? value : -1;
+    }
+
+    private static String stripBom(String line) {
+        return line.length() > 0 && line.charAt(0) == '\uFEFF' ? line.substring(1) : line;
+    }
+
+    /**
+     * Turn an entry into an absolute, normalised path (no file access)
+     * @return path, or null for entries that are not local files
+     */
+    static String resolve(File base, String entry) {
+        if (entry.startsWith("file:")) {
+            try {
+                entry = new URI(entry).getPath();
+            } catch (URISyntaxException e) {
+                entry = entry.substring(entry.startsWith("file://") ? 7 : 5);
+            }
+            if (entry == null) return null;
+        } else if (entry.indexOf("://") > 0) {
+            return null;
+        }
+
+        // Playlists written on Windows
+        entry = entry.replace('\\', '/');
+        if (entry.length() > 2 && entry.charAt(1) == ':' && entry.charAt(2) == '/') {
+            entry = entry.substring(2);
+        }
+
+        String path = entry.startsWith("/") || base == null ? entry : base.getPath() + "/" + entry;
+        return normalize(path);
+    }
+
+    /**
+     * Drop "." and empty segments and apply ".." (lexically)
+     */
+    private static String normalize(String path) {
+        if (path.indexOf("/.") < 0 && path.indexOf("//") < 0) return path;
+
+        String[] parts = path.split("/");
+        List<String> kept = new ArrayList<String>(parts.length);
+        for (String part : parts) {
+            if (part.isEmpty() || part.equals(".")) continue;
+            if (part.equals("..")) {
+                if (!kept.isEmpty()) kept.remove(kept.size() - 1);
+            } else {
+                kept.add(part);
+            }
+        }
+        StringBuilder sb = new StringBuilder(path.length());
+        for (String part : kept) {
+            sb.append('/').append(part);
+        }
+        return sb.length() > 0 ? sb.toString() : "/";
+    }
+
+    /**
+     * Check imported tracks in the background: fill in file sizes (used
+     * to key cached gains) and drop entries whose files do not exist.
+     * Results are applied to the playlist on the main thread.
+     */
+    public static void validate(final Playlist playlist, final List<Track> tracks) {
+        if (tracks.isEmpty()) return;
+        final Handler handler = new Handler(Looper.getMainLooper());
+
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+                final long[] sizes = new long[tracks.size()];
+                final Set<String> missing = new HashSet<String>();
+                for (int i = 0; i < sizes.length; i++) {
+                    File file = new File(tracks.get(i).getFilePath());
+                    // length() is 0 for missing files; only then stat again
+                    sizes[i] = file.length();
+                    if (sizes[i] == 0 && !file.isFile()) {
+                        missing.add(file.getPath());
+                    }
+                }
+
+                handler.post(new Runnable() {
+                    public void run() {
+                        for (int i = 0; i < sizes.length; i++) {
+                            tracks.get(i).setFileSize(sizes[i]);
+                        }
+                        playlist.removeTracksByPath(missing);
+                        Log.d(TAG, "Validated " + sizes.length + " entries, "
+                                + missing.size() + " missing");
+                    }
+                });
+            }
+        }, TAG);
+        thread.start();
+    }
+}
@@ -0,0 +1,369 @@
+package com.rockbox.winamp.audio;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * Track/album ReplayGain with a persistent per-file cache.
+ * Gains come from REPLAYGAIN tags when present, otherwise from an EBU R128
+ * analysis pass on a background thread. Lookups used at track start only
+ * touch the in-memory cache, so applying the gain adds no latency.
+ */
+public class ReplayGain {
+
+    private static final String TAG = "ReplayGain";
+    private static final String CACHE_FILE = "replaygain.cache";
+
+    // Modes
+    public static final int MODE_OFF = 0;
+    public static final int MODE_TRACK = 1;
+    public static final int MODE_ALBUM = 2;
+
+    private static final String[] MODE_NAMES = {
+        "Off", "Track", "Album"
+    };
+
+    /**
+     * Gain and peak values for one file (NaN = unknown)
+     */
+    public static class Info {
+        public static final int SOURCE_NONE = 0;
+        public static final int SOURCE_TAG = 1;
+        public static final int SOURCE_ANALYSIS = 2;
+
+        public float trackGainDb = Float.NaN;
+        public float trackPeak = Float.NaN;
+        public float albumGainDb = Float.NaN;
+        public float albumPeak = Float.NaN;
+        public int source = SOURCE_NONE;
+
+        public boolean hasTrackGain() {
+            return !Float.isNaN(trackGainDb);
+        }
+
+        public boolean hasAlbumGain() {
+            return !Float.isNaN(albumGainDb);
+        }
+
+        /**
+         * Apply a REPLAYGAIN_* tag (case-insensitive key)
+         * @return true if the key was a ReplayGain field
+         */
+        public boolean setField(String key, String value) {
+            String k = key.trim().toUpperCase();
+            if (!k.startsWith("REPLAYGAIN_")) return false;
+            float v = parseNumber(value);
+            if (k.equals("REPLAYGAIN_TRACK_GAIN")) {
+                trackGainDb = v;
+            } else if (k.equals("REPLAYGAIN_TRACK_PEAK")) {
+                trackPeak = v;
+            } else if (k.equals("REPLAYGAIN_ALBUM_GAIN")) {
+                albumGainDb = v;
+            } else if (k.equals("REPLAYGAIN_ALBUM_PEAK")) {
+                albumPeak = v;
+            } else {
+                return false;
+            }
+            if (hasTrackGain() || hasAlbumGain()) {
+                source = SOURCE_TAG;
+            }
+            return true;
+        }
+
+        // "-6.52 dB" / "0.988525"
+        private static float parseNumber(String value) {
+            if (value == null) return Float.NaN;
+            String s = value.trim();
+            int end = 0;
+            while (end < s.length() && "+-.0123456789".indexOf(s.charAt(end)) >= 0) {
+                end++;
+            }
+            try {
+                return Float.parseFloat(s.substring(0, end));
+            } catch (NumberFormatException e) {
+                return Float.NaN;
+            }
+        }
+    }
+
+    /**
+     * Notified on the main thread when a track's gain becomes known
+     */
+    public interface Listener {
+        void onGainResolved(Track track);
+    }
+
+    private final ReplayGainCache cache;
+    private final Handler handler;
+    private volatile int mode;
+    private volatile float preampDb;
+    private volatile boolean analysisEnabled;
+    private Listener listener;
+
+    // Background resolution queue (front = most urgent)
+    private final LinkedBlockingDeque<Track> queue;
+    private final Set<String> queued;
+    private Thread worker;
+
+    // Resolved but not yet reported to the listener (guarded by itself)
+    private final List<Track> resolved = new ArrayList<Track>();
+
+    // Worker thread only
+    private final TagReader tagReader = new TagReader();
+    private final TagReader.Tags tags = new TagReader.Tags();
+
+    public ReplayGain(Context context) {
+        this.cache = new ReplayGainCache(new File(context.getFilesDir(), CACHE_FILE));
+        this.handler = new Handler(Looper.getMainLooper());
+        this.mode = MODE_TRACK;
+        this.preampDb = 0.0f;
+        this.analysisEnabled = true;
+        this.queue = new LinkedBlockingDeque<Track>();
+        this.queued = new HashSet<String>();
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void setMode(int mode) {
+        if (mode >= MODE_OFF && mode <= MODE_ALBUM) {
+            this.mode = mode;
+        }
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    /**
+     * Get mode name for display
+     */
+    public static String getModeName(int mode) {
+        if (mode >= 0 && mode < MODE_NAMES.length) {
+            return MODE_NAMES[mode];
+        }
+        return "Unknown";
+    }
+
+    /**
+     * Set extra gain applied on top of ReplayGain (dB)
+     */
+    public void setPreampDb(float preampDb) {
+        this.preampDb = preampDb;
+    }
+
+    public float getPreampDb() {
+        return preampDb;
+    }
+
+    /**
+     * Enable loudness analysis of untagged files
+     */
+    public void setAnalysisEnabled(boolean enabled) {
+        this.analysisEnabled = enabled;
+    }
+
+    /**
+     * Get linear gain for a track (1.0 when off or not yet known).
+     * Never exceeds 1.0 or lets the stored peak clip.
+     */
+    public float getGain(Track track) {
+        if (mode == MODE_OFF || track == null) return 1.0f;
+
+        Info info = cache.get(track.getFilePath(), track.getFileSize());
+        if (info == null) return 1.0f;
+
+        float db = info.trackGainDb;
+        float peak = info.trackPeak;
+        if (mode == MODE_ALBUM && info.hasAlbumGain()) {
+            db = info.albumGainDb;
+            peak = info.albumPeak;
+        }
+        if (Float.isNaN(db)) return 1.0f;
+
+        float gain = (float) Math.pow(10.0, (db + preampDb) / 20.0);
+        if (peak > 0.0f) {
+            gain = Math.min(gain, 1.0f / peak);
+        }
+        // Output volume cannot amplify
+        return Math.min(1.0f, gain);
+    }
+
+    /**
+     * Check if a track's gain has been resolved (tagged, analysed or
+     * found to be unmeasurable)
+     */
+    public boolean isResolved(Track track) {
+        return cache.get(track.getFilePath(), track.getFileSize()) != null;
+    }
+
+    /**
+     * Queue a track for background resolution
+     */
+    public void request(Track track) {
+        enqueue(track, false);
+    }
+
+    /**
+     * Queue a track ahead of everything else (e.g. the upcoming track)
+     */
+    public void requestFirst(Track track) {
+        enqueue(track, true);
+    }
+
+    /**
+     * Queue several tracks in order
+     */
+    public void requestAll(List<Track> tracks) {
+        for (Track track : tracks) {
+            enqueue(track, false);
+        }
+    }
+
+    private void enqueue(Track track, boolean urgent) {
+        if (track == null || mode == MODE_OFF) return;
+        if (isResolved(track)) return;
+
+        synchronized (queued) {
+            if (queued.contains(track.getFilePath())) {
+                if (!urgent) return;
+                // Move to the front
+                queue.remove(track);
+            }
+            queued.add(track.getFilePath());
+            if (urgent) {
+                queue.addFirst(track);
+            } else {
+                queue.addLast(track);
+            }
+            if (worker == null) {
+                worker = new Thread(new Worker(), TAG);
+                worker.start();
+            }
+        }
+    }
+
+    /**
+     * Stop the background thread and flush the cache
+     */
+    public void release() {
+        Thread t;
+        synchronized (queued) {
+            t = worker;
+            worker = null;
+            queue.clear();
+            queued.clear();
+        }
+        if (t != null) {
+            t.interrupt();
+        }
+    }
+
+    private class Worker implements Runnable {
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            cache.load();
+
+            try {
+                while (true) {
+                    Track track = queue.poll();
+                    if (track == null) {
+                        // Idle: persist what we have, then wait
+                        cache.saveIfDirty();
+                        track = queue.take();
+                    }
+                    synchronized (queued) {
+                        queued.remove(track.getFilePath());
+                    }
+                    resolve(track);
+                }
+            } catch (InterruptedException e) {
+                // Released
+            } finally {
+                cache.saveIfDirty();
+            }
+        }
+    }
+
+    private void resolve(Track track) throws InterruptedException {
+        File file = new File(track.getFilePath());
+        if (!file.isFile()) return;
+        long size = file.length();
+        long mtime = file.lastModified();
+        if (cache.get(track.getFilePath(), size, mtime) != null) {
+            // Known on disk, but the main thread may have asked before the
+            // cache was loaded and played it at unity gain
+            notifyResolved(track);
+            return;
+        }
+
+        Info info = null;
+        if (tagReader.read(track.getFilePath(), tags)
+                && tags.replayGain.source == Info.SOURCE_TAG) {
+            info = tags.replayGain;
+        }
+        if ((info == null || !info.hasTrackGain()) && analysisEnabled) {
+            try {
+                Info measured = LoudnessAnalyzer.analyze(track.getFilePath());
+                if (measured != null) {
+                    if (info != null && info.hasAlbumGain()) {
+                        measured.albumGainDb = info.albumGainDb;
+                        measured.albumPeak = info.albumPeak;
+                    }
+                    info = measured;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Analysis failed: " + track.getFilePath(), e);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Analysis failed: " + track.getFilePath(), e);
+            }
+            if (Thread.interrupted()) throw new InterruptedException();
+        }
+        if (info == null) {
+            // Remember that there is nothing to find
+            info = new Info();
+        }
+
+        cache.put(track.getFilePath(), size, mtime, info);
+        notifyResolved(track);
+    }
+
+    /**
+     * Report a resolved track on the main thread; a run of cache hits
+     * is delivered in one post
+     */
+    private void notifyResolved(Track track) {
+        synchronized (resolved) {
+            resolved.add(track);
+            if (resolved.size() > 1) return; // Flush already posted
+        }
+        handler.post(flushResolved);
+    }
+
+    private final Runnable flushResolved = new Runnable() {
+        public void run() {
+            List<Track> batch;
+            synchronized (resolved) {
+                batch = new ArrayList<Track>(resolved);
+                resolved.clear();
+            }
+            if (listener != null) {
+                for (Track track : batch) {
+                    listener.onGainResolved(track);
+                }
+            }
+        }
+    };
+}
@@ -0,0 +1,172 @@
+package com.rockbox.winamp.audio;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persistent ReplayGain results keyed by path, size and modification time,
+ * so a file is only ever read or analysed once until it changes.
+ */
+public class ReplayGainCache {
+
+    private static final String TAG = "ReplayGainCache";
+    private static final int MAGIC = 0x52474331; // "RGC1"
+
+    private static class Entry {
+        long size;
+        long mtime;
+        ReplayGain.Info info;
+    }
+
+    private final File file;
+    private final Map<String, Entry> entries;
+    private boolean dirty;
+
+    public ReplayGainCache(File file) {
+        this.file = file;
+        this.entries = new HashMap<String, Entry>();
+    }
+
+    /**
+     * Look up by path and size (cheap check usable on any thread). A size
+     * of 0 means not known yet (e.g. an imported playlist entry) and
+     * matches by path alone.
+     */
+    public synchronized ReplayGain.Info get(String path, long size) {
+        Entry e = entries.get(path);
+        if (e == null || (size > 0 && e.size != size)) return null;
+        return e.info;
+    }
+
+    /**
+     * Look up by path, size and modification time
+     */
+    public synchronized ReplayGain.Info get(String path, long size, long mtime) {
+        Entry e = entries.get(path);
+        if (e == null || e.size != size || e.mtime != mtime) return null;
+        return e.info;
+    }
+
+    public synchronized void put(String path, long size, long mtime, ReplayGain.Info info) {
+        Entry e = new Entry();
+        e.size = size;
+        e.mtime = mtime;
+        e.info = info;
+        entries.put(path, e);
+        dirty = true;
+    }
+
+    /**
+     * Load entries from disk (merged under any already in memory)
+     */
+    public void load() {
+        if (!file.exists()) return;
+
+        Map<String, Entry> loaded = new HashMap<String, Entry>();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC) {
+                Log.w(TAG, "Ignoring cache with unknown format");
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                Entry e = new Entry();
+                e.size = in.readLong();
+                e.mtime = in.readLong();
+                e.info = new ReplayGain.Info();
+                e.info.source = in.readByte();
+                e.info.trackGainDb = in.readFloat();
+                e.info.trackPeak = in.readFloat();
+                e.info.albumGainDb = in.readFloat();
+                e.info.albumPeak = in.readFloat();
+                loaded.put(path, e);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error loading cache", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+
+        synchronized (this) {
+            for (Map.Entry<String, Entry> entry : loaded.entrySet()) {
+                if (!entries.containsKey(entry.getKey())) {
+                    entries.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        Log.d(TAG, "Loaded " + loaded.size() + " cached gains");
+    }
+
+    /**
+     * Write to disk if anything changed (temp file + rename)
+     */
+    public void saveIfDirty() {
+        Map<String, Entry> snapshot;
+        synchronized (this) {
+            if (!dirty) return;
+            snapshot = new HashMap<String, Entry>(entries);
+            dirty = false;
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            FileOutputStream fos = new FileOutputStream(tmp);
+            out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, Entry> entry : snapshot.entrySet()) {
+                Entry e = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(e.size);
+                out.writeLong(e.mtime);
+                out.writeByte(e.info.source);
+                out.writeFloat(e.info.trackGainDb);
+                out.writeFloat(e.info.trackPeak);
+                out.writeFloat(e.info.albumGainDb);
+                out.writeFloat(e.info.albumPeak);
+            }
+            // Synced first, or a crash can leave an empty cache after the rename
+            out.flush();
+            fos.getFD().sync();
+            out.close();
+            out = null;
+
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Cannot replace " + file);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving cache", e);
+            synchronized (this) {
+                dirty = true;
+            }
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+}
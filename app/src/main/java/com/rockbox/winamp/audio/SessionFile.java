@@ -0,0 +1,335 @@
+package com.rockbox.winamp.audio;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary snapshot of the play queue for fast startup. Layout (big-endian):
+ *
+ *   header      magic "SES1", flags, repeat mode, current index,
+ *               position ms, string count, track count, string bytes
+ *   strings     (count + 1) end offsets, then UTF-8 data padded to 4
+ *   tracks      32-byte records: directory, name, title, artist, album
+ *               (string ids, -1 = none), duration ms, file size
+ *   order       track count ints, only if shuffled
+ *
+ * Directories, artists and albums are interned, so a large queue costs
+ * about 32 bytes per track plus its file names. Loading maps the file and
+ * reads records in place; the audio files are not touched. Writes go to
+ * a temp file that is renamed over the old one, so a crash leaves either
+ * the old or the new session. When only the cursor moved, writeCursor()
+ * patches the header in place instead.
+ */
+public class SessionFile {
+
+    private static final String TAG = "SessionFile";
+    private static final int MAGIC = 0x53455331; // "SES1"
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 32;
+
+    private static final int FLAG_SHUFFLE = 0x01;
+
+    private static final String UNKNOWN_ARTIST = "Unknown Artist";
+    private static final String UNKNOWN_ALBUM = "Unknown Album";
+
+    /**
+     * A saved queue
+     */
+    public static class Session {
+        public List<Track> tracks = new ArrayList<Track>();
+        /** Shuffle play order, or null if not shuffled */
+        public int[] order;
+        public int currentIndex;
+        public int repeatMode;
+        public int positionMs;
+    }
+
+    private final File file;
+
+    public SessionFile(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Capture a playlist's queue and cursor
+     */
+    public static Session capture(Playlist playlist, int positionMs) {
+        Session session = new Session();
+        session.tracks = playlist.getTracks();
+        session.order = playlist.getShuffleOrder();
+        session.currentIndex = playlist.getCurrentIndex();
+        session.repeatMode = playlist.getRepeatMode();
+        session.positionMs = positionMs;
+        return session;
+    }
+
+    /**
+     * Write a session (temp file + rename)
+     * @return true on success
+     */
+    public boolean write(Session session) {
+        List<Track> tracks = session.tracks;
+        int count = tracks.size();
+
+        // Intern strings; records refer to them by id
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        List<byte[]> strings = new ArrayList<byte[]>();
+        int[] records = new int[count * 5];
+        try {
+            for (int i = 0; i < count; i++) {
+                Track track = tracks.get(i);
+                records[i * 5] = intern(track.getDirectory(), ids, strings);
+                records[i * 5 + 1] = intern(track.getFileName(), ids, strings);
+                records[i * 5 + 2] = intern(track.getTitle(), ids, strings);
+                String artist = track.getArtist();
+                records[i * 5 + 3] = artist.equals(UNKNOWN_ARTIST) ? -1 : intern(artist, ids, strings);
+                String album = track.getAlbum();
+                records[i * 5 + 4] = album.equals(UNKNOWN_ALBUM) ? -1 : intern(album, ids, strings);
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+
+        int stringBytes = 0;
+        for (byte[] s : strings) {
+            stringBytes += s.length;
+        }
+        int padding = (4 - (stringBytes & 3)) & 3;
+
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            FileOutputStream fos = new FileOutputStream(tmp);
+            out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(session.order != null ? FLAG_SHUFFLE : 0);
+            out.writeInt(session.repeatMode);
+            out.writeInt(session.currentIndex);
+            out.writeInt(session.positionMs);
+            out.writeInt(strings.size());
+            out.writeInt(count);
+            out.writeInt(stringBytes + padding);
+
+            int end = 0;
+            out.writeInt(0);
+            for (byte[] s : strings) {
+                end += s.length;
+                out.writeInt(end);
+            }
+            for (byte[] s : strings) {
+                out.write(s);
+            }
+            for (int i = 0; i < padding; i++) {
+                out.writeByte(0);
+            }
+
+            for (int i = 0; i < count; i++) {
+                Track track = tracks.get(i);
+                for (int j = 0; j < 5; j++) {
+                    out.writeInt(records[i * 5 + j]);
+                }
+                out.writeInt(track.getDurationMs());
+                out.writeLong(track.getFileSize());
+            }
+
+            if (session.order != null) {
+                for (int i = 0; i < count; i++) {
+                    out.writeInt(session.order[i]);
+                }
+            }
+
+            // Data on disk before the rename makes the new file visible
+            out.flush();
+            fos.getFD().sync();
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Cannot replace " + file);
+            }
+            return true;
+
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving session", e);
+            tmp.delete();
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Update the cursor of the saved session in place (queue unchanged)
+     * @return true on success; false if there is no valid session to patch
+     */
+    public boolean writeCursor(int currentIndex, int repeatMode, int positionMs) {
+        if (!file.exists()) return false;
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            if (raf.length() < HEADER_SIZE || raf.readInt() != MAGIC) {
+                return false;
+            }
+            raf.seek(8);
+            raf.writeInt(repeatMode);
+            raf.writeInt(currentIndex);
+            raf.writeInt(positionMs);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving session cursor", e);
+            return false;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private static int intern(String s, Map<String, Integer> ids, List<byte[]> strings)
+            throws UnsupportedEncodingException {
+        Integer id = ids.get(s);
+        if (id == null) {
+            id = strings.size();
+            ids.put(s, id);
+            strings.add(s.getBytes("UTF-8"));
+        }
+        return id;
+    }
+
+    /**
+     * Read the saved session
+     * @return session, or null if there is none or it is unreadable
+     */
+    public Session read() {
+        if (!file.exists()) return null;
+
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return parse(buffer);
+        } catch (IOException e) {
+            Log.e(TAG, "Error loading session", e);
+            return null;
+        } catch (RuntimeException e) {
+            // Truncated or garbled: bounds checks on the buffer fail
+            Log.e(TAG, "Ignoring corrupt session", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private static Session parse(ByteBuffer buffer) throws IOException {
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException("Unknown session format");
+        }
+        int flags = buffer.getInt(4);
+        Session session = new Session();
+        session.repeatMode = buffer.getInt(8);
+        session.currentIndex = buffer.getInt(12);
+        session.positionMs = buffer.getInt(16);
+        int stringCount = buffer.getInt(20);
+        int count = buffer.getInt(24);
+        int stringBytes = buffer.getInt(28);
+        if (stringCount < 0 || count < 0 || stringBytes < 0) {
+            throw new IOException("Bad session header");
+        }
+
+        int offsets = HEADER_SIZE;
+        int data = offsets + (stringCount + 1) * 4;
+        int records = data + stringBytes;
+        int orderStart = records + count * RECORD_SIZE;
+        int expected = orderStart + ((flags & FLAG_SHUFFLE) != 0 ? count * 4 : 0);
+        if (expected != buffer.capacity()) {
+            throw new IOException("Session size mismatch");
+        }
+
+        // One bulk copy of the string data; each string is decoded once
+        byte[] utf8 = new byte[stringBytes];
+        buffer.position(data);
+        buffer.get(utf8);
+        String[] strings = new String[stringCount];
+
+        List<Track> tracks = new ArrayList<Track>(count);
+        for (int i = 0; i < count; i++) {
+            int r = records + i * RECORD_SIZE;
+            String directory = string(buffer, offsets, utf8, strings, buffer.getInt(r));
+            String name = string(buffer, offsets, utf8, strings, buffer.getInt(r + 4));
+            Track track = new Track(directory, name, buffer.getLong(r + 24));
+
+            int title = buffer.getInt(r + 8);
+            int artist = buffer.getInt(r + 12);
+            int album = buffer.getInt(r + 16);
+            if (title >= 0) track.setTitle(string(buffer, offsets, utf8, strings, title));
+            if (artist >= 0) track.setArtist(string(buffer, offsets, utf8, strings, artist));
+            if (album >= 0) track.setAlbum(string(buffer, offsets, utf8, strings, album));
+            track.setDurationMs(buffer.getInt(r + 20));
+            tracks.add(track);
+        }
+        session.tracks = tracks;
+
+        if ((flags & FLAG_SHUFFLE) != 0) {
+            int[] order = new int[count];
+            buffer.position(orderStart);
+            buffer.asIntBuffer().get(order);
+            session.order = order;
+        }
+        return session;
+    }
+
+    private static String string(ByteBuffer buffer, int offsets, byte[] utf8, String[] strings, int id)
+            throws UnsupportedEncodingException {
+        String s = strings[id];
+        if (s == null) {
+            int start = buffer.getInt(offsets + id * 4);
+            int end = buffer.getInt(offsets + id * 4 + 4);
+            s = new String(utf8, start, end - start, "UTF-8");
+            strings[id] = s;
+        }
+        return s;
+    }
+
+    /**
+     * Remove the saved session
+     */
+    public void delete() {
+        file.delete();
+    }
+}
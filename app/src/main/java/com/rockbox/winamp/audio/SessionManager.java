@@ -0,0 +1,394 @@
+package com.rockbox.winamp.audio;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keeps the playback session (queue, cursor, shuffle order, repeat mode,
+ * position, volume, playback engine, equalizer and skin) on disk and brings it back on the
+ * next start.
+ *
+ * Changes only schedule a save; saves are throttled to one per
+ * SAVE_DELAY_MS. The snapshot is taken on the main thread and written on
+ * a background thread, and only what changed is written: the queue
+ * through SessionFile when the playlist changed, otherwise just the
+ * cursor in its header, and the settings to SharedPreferences. Nothing is
+ * saved before restore() has finished, so the empty startup playlist
+ * never replaces the saved one.
+ */
+public class SessionManager implements Playlist.PlaylistListener, AudioEngine.AudioEngineListener {
+
+    private static final String TAG = "SessionManager";
+    private static final String SESSION_FILE = "session.bin";
+    private static final String PREFS_NAME = "session";
+
+    private static final String KEY_VOLUME = "volume";
+    private static final String KEY_SKIN = "skin";
+    private static final String KEY_ENGINE = "engine";
+    private static final String KEY_EQ_ENABLED = "eq_enabled";
+    private static final String KEY_EQ_BANDS = "eq_bands";
+    private static final String KEY_EQ_BASS_BOOST = "eq_bass_boost";
+    private static final String KEY_EQ_PRESET = "eq_preset";
+
+    // At most one save per interval while things keep changing
+    private static final int SAVE_DELAY_MS = 2000;
+
+    // How often the position is saved while playing
+    private static final int POSITION_SAVE_INTERVAL_MS = 15000;
+
+    /**
+     * Told when the saved session has been applied (main thread)
+     */
+    public interface RestoreCallback {
+        /** @param skinPath saved .wsz skin, or null for the default skin */
+        void onSessionRestored(String skinPath);
+    }
+
+    private final PlaybackController controller;
+    private final SessionFile sessionFile;
+    private final SharedPreferences prefs;
+    private final Handler handler;
+    private final ExecutorService worker;
+
+    // Main thread only
+    private boolean restored;
+    private boolean saveScheduled;
+    private int scheduledDelay;
+    private String skinPath;
+
+    // What is on disk (main thread only; modCount -1 = queue not saved)
+    private int savedModCount = -1;
+    private int savedIndex;
+    private int savedRepeat;
+    private int savedPosition;
+    private int savedVolume = -1;
+    private int savedEngine;
+    private String savedSkinPath;
+    private EqualizerState savedEqualizer;
+
+    public SessionManager(Context context, PlaybackController controller) {
+        this.controller = controller;
+        this.sessionFile = new SessionFile(new File(context.getFilesDir(), SESSION_FILE));
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.handler = new Handler(Looper.getMainLooper());
+        this.worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG);
+            }
+        });
+
+        controller.getPlaylist().addListener(this);
+        controller.addEngineListener(this);
+    }
+
+    /**
+     * Load the saved session in the background and apply it on the main
+     * thread. Call once the UI is up; the playlist stays empty until then.
+     */
+    public void restore(final RestoreCallback callback) {
+        worker.execute(new Runnable() {
+            public void run() {
+                long start = System.nanoTime();
+                final SessionFile.Session session = sessionFile.read();
+                // First access loads the preferences file, also off the main thread
+                final int volume = prefs.getInt(KEY_VOLUME, -1);
+                final String skin = prefs.getString(KEY_SKIN, null);
+                final int engine = prefs.getInt(KEY_ENGINE, PlaybackController.ENGINE_MEDIA_PLAYER);
+                final EqualizerState equalizer = readEqualizer();
+                Log.d(TAG, "Session read in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+                handler.post(new Runnable() {
+                    public void run() {
+                        apply(session, volume, engine, skin, equalizer);
+                        if (callback != null) {
+                            callback.onSessionRestored(skin);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void apply(SessionFile.Session session, int volume, int engine, String skin,
+                       EqualizerState equalizer) {
+        if (volume >= 0) {
+            controller.setVolume(volume);
+        }
+        if (equalizer != null) {
+            controller.getAudioEngine().setEqualizerState(equalizer);
+        }
+        // After the equalizer, which the PCM engine takes over
+        controller.setEngineType(engine);
+
+        // Tracks added while loading win over the saved queue
+        Playlist playlist = controller.getPlaylist();
+        if (session != null && playlist.isEmpty()) {
+            playlist.restore(session.tracks, session.order, session.currentIndex, session.repeatMode);
+            controller.setResumePosition(session.positionMs);
+            savedModCount = playlist.getModCount();
+            savedIndex = playlist.getCurrentIndex();
+            savedRepeat = playlist.getRepeatMode();
+            savedPosition = session.positionMs;
+            Log.i(TAG, "Session restored: " + playlist.size() + " tracks");
+        }
+
+        skinPath = skin;
+        savedSkinPath = skin;
+        savedVolume = volume;
+        savedEngine = engine;
+        savedEqualizer = equalizer;
+        restored = true;
+        requestSave();
+    }
+
+    /**
+     * Remember the loaded skin (null for the default skin)
+     */
+    public void setSkinPath(String path) {
+        skinPath = path;
+        requestSave();
+    }
+
+    public String getSkinPath() {
+        return skinPath;
+    }
+
+    /**
+     * Schedule a save; call after changing something that is not a
+     * playlist or playback event (volume, equalizer, seeking)
+     */
+    public void requestSave() {
+        schedule(SAVE_DELAY_MS);
+    }
+
+    private void schedule(int delayMs) {
+        if (!restored) return;
+        if (saveScheduled) {
+            if (delayMs >= scheduledDelay) return;
+            handler.removeCallbacks(saveRunnable);
+        }
+        saveScheduled = true;
+        scheduledDelay = delayMs;
+        handler.postDelayed(saveRunnable, delayMs);
+    }
+
+    /**
+     * Save pending changes now (still written in the background), e.g.
+     * when the app goes to the background
+     */
+    public void flush() {
+        handler.removeCallbacks(saveRunnable);
+        saveScheduled = false;
+        if (restored) {
+            save();
+        }
+    }
+
+    private final Runnable saveRunnable = new Runnable() {
+        public void run() {
+            saveScheduled = false;
+            save();
+        }
+    };
+
+    /**
+     * Snapshot what changed since the last save and hand it to the worker
+     */
+    private void save() {
+        Playlist playlist = controller.getPlaylist();
+        int position = controller.getResumePositionMs();
+
+        SessionFile.Session queue = null;
+        if (playlist.getModCount() != savedModCount) {
+            queue = SessionFile.capture(playlist, position);
+            savedModCount = playlist.getModCount();
+        }
+        final SessionFile.Session queueToWrite = queue;
+        final int index = playlist.getCurrentIndex();
+        final int repeat = playlist.getRepeatMode();
+        final int positionMs = position;
+        boolean cursorChanged = queue != null || index != savedIndex
+                || repeat != savedRepeat || position != savedPosition;
+
+        final int volume = controller.getVolume();
+        final int engine = controller.getEngineType();
+        final String skin = skinPath;
+        final EqualizerState equalizer = controller.getAudioEngine().getEqualizerState();
+        final boolean settingsChanged = volume != savedVolume || engine != savedEngine
+                || (skin == null ? savedSkinPath != null : !skin.equals(savedSkinPath))
+                || !sameEqualizer(equalizer, savedEqualizer);
+
+        savedIndex = index;
+        savedRepeat = repeat;
+        savedPosition = position;
+        savedVolume = volume;
+        savedEngine = engine;
+        savedSkinPath = skin;
+        savedEqualizer = equalizer;
+
+        if (cursorChanged || settingsChanged) {
+            worker.execute(new Runnable() {
+                public void run() {
+                    boolean ok;
+                    if (queueToWrite != null) {
+                        ok = sessionFile.write(queueToWrite);
+                    } else {
+                        ok = sessionFile.writeCursor(index, repeat, positionMs);
+                    }
+                    if (settingsChanged) {
+                        ok &= writeSettings(volume, engine, skin, equalizer);
+                    }
+                    if (!ok) {
+                        handler.post(invalidate);
+                    }
+                }
+            });
+        }
+
+        // Keep the saved position roughly current while playing
+        if (controller.isPlaying()) {
+            schedule(POSITION_SAVE_INTERVAL_MS);
+        }
+    }
+
+    // A write failed: write everything on the next save
+    private final Runnable invalidate = new Runnable() {
+        public void run() {
+            savedModCount = -1;
+            savedVolume = -1;
+            savedEqualizer = null;
+        }
+    };
+
+    private boolean writeSettings(int volume, int engine, String skin, EqualizerState equalizer) {
+        short[] bands = equalizer.getBandLevels();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < bands.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(bands[i]);
+        }
+
+        SharedPreferences.Editor editor = prefs.edit();
+        editor.putInt(KEY_VOLUME, volume);
+        editor.putInt(KEY_ENGINE, engine);
+        if (skin != null) {
+            editor.putString(KEY_SKIN, skin);
+        } else {
+            editor.remove(KEY_SKIN);
+        }
+        editor.putBoolean(KEY_EQ_ENABLED, equalizer.isEnabled());
+        editor.putString(KEY_EQ_BANDS, sb.toString());
+        editor.putInt(KEY_EQ_BASS_BOOST, equalizer.getBassBoost());
+        editor.putInt(KEY_EQ_PRESET, equalizer.getPreset());
+        // Already on the worker thread, so commit synchronously
+        return editor.commit();
+    }
+
+    /**
+     * Read saved equalizer settings
+     * @return settings, or null if none were saved
+     */
+    private EqualizerState readEqualizer() {
+        String bands = prefs.getString(KEY_EQ_BANDS, null);
+        if (bands == null) return null;
+
+        EqualizerState state = new EqualizerState();
+        try {
+            String[] parts = bands.split(",");
+            short[] levels = new short[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                levels[i] = Short.parseShort(parts[i]);
+            }
+            state.setBandLevels(levels);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Ignoring bad equalizer bands: " + bands);
+            return null;
+        }
+        state.setEnabled(prefs.getBoolean(KEY_EQ_ENABLED, false));
+        state.setBassBoost((short) prefs.getInt(KEY_EQ_BASS_BOOST, 0));
+        state.setPreset(prefs.getInt(KEY_EQ_PRESET, Equalizer.PRESET_FLAT));
+        return state;
+    }
+
+    private static boolean sameEqualizer(EqualizerState a, EqualizerState b) {
+        if (a == null || b == null) return a == b;
+        return a.isEnabled() == b.isEnabled()
+                && a.getBassBoost() == b.getBassBoost()
+                && a.getPreset() == b.getPreset()
+                && Arrays.equals(a.getBandLevels(), b.getBandLevels());
+    }
+
+    /**
+     * Write pending changes and stop the worker once they are on disk
+     */
+    public void release() {
+        flush();
+        // No further saves (flush() re-arms the position timer while playing)
+        restored = false;
+        handler.removeCallbacks(saveRunnable);
+        saveScheduled = false;
+        worker.shutdown();
+    }
+
+    // Playlist.PlaylistListener implementation
+    @Override
+    public void onPlaylistChanged() {
+        requestSave();
+    }
+
+    @Override
+    public void onCurrentTrackChanged(Track track) {
+        requestSave();
+    }
+
+    // AudioEngine.AudioEngineListener implementation (main thread)
+    @Override
+    public void onPlaybackStarted(Track track) {
+        requestSave();
+    }
+
+    @Override
+    public void onPlaybackPaused() {
+        requestSave();
+    }
+
+    @Override
+    public void onPlaybackStopped() {
+        requestSave();
+    }
+
+    @Override
+    public void onPlaybackCompleted(Track track) {
+        // Followed by a cursor change
+    }
+
+    @Override
+    public void onTrackAdvanced(Track previous, Track current) {
+        // Followed by a cursor change
+    }
+
+    @Override
+    public void onPlaybackError(String error) {
+        // Nothing to save
+    }
+
+    @Override
+    public void onProgressUpdate(int currentMs, int durationMs) {
+        // Render thread; the position is saved on a timer instead
+    }
+}
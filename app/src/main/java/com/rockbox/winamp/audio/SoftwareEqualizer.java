@@ -0,0 +1,238 @@
+package com.rockbox.winamp.audio;
+
+/**
+ * Base class for the PCM-path 10-band equalizers.
+ * Holds band levels, preamp and the Equalizer preset API; subclasses
+ * supply the DSP kernel (float or fixed-point).
+ *
+ * Control methods may be called from any thread. Subclasses compute
+ * coefficients into pending storage under the lock and pick them up on
+ * the audio thread in publishCoefficients() when the dirty flag is set.
+ *
+ * Published changes are not applied instantly: kernels interpolate from
+ * the current to the new coefficients in SUB_BLOCK_FRAMES steps over the
+ * ramp time, so preset switches and slider moves do not click. Changes
+ * arriving mid-ramp restart it from the current coefficients. Format
+ * changes (configure) snap without a ramp.
+ */
+public abstract class SoftwareEqualizer implements PcmProcessor {
+
+    public static final int NUM_BANDS = 10;
+
+    public static final int DEFAULT_RAMP_MS = 40;
+
+    // One-octave bandwidth for each peaking filter
+    protected static final double Q = 1.41;
+
+    // Frames per coefficient interpolation step
+    protected static final int SUB_BLOCK_FRAMES = 32;
+
+    protected final short[] levels;
+    protected short preamp;
+    protected final Object lock = new Object();
+    protected volatile boolean dirty;
+    // Next publish replaces coefficients without ramping
+    protected boolean snap;
+    private volatile boolean enabled;
+    private volatile int rampMs;
+
+    protected int sampleRate;
+    protected int channelCount;
+
+    protected SoftwareEqualizer() {
+        this.levels = new short[NUM_BANDS];
+        this.preamp = 0;
+        this.enabled = false;
+        this.rampMs = DEFAULT_RAMP_MS;
+        this.sampleRate = 44100;
+        this.channelCount = 2;
+    }
+
+    /**
+     * Get DSP kernel type (DspKernels.KERNEL_*)
+     */
+    public abstract int getKernel();
+
+    /**
+     * Compute pending coefficients for one band (called with lock held)
+     */
+    protected abstract void computeCoefficients(int band);
+
+    /**
+     * Compute pending preamp gain (called with lock held)
+     */
+    protected abstract void computePreamp();
+
+    /**
+     * Reallocate filter state for the current format (called with lock held)
+     */
+    protected abstract void allocateState();
+
+    @Override
+    public void configure(int sampleRate, int channelCount) {
+        synchronized (lock) {
+            this.sampleRate = sampleRate;
+            this.channelCount = Math.max(1, channelCount);
+            allocateState();
+            for (int band = 0; band < NUM_BANDS; band++) {
+                computeCoefficients(band);
+            }
+            computePreamp();
+            snap = true;
+            dirty = true;
+        }
+    }
+
+    /**
+     * Set ramp time for coefficient changes (0 = immediate)
+     */
+    public void setRampMs(int rampMs) {
+        this.rampMs = Math.max(0, rampMs);
+    }
+
+    public int getRampMs() {
+        return rampMs;
+    }
+
+    /**
+     * Number of interpolation steps for the next published change
+     * (0 = apply immediately); clears the snap flag
+     */
+    protected int takeRampSteps() {
+        if (snap) {
+            snap = false;
+            return 0;
+        }
+        long frames = (long) rampMs * sampleRate / 1000;
+        return (int) (frames / SUB_BLOCK_FRAMES);
+    }
+
+    /**
+     * Enable or disable processing
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Set band level (-1500 to +1500 millibels)
+     */
+    public void setBandLevel(int band, short level) {
+        if (band < 0 || band >= NUM_BANDS) return;
+        synchronized (lock) {
+            levels[band] = clampLevel(level);
+            computeCoefficients(band);
+            dirty = true;
+        }
+    }
+
+    /**
+     * Get band level in millibels
+     */
+    public short getBandLevel(int band) {
+        if (band < 0 || band >= NUM_BANDS) return 0;
+        return levels[band];
+    }
+
+    /**
+     * Get band frequency (Hz)
+     */
+    public int getBandFrequency(int band) {
+        if (band < 0 || band >= NUM_BANDS) return 0;
+        return Equalizer.BAND_FREQUENCIES[band];
+    }
+
+    /**
+     * Set preamp gain (-1500 to +1500 millibels)
+     */
+    public void setPreamp(short level) {
+        synchronized (lock) {
+            preamp = clampLevel(level);
+            computePreamp();
+            dirty = true;
+        }
+    }
+
+    /**
+     * Get preamp gain in millibels
+     */
+    public short getPreamp() {
+        return preamp;
+    }
+
+    /**
+     * Apply one of the Equalizer presets to all 10 bands
+     */
+    public void applyPreset(int presetIndex) {
+        if (presetIndex < 0 || presetIndex >= Equalizer.PRESET_VALUES.length) return;
+        short[] values = Equalizer.PRESET_VALUES[presetIndex];
+        synchronized (lock) {
+            for (int band = 0; band < NUM_BANDS; band++) {
+                levels[band] = values[band];
+                computeCoefficients(band);
+            }
+            dirty = true;
+        }
+    }
+
+    /**
+     * Reset to flat (all bands at 0)
+     */
+    public void reset() {
+        applyPreset(Equalizer.PRESET_FLAT);
+    }
+
+    /**
+     * Copy levels, preamp and enabled state from another equalizer
+     */
+    public void copySettingsFrom(SoftwareEqualizer other) {
+        synchronized (lock) {
+            for (int band = 0; band < NUM_BANDS; band++) {
+                levels[band] = other.levels[band];
+            }
+            preamp = other.preamp;
+            configure(other.sampleRate, other.channelCount);
+        }
+        setEnabled(other.isEnabled());
+    }
+
+    /**
+     * Whether a band's filter is a pass-through at the current sample rate
+     */
+    protected boolean isBypassed(int band) {
+        return levels[band] == 0
+                || Equalizer.BAND_FREQUENCIES[band] >= sampleRate * 0.45;
+    }
+
+    /**
+     * RBJ peaking EQ coefficients {b0, b1, b2, a1, a2}, normalized by a0
+     */
+    protected void peakingCoefficients(int band, double[] out) {
+        double a = Math.pow(10.0, levels[band] / 4000.0); // millibels -> dB/40
+        double w0 = 2.0 * Math.PI * Equalizer.BAND_FREQUENCIES[band] / sampleRate;
+        double cos = Math.cos(w0);
+        double alpha = Math.sin(w0) / (2.0 * Q);
+        double a0 = 1.0 + alpha / a;
+
+        out[0] = (1.0 + alpha * a) / a0;
+        out[1] = -2.0 * cos / a0;
+        out[2] = (1.0 - alpha * a) / a0;
+        out[3] = -2.0 * cos / a0;
+        out[4] = (1.0 - alpha / a) / a0;
+    }
+
+    /**
+     * Preamp as a linear gain
+     */
+    protected double preampGain() {
+        return Math.pow(10.0, preamp / 2000.0);
+    }
+
+    private static short clampLevel(short level) {
+        return (short) Math.max(-1500, Math.min(1500, level));
+    }
+}
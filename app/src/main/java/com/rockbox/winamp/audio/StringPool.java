@@ -0,0 +1,33 @@
+package com.rockbox.winamp.audio;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Canonical instances of frequently repeated strings (directories, artist
+ * and album names), so a large library holds one copy of each value
+ * instead of one per track. Entries are never dropped; pools only see
+ * values whose number grows with folders and artists, not with tracks.
+ * Thread-safe.
+ */
+public class StringPool {
+
+    private final Map<String, String> pool = new HashMap<String, String>();
+
+    /**
+     * Get the pooled instance equal to s (s itself if it is new)
+     */
+    public synchronized String intern(String s) {
+        if (s == null) return null;
+        String pooled = pool.get(s);
+        if (pooled == null) {
+            pool.put(s, s);
+            pooled = s;
+        }
+        return pooled;
+    }
+
+    public synchronized int size() {
+        return pool.size();
+    }
+}
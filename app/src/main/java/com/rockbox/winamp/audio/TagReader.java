@@ -0,0 +1,780 @@
+package com.rockbox.winamp.audio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+
+/**
+ * Pure-Java tag reader for the formats we scan: ID3v2.2-2.4 and ID3v1,
+ * FLAC (STREAMINFO, VORBIS_COMMENT), Ogg Vorbis/Opus comments, MP4 ilst
+ * and WAV LIST/INFO.
+ *
+ * Only header bytes are read, through a small window buffer that is
+ * reused across files; large frames we do not need (cover art, audio
+ * data) are skipped with a seek. One instance per thread.
+ */
+public class TagReader {
+
+    // Detected container formats
+    public static final int FORMAT_UNKNOWN = 0;
+    public static final int FORMAT_MP3 = 1;
+    public static final int FORMAT_FLAC = 2;
+    public static final int FORMAT_OGG = 3;
+    public static final int FORMAT_MP4 = 4;
+    public static final int FORMAT_WAV = 5;
+
+    private static final int WINDOW_SIZE = 8192;
+    private static final int MAX_FIELD_SIZE = 1024 * 1024;
+    private static final int MAX_MP4_DEPTH = 8;
+
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Charset UTF16 = Charset.forName("UTF-16");
+    private static final Charset UTF16BE = Charset.forName("UTF-16BE");
+
+    // MP4 atom types
+    private static final int ATOM_MOOV = 0x6D6F6F76;
+    private static final int ATOM_UDTA = 0x75647461;
+    private static final int ATOM_META = 0x6D657461;
+    private static final int ATOM_ILST = 0x696C7374;
+    private static final int ATOM_MVHD = 0x6D766864;
+    private static final int ATOM_DATA = 0x64617461;
+    private static final int ATOM_NAME = 0x6E616D65;
+    private static final int ATOM_FREEFORM = 0x2D2D2D2D; // "----"
+    private static final int ATOM_TITLE = 0xA96E616D;    // "©nam"
+    private static final int ATOM_ARTIST = 0xA9415254;   // "©ART"
+    private static final int ATOM_ALBUM = 0xA9616C62;    // "©alb"
+
+    /**
+     * Result of a read; reused by the caller across files
+     */
+    public static class Tags {
+        public int format;
+        public String title;
+        public String artist;
+        public String album;
+        public int durationMs;
+        public int sampleRate;
+        public int channels;
+        public long audioOffset;
+        public ReplayGain.Info replayGain;
+
+        public Tags() {
+            clear();
+        }
+
+        public void clear() {
+            format = FORMAT_UNKNOWN;
+            title = null;
+            artist = null;
+            album = null;
+            durationMs = 0;
+            sampleRate = 0;
+            channels = 0;
+            audioOffset = 0;
+            replayGain = new ReplayGain.Info();
+        }
+
+        public boolean hasText() {
+            return title != null || artist != null || album != null;
+        }
+    }
+
+    private RandomAccessFile file;
+    private long fileLength;
+
+    // Read window over the file
+    private final byte[] window = new byte[WINDOW_SIZE];
+    private long windowStart;
+    private int windowLength;
+
+    // Scratch for frames/packets larger than a few bytes (grows on demand)
+    private byte[] field = new byte[4096];
+    private final int[] lacing = new int[255];
+
+    /**
+     * Read tags from a file
+     * @return true if the container was recognised
+     */
+    public boolean read(String path, Tags out) {
+        out.clear();
+        try {
+            file = new RandomAccessFile(path, "r");
+            fileLength = file.length();
+            windowStart = 0;
+            windowLength = 0;
+            readContainer(path, out);
+        } catch (IOException e) {
+            // Truncated or unreadable: keep whatever was parsed
+        } catch (RuntimeException e) {
+            // Corrupt sizes can send offsets anywhere; treat as unreadable
+            out.format = FORMAT_UNKNOWN;
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+                file = null;
+            }
+        }
+        return out.format != FORMAT_UNKNOWN;
+    }
+
+    private void readContainer(String path, Tags out) throws IOException {
+        long pos = 0;
+        if (matches(0, "ID3")) {
+            pos = readId3v2(0, out);
+            out.format = FORMAT_MP3;
+        }
+
+        if (matches(pos, "fLaC")) {
+            out.format = FORMAT_FLAC;
+            readFlac(pos + 4, out);
+        } else if (matches(pos, "OggS")) {
+            out.format = FORMAT_OGG;
+            readOgg(pos, out);
+        } else if (matches(pos + 4, "ftyp")) {
+            out.format = FORMAT_MP4;
+            readMp4(pos, fileLength, 0, false, out);
+        } else if (matches(pos, "RIFF") && matches(pos + 8, "WAVE")) {
+            out.format = FORMAT_WAV;
+            readWav(pos + 12, out);
+        } else if (isAdtsSync(pos)) {
+            // Raw AAC (ID3 may precede it); left to the platform retriever
+            out.format = FORMAT_UNKNOWN;
+        } else if (out.format == FORMAT_MP3 || isMpegSync(pos)
+                || path.toLowerCase().endsWith(".mp3")) {
+            out.format = FORMAT_MP3;
+            out.audioOffset = pos;
+            if (out.title == null || out.artist == null || out.album == null) {
+                readId3v1(out);
+            }
+        }
+    }
+
+    // ---- ID3v2 ----
+
+    /**
+     * Parse an ID3v2 tag at base
+     * @return offset of the first byte after the tag
+     */
+    private long readId3v2(long base, Tags out) throws IOException {
+        int o = load(base, 10);
+        int version = window[o + 3];
+        int flags = window[o + 5] & 0xFF;
+        int size = syncsafe(window, o + 6);
+        long end = base + 10 + size;
+        long next = end + ((flags & 0x10) != 0 ? 10 : 0); // footer
+        long p = base + 10;
+
+        if (version < 2 || version > 4) return next;
+
+        if ((flags & 0x80) != 0 && version < 4) {
+            // Whole-tag unsynchronisation (rare): parse from memory
+            byte[] tag = readField(p, size);
+            if (tag != null) {
+                int n = deUnsync(tag, 0, size);
+                int start = 0;
+                if (version == 3 && (flags & 0x40) != 0) {
+                    start = 4 + int32(tag, 0);
+                }
+                parseId3Frames(tag, start, n, version, out);
+            }
+            return next;
+        }
+
+        if ((flags & 0x40) != 0 && version >= 3) {
+            o = load(p, 4);
+            p += version == 4 ? syncsafe(window, o) : 4 + int32(window, o);
+        }
+
+        int headerLen = version == 2 ? 6 : 10;
+        while (p + headerLen <= end) {
+            o = load(p, headerLen);
+            if (window[o] == 0) break; // padding
+
+            int id = frameId(window, o, version);
+            int frameSize = frameSize(window, o, version);
+            int formatFlags = version == 2 ? 0 : window[o + 9] & 0xFF;
+            long body = p + headerLen;
+            if (frameSize <= 0 || body + frameSize > end) break;
+
+            if (isWantedFrame(id) && !isCompressedOrEncrypted(formatFlags, version)) {
+                byte[] data = readField(body, frameSize);
+                if (data != null) {
+                    int off = 0;
+                    int len = frameSize;
+                    if (version == 4 && (formatFlags & 0x01) != 0) {
+                        off += 4; // data length indicator
+                        len -= 4;
+                    }
+                    if (version == 4 && (formatFlags & 0x02) != 0) {
+                        len = deUnsync(data, off, len) - off;
+                    }
+                    handleId3Frame(id, data, off, len, out);
+                }
+            }
+            p = body + frameSize;
+        }
+        return next;
+    }
+
+    private void parseId3Frames(byte[] tag, int pos, int end, int version, Tags out) {
+        int headerLen = version == 2 ? 6 : 10;
+        while (pos + headerLen <= end) {
+            if (tag[pos] == 0) break;
+            int id = frameId(tag, pos, version);
+            int frameSize = frameSize(tag, pos, version);
+            int formatFlags = version == 2 ? 0 : tag[pos + 9] & 0xFF;
+            int body = pos + headerLen;
+            if (frameSize <= 0 || body + frameSize > end) break;
+            if (isWantedFrame(id) && !isCompressedOrEncrypted(formatFlags, version)) {
+                handleId3Frame(id, tag, body, frameSize, out);
+            }
+            pos = body + frameSize;
+        }
+    }
+
+    // v2.2 three-letter ids are mapped onto their v2.3 equivalents
+    private static final int FRAME_TITLE = 0x54495432;  // TIT2
+    private static final int FRAME_ARTIST = 0x54504531; // TPE1
+    private static final int FRAME_ALBUM = 0x54414C42;  // TALB
+    private static final int FRAME_USER = 0x54585858;   // TXXX
+    private static final int FRAME_LENGTH = 0x544C454E; // TLEN
+
+    private static int frameId(byte[] b, int off, int version) {
+        if (version != 2) return int32(b, off);
+        int id = ((b[off] & 0xFF) << 16) | ((b[off + 1] & 0xFF) << 8) | (b[off + 2] & 0xFF);
+        switch (id) {
+            case 0x545432: return FRAME_TITLE;  // TT2
+            case 0x545031: return FRAME_ARTIST; // TP1
+            case 0x54414C: return FRAME_ALBUM;  // TAL
+            case 0x545858: return FRAME_USER;   // TXX
+            case 0x544C45: return FRAME_LENGTH; // TLE
+            default: return id;
+        }
+    }
+
+    private static int frameSize(byte[] b, int off, int version) {
+        if (version == 2) {
+            return ((b[off + 3] & 0xFF) << 16) | ((b[off + 4] & 0xFF) << 8) | (b[off + 5] & 0xFF);
+        }
+        return version == 4 ? syncsafe(b, off + 4) : int32(b, off + 4);
+    }
+
+    private static boolean isWantedFrame(int id) {
+        return id == FRAME_TITLE || id == FRAME_ARTIST || id == FRAME_ALBUM
+                || id == FRAME_USER || id == FRAME_LENGTH;
+    }
+
+    private static boolean isCompressedOrEncrypted(int formatFlags, int version) {
+        if (version == 3) return (formatFlags & 0xC0) != 0;
+        if (version == 4) return (formatFlags & 0x0C) != 0;
+        return false;
+    }
+
+    private void handleId3Frame(int id, byte[] data, int off, int len, Tags out) {
+        if (len < 1) return;
+        int encoding = data[off];
+
+        if (id == FRAME_USER) {
+            boolean wide = encoding == 1 || encoding == 2;
+            int start = off + 1;
+            int end = off + len;
+            int split = findTerminator(data, start, end, wide);
+            if (split < 0) return;
+            String key = decode(data, start, split - start, encoding);
+            String value = decodeText(data, split + (wide ? 2 : 1),
+                    end - split - (wide ? 2 : 1), encoding);
+            if (key != null && value != null) {
+                out.replayGain.setField(key, value);
+            }
+            return;
+        }
+
+        String text = decodeText(data, off + 1, len - 1, encoding);
+        if (text == null) return;
+        if (id == FRAME_TITLE && out.title == null) {
+            out.title = text;
+        } else if (id == FRAME_ARTIST && out.artist == null) {
+            out.artist = text;
+        } else if (id == FRAME_ALBUM && out.album == null) {
+            out.album = text;
+        } else if (id == FRAME_LENGTH && out.durationMs == 0) {
+            try {
+                out.durationMs = Integer.parseInt(text.trim());
+            } catch (NumberFormatException e) {
+                // Ignore
+            }
+        }
+    }
+
+    // First value of an ID3 text frame (v2.4 allows several, NUL-separated)
+    private static String decodeText(byte[] data, int off, int len, int encoding) {
+        if (len <= 0) return null;
+        boolean wide = encoding == 1 || encoding == 2;
+        int end = findTerminator(data, off, off + len, wide);
+        return decode(data, off, (end < 0 ? off + len : end) - off, encoding);
+    }
+
+    private static String decode(byte[] data, int off, int len, int encoding) {
+        if (len <= 0) return null;
+        Charset charset;
+        switch (encoding) {
+            case 1: charset = UTF16; break;
+            case 2: charset = UTF16BE; break;
+            case 3: charset = UTF8; break;
+            default: charset = LATIN1; break;
+        }
+        String s = new String(data, off, len, charset).trim();
+        return s.length() > 0 ? s : null;
+    }
+
+    // ---- ID3v1 ----
+
+    private void readId3v1(Tags out) throws IOException {
+        if (fileLength < 128) return;
+        int o = load(fileLength - 128, 128);
+        if (window[o] != 'T' || window[o + 1] != 'A' || window[o + 2] != 'G') return;
+
+        if (out.title == null) out.title = latin1Field(window, o + 3, 30);
+        if (out.artist == null) out.artist = latin1Field(window, o + 33, 30);
+        if (out.album == null) out.album = latin1Field(window, o + 63, 30);
+    }
+
+    private static String latin1Field(byte[] b, int off, int len) {
+        int end = off;
+        while (end < off + len && b[end] != 0) end++;
+        String s = new String(b, off, end - off, LATIN1).trim();
+        return s.length() > 0 ? s : null;
+    }
+
+    // ---- FLAC ----
+
+    private void readFlac(long p, Tags out) throws IOException {
+        while (true) {
+            int o = load(p, 4);
+            boolean last = (window[o] & 0x80) != 0;
+            int type = window[o] & 0x7F;
+            int length = int24(window, o + 1);
+            long body = p + 4;
+
+            if (type == 0 && length >= 18) {
+                o = load(body, 18);
+                int rate = ((window[o + 10] & 0xFF) << 12) | ((window[o + 11] & 0xFF) << 4)
+                        | ((window[o + 12] & 0xFF) >> 4);
+                long samples = ((long) (window[o + 13] & 0x0F) << 32)
+                        | (int32(window, o + 14) & 0xFFFFFFFFL);
+                out.sampleRate = rate;
+                out.channels = ((window[o + 12] >> 1) & 0x07) + 1;
+                if (rate > 0 && samples > 0) {
+                    out.durationMs = (int) (samples * 1000 / rate);
+                }
+            } else if (type == 4) {
+                byte[] data = readField(body, length);
+                if (data != null) {
+                    readVorbisComments(data, 0, length, out);
+                }
+            }
+
+            p = body + length;
+            if (last) break;
+        }
+        out.audioOffset = p;
+    }
+
+    // Little-endian vendor string, count, then "KEY=value" entries
+    private void readVorbisComments(byte[] data, int pos, int end, Tags out) {
+        if (pos + 4 > end) return;
+        pos += 4 + int32le(data, pos);
+        if (pos < 0 || pos + 4 > end) return;
+        int count = int32le(data, pos);
+        pos += 4;
+
+        for (int i = 0; i < count && pos + 4 <= end; i++) {
+            int len = int32le(data, pos);
+            pos += 4;
+            if (len < 0 || pos + len > end) return;
+
+            int eq = pos;
+            while (eq < pos + len && data[eq] != '=') eq++;
+            if (eq > pos && eq < pos + len) {
+                String key = new String(data, pos, eq - pos, LATIN1);
+                int valueLen = pos + len - eq - 1;
+                // Skip embedded cover art without decoding it
+                if (valueLen < 4096 || key.regionMatches(true, 0, "REPLAYGAIN_", 0, 11)) {
+                    String value = new String(data, eq + 1, valueLen, UTF8);
+                    handleComment(key, value, out);
+                }
+            }
+            pos += len;
+        }
+    }
+
+    private static void handleComment(String key, String value, Tags out) {
+        if (value.length() == 0) return;
+        if (key.equalsIgnoreCase("TITLE")) {
+            if (out.title == null) out.title = value;
+        } else if (key.equalsIgnoreCase("ARTIST")) {
+            if (out.artist == null) out.artist = value;
+        } else if (key.equalsIgnoreCase("ALBUM")) {
+            if (out.album == null) out.album = value;
+        } else {
+            out.replayGain.setField(key, value);
+        }
+    }
+
+    // ---- Ogg ----
+
+    private void readOgg(long p, Tags out) throws IOException {
+        int packetIndex = 0;
+        int packetLength = 0;
+        int serial = 0;
+        boolean first = true;
+
+        while (packetIndex < 2 && p + 27 <= fileLength) {
+            int o = load(p, 27);
+            if (window[o] != 'O' || window[o + 1] != 'g' || window[o + 2] != 'g' || window[o + 3] != 'S') {
+                return;
+            }
+            int pageSerial = int32le(window, o + 14);
+            int segments = window[o + 26] & 0xFF;
+            o = load(p + 27, segments);
+            int total = 0;
+            for (int i = 0; i < segments; i++) {
+                lacing[i] = window[o + i] & 0xFF;
+                total += lacing[i];
+            }
+            long data = p + 27 + segments;
+
+            if (first) {
+                serial = pageSerial;
+                first = false;
+            }
+            if (pageSerial == serial) {
+                for (int i = 0; i < segments && packetIndex < 2; i++) {
+                    if (packetLength + lacing[i] > MAX_FIELD_SIZE) return;
+                    ensureField(packetLength + lacing[i]);
+                    readInto(data, field, packetLength, lacing[i]);
+                    packetLength += lacing[i];
+                    data += lacing[i];
+                    if (lacing[i] < 255) {
+                        handleOggPacket(packetIndex++, field, packetLength, out);
+                        packetLength = 0;
+                    }
+                }
+            }
+            p = p + 27 + segments + total;
+        }
+    }
+
+    private void handleOggPacket(int index, byte[] packet, int length, Tags out) {
+        if (index == 0) {
+            if (length >= 16 && packet[0] == 1 && startsWith(packet, 1, "vorbis")) {
+                out.channels = packet[11] & 0xFF;
+                out.sampleRate = int32le(packet, 12);
+            } else if (length >= 19 && startsWith(packet, 0, "OpusHead")) {
+                out.channels = packet[9] & 0xFF;
+                out.sampleRate = 48000; // Opus always decodes at 48 kHz
+            }
+        } else if (length >= 7 && packet[0] == 3 && startsWith(packet, 1, "vorbis")) {
+            readVorbisComments(packet, 7, length, out);
+        } else if (length >= 8 && startsWith(packet, 0, "OpusTags")) {
+            readVorbisComments(packet, 8, length, out);
+        }
+    }
+
+    // ---- MP4 ----
+
+    private void readMp4(long start, long end, int depth, boolean inIlst, Tags out) throws IOException {
+        long p = start;
+        while (p + 8 <= end) {
+            int o = load(p, 8);
+            long size = int32(window, o) & 0xFFFFFFFFL;
+            int type = int32(window, o + 4);
+            int header = 8;
+            if (size == 1) {
+                o = load(p + 8, 8);
+                size = ((long) int32(window, o) << 32) | (int32(window, o + 4) & 0xFFFFFFFFL);
+                header = 16;
+            } else if (size == 0) {
+                size = end - p;
+            }
+            if (size < header || p + size > end) return;
+            long body = p + header;
+            long next = p + size;
+
+            if (inIlst) {
+                readMp4Item(type, body, next, out);
+            } else if (depth < MAX_MP4_DEPTH) {
+                if (type == ATOM_MOOV || type == ATOM_UDTA) {
+                    readMp4(body, next, depth + 1, false, out);
+                } else if (type == ATOM_META) {
+                    // iTunes 'meta' is a full box; QuickTime's is not
+                    o = load(body, 8);
+                    long children = int32(window, o) == 0 ? body + 4 : body;
+                    readMp4(children, next, depth + 1, false, out);
+                } else if (type == ATOM_ILST) {
+                    readMp4(body, next, depth + 1, true, out);
+                } else if (type == ATOM_MVHD) {
+                    readMvhd(body, out);
+                }
+            }
+            p = next;
+        }
+    }
+
+    private void readMvhd(long body, Tags out) throws IOException {
+        int o = load(body, 32);
+        int version = window[o];
+        long timescale;
+        long duration;
+        if (version == 1) {
+            timescale = int32(window, o + 20) & 0xFFFFFFFFL;
+            duration = ((long) int32(window, o + 24) << 32) | (int32(window, o + 28) & 0xFFFFFFFFL);
+        } else {
+            timescale = int32(window, o + 12) & 0xFFFFFFFFL;
+            duration = int32(window, o + 16) & 0xFFFFFFFFL;
+        }
+        if (timescale > 0) {
+            out.durationMs = (int) (duration * 1000 / timescale);
+        }
+    }
+
+    private void readMp4Item(int type, long start, long end, Tags out) throws IOException {
+        if (type != ATOM_TITLE && type != ATOM_ARTIST && type != ATOM_ALBUM && type != ATOM_FREEFORM) {
+            return;
+        }
+
+        String name = null;
+        long p = start;
+        while (p + 8 <= end) {
+            int o = load(p, 8);
+            long size = int32(window, o) & 0xFFFFFFFFL;
+            int child = int32(window, o + 4);
+            if (size < 8 || p + size > end) return;
+            int bodyLen = (int) size - 8;
+
+            if (child == ATOM_NAME && bodyLen > 4) {
+                // Freeform key (after version/flags)
+                byte[] data = readField(p + 12, bodyLen - 4);
+                if (data != null) name = new String(data, 0, bodyLen - 4, UTF8);
+            } else if (child == ATOM_DATA && bodyLen > 8) {
+                // Type indicator and locale, then the value
+                byte[] data = readField(p + 16, bodyLen - 8);
+                if (data == null) return;
+                String value = new String(data, 0, bodyLen - 8, UTF8).trim();
+                if (value.length() == 0) return;
+
+                if (type == ATOM_TITLE) {
+                    if (out.title == null) out.title = value;
+                } else if (type == ATOM_ARTIST) {
+                    if (out.artist == null) out.artist = value;
+                } else if (type == ATOM_ALBUM) {
+                    if (out.album == null) out.album = value;
+                } else if (name != null) {
+                    out.replayGain.setField(name, value);
+                }
+                return;
+            }
+            p += size;
+        }
+    }
+
+    // ---- WAV ----
+
+    private void readWav(long p, Tags out) throws IOException {
+        int byteRate = 0;
+        long dataSize = -1;
+
+        while (p + 8 <= fileLength) {
+            int o = load(p, 8);
+            int id = int32(window, o);
+            long size = int32le(window, o + 4) & 0xFFFFFFFFL;
+            long body = p + 8;
+
+            if (id == 0x666D7420 && size >= 16) { // "fmt "
+                o = load(body, 16);
+                out.channels = (window[o + 2] & 0xFF) | ((window[o + 3] & 0xFF) << 8);
+                out.sampleRate = int32le(window, o + 4);
+                byteRate = int32le(window, o + 8);
+            } else if (id == 0x64617461) { // "data"
+                out.audioOffset = body;
+                dataSize = Math.min(size, fileLength - body);
+                if (size == 0 || size == 0xFFFFFFFFL) {
+                    dataSize = fileLength - body; // streamed WAV
+                }
+            } else if (id == 0x4C495354) { // "LIST"
+                readWavInfo(body, Math.min(fileLength, body + size), out);
+            } else if (id == 0x69643320 || id == 0x49443320) { // "id3 " / "ID3 "
+                if (matches(body, "ID3")) {
+                    readId3v2(body, out);
+                }
+            }
+
+            p = body + size + (size & 1);
+        }
+
+        if (byteRate > 0 && dataSize > 0) {
+            out.durationMs = (int) (dataSize * 1000 / byteRate);
+        }
+    }
+
+    private void readWavInfo(long start, long end, Tags out) throws IOException {
+        if (!matches(start, "INFO")) return;
+        long p = start + 4;
+        while (p + 8 <= end) {
+            int o = load(p, 8);
+            int id = int32(window, o);
+            int size = int32le(window, o + 4);
+            if (size < 0 || p + 8 + size > end) return;
+
+            if (id == 0x494E414D || id == 0x49415254 || id == 0x49505244) { // INAM IART IPRD
+                byte[] data = readField(p + 8, size);
+                if (data != null) {
+                    int len = 0;
+                    while (len < size && data[len] != 0) len++;
+                    String value = new String(data, 0, len, UTF8).trim();
+                    if (value.length() > 0) {
+                        if (id == 0x494E414D && out.title == null) out.title = value;
+                        if (id == 0x49415254 && out.artist == null) out.artist = value;
+                        if (id == 0x49505244 && out.album == null) out.album = value;
+                    }
+                }
+            }
+            p += 8 + size + (size & 1);
+        }
+    }
+
+    // ---- I/O helpers ----
+
+    /**
+     * Make [pos, pos + len) available in the window
+     * @return offset of pos within the window
+     */
+    private int load(long pos, int len) throws IOException {
+        if (pos < 0 || len > WINDOW_SIZE || pos + len > fileLength) {
+            throw new EOFException();
+        }
+        if (pos >= windowStart && pos + len <= windowStart + windowLength) {
+            return (int) (pos - windowStart);
+        }
+        int n = (int) Math.min(WINDOW_SIZE, fileLength - pos);
+        file.seek(pos);
+        file.readFully(window, 0, n);
+        windowStart = pos;
+        windowLength = n;
+        return 0;
+    }
+
+    /**
+     * Read len bytes at pos into the scratch field buffer
+     * @return the buffer, or null if the field is too large to bother with
+     */
+    private byte[] readField(long pos, int len) throws IOException {
+        if (len < 0 || len > MAX_FIELD_SIZE) return null;
+        ensureField(len);
+        readInto(pos, field, 0, len);
+        return field;
+    }
+
+    private void readInto(long pos, byte[] dst, int off, int len) throws IOException {
+        if (len <= WINDOW_SIZE) {
+            int o = load(pos, len);
+            System.arraycopy(window, o, dst, off, len);
+        } else {
+            if (pos + len > fileLength) throw new EOFException();
+            file.seek(pos);
+            file.readFully(dst, off, len);
+        }
+    }
+
+    private void ensureField(int len) {
+        if (field.length < len) {
+            field = new byte[Math.max(len, field.length * 2)];
+        }
+    }
+
+    private boolean matches(long pos, String magic) throws IOException {
+        if (pos + magic.length() > fileLength) return false;
+        int o = load(pos, magic.length());
+        return startsWith(window, o, magic);
+    }
+
+    /**
+     * Frame sync of an MPEG audio header: 11 set bits, then a valid
+     * version and layer (ADTS AAC shares the sync but has layer 0)
+     */
+    private boolean isMpegSync(long pos) throws IOException {
+        if (pos + 2 > fileLength) return false;
+        int o = load(pos, 2);
+        int b1 = window[o + 1] & 0xFF;
+        return (window[o] & 0xFF) == 0xFF && (b1 & 0xE0) == 0xE0
+                && ((b1 >> 3) & 0x03) != 1 && ((b1 >> 1) & 0x03) != 0;
+    }
+
+    /**
+     * ADTS (raw AAC) header: 12-bit sync and layer 0
+     */
+    private boolean isAdtsSync(long pos) throws IOException {
+        if (pos + 2 > fileLength) return false;
+        int o = load(pos, 2);
+        return (window[o] & 0xFF) == 0xFF && (window[o + 1] & 0xF6) == 0xF0;
+    }
+
+    private static boolean startsWith(byte[] b, int off, String magic) {
+        if (off + magic.length() > b.length) return false;
+        for (int i = 0; i < magic.length(); i++) {
+            if (b[off + i] != magic.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static int findTerminator(byte[] data, int start, int end, boolean wide) {
+        if (wide) {
+            for (int i = start; i + 1 < end; i += 2) {
+                if (data[i] == 0 && data[i + 1] == 0) return i;
+            }
+        } else {
+            for (int i = start; i < end; i++) {
+                if (data[i] == 0) return i;
+            }
+        }
+        return -1;
+    }
+
+    // Undo ID3 unsynchronisation (0xFF 0x00 -> 0xFF) in place; returns new end
+    private static int deUnsync(byte[] b, int off, int len) {
+        int w = off;
+        int end = off + len;
+        for (int r = off; r < end; r++) {
+            b[w++] = b[r];
+            if ((b[r] & 0xFF) == 0xFF && r + 1 < end && b[r + 1] == 0) {
+                r++;
+            }
+        }
+        return w;
+    }
+
+    private static int syncsafe(byte[] b, int off) {
+        return ((b[off] & 0x7F) << 21) | ((b[off + 1] & 0x7F) << 14)
+                | ((b[off + 2] & 0x7F) << 7) | (b[off + 3] & 0x7F);
+    }
+
+    private static int int24(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 16) | ((b[off + 1] & 0xFF) << 8) | (b[off + 2] & 0xFF);
+    }
+
+    private static int int32(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16)
+                | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+
+    private static int int32le(byte[] b, int off) {
+        return (b[off] & 0xFF) | ((b[off + 1] & 0xFF) << 8)
+                | ((b[off + 2] & 0xFF) << 16) | ((b[off + 3] & 0xFF) << 24);
+    }
+}
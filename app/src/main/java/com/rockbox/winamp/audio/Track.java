@@ -4,43 +4,93 @@ import java.io.File;
 
 /**
  * Represents an audio track with metadata.
+ *
+ * Kept small for 100k-track libraries: the path is stored as a pooled
+ * directory plus the file name, the title is only stored when it differs
+ * from the file name, and artist and album names are pooled.
  */
 public class Track {
 
-    private String filePath;
-    private String title;
+    // Shared by every track in the process
+    private static final StringPool DIRECTORIES = new StringPool();
+    private static final StringPool TAGS = new StringPool();
+
+    private final String directory; // null if the path has no '/'
+    private final String name;
+    private String title;           // null = file name without extension
     private String artist;
     private String album;
     private int durationMs;
     private long fileSize;
 
     public Track(String filePath) {
-        this.filePath = filePath;
-        this.title = null;
-        this.artist = null;
-        this.album = null;
-        this.durationMs = 0;
-        this.fileSize = 0;
+        this(filePath, 0);
 
         // Extract basic info from file
         File file = new File(filePath);
         if (file.exists()) {
             this.fileSize = file.length();
-            // Use filename as default title
-            this.title = file.getName();
-            if (this.title.lastIndexOf('.') > 0) {
-                this.title = this.title.substring(0, this.title.lastIndexOf('.'));
-            }
         }
     }
 
+    /**
+     * Create a track whose size is already known (e.g. from the library
+     * index), or not needed yet (0), without touching the file
+     */
+    public Track(String filePath, long fileSize) {
+        int slash = filePath.lastIndexOf('/');
+        this.directory = slash >= 0 ? DIRECTORIES.intern(filePath.substring(0, slash)) : null;
+        this.name = filePath.substring(slash + 1);
+        this.fileSize = fileSize;
+    }
+
+    /**
+     * Create a track from a directory and a file name in it, without
+     * building the full path (index and session loading)
+     */
+    public Track(String directory, String name, long fileSize) {
+        this.directory = DIRECTORIES.intern(directory);
+        this.name = name;
+        this.fileSize = fileSize;
+    }
+
+    private Track(String directory, String name) {
+        this.directory = directory;
+        this.name = name;
+    }
+
+    /**
+     * Create a track only for matching against others (equals/hashCode).
+     * Its directory is not pooled, so lookups for paths that are not in
+     * the library leave nothing behind.
+     */
+    static Track probe(String filePath) {
+        int slash = filePath.lastIndexOf('/');
+        return new Track(slash >= 0 ? filePath.substring(0, slash) : null,
+                filePath.substring(slash + 1));
+    }
+
     // Getters
     public String getFilePath() {
-        return filePath;
+        return directory != null ? directory + "/" + name : name;
+    }
+
+    /**
+     * Get the directory holding the file ("" for files in the root)
+     */
+    public String getDirectory() {
+        return directory != null ? directory : "";
+    }
+
+    public String getFileName() {
+        return name;
     }
 
     public String getTitle() {
-        return title != null ? title : "Unknown";
+        if (title != null) return title;
+        // Use filename as default title
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
     }
 
     public String getArtist() {
@@ -63,27 +113,33 @@ public class Track {
         return fileSize;
     }
 
-    public String getFileName() {
-        return new File(filePath).getName();
-    }
-
     // Setters
     public void setTitle(String title) {
-        this.title = title;
+        this.title = title != null && isDefaultTitle(title) ? null : title;
     }
 
     public void setArtist(String artist) {
-        this.artist = artist;
+        this.artist = TAGS.intern(artist);
     }
 
     public void setAlbum(String album) {
-        this.album = album;
+        this.album = TAGS.intern(album);
+    }
+
+    private boolean isDefaultTitle(String title) {
+        int dot = name.lastIndexOf('.');
+        int length = dot > 0 ? dot : name.length();
+        return title.length() == length && name.startsWith(title);
     }
 
     public void setDurationMs(int durationMs) {
         this.durationMs = durationMs;
     }
 
+    public void setFileSize(long fileSize) {
+        this.fileSize = fileSize;
+    }
+
     /**
      * Get display string for UI
      * Format: "Artist - Title"
@@ -129,11 +185,13 @@ public class Track {
     public boolean equals(Object obj) {
         if (!(obj instanceof Track)) return false;
         Track other = (Track) obj;
-        return filePath != null && filePath.equals(other.filePath);
+        // Pooled directories are usually the same instance
+        return name.equals(other.name) && (directory == other.directory
+                || (directory != null && directory.equals(other.directory)));
     }
 
     @Override
     public int hashCode() {
-        return filePath != null ? filePath.hashCode() : 0;
+        return (directory != null ? directory.hashCode() * 31 : 0) + name.hashCode();
     }
 }
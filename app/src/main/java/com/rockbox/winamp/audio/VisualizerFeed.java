@@ -0,0 +1,227 @@
+package com.rockbox.winamp.audio;
+
+import android.media.audiofx.Visualizer;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Latest waveform and spectrum snapshot for the visualizer display.
+ * Filled by android.media.audiofx.Visualizer on an audio session, or by
+ * a PCM tap on the software path. The renderer copies the snapshot out
+ * once per frame into its own preallocated arrays. For the PCM tap the
+ * spectrum is computed on the reading thread with Fft.
+ */
+public class VisualizerFeed {
+
+    private static final String TAG = "VisualizerFeed";
+
+    // Largest capture handled (samples)
+    public static final int MAX_CAPTURE = 1024;
+
+    // Data older than this is treated as silence (ms)
+    private static final long STALE_MS = 250;
+
+    private final Object lock = new Object();
+    private final float[] waveform = new float[MAX_CAPTURE];
+    private final float[] spectrum = new float[MAX_CAPTURE / 2];
+    private int waveformLength;
+    private int spectrumLength;
+    private int sampleRate = 44100;
+    private long waveformTimeMs;
+    private long spectrumTimeMs;
+    private long pcmTimeMs;
+
+    // Spectrum of the PCM tap (reader thread only)
+    private final Fft fft = new Fft(MAX_CAPTURE, Fft.WINDOW_HANN);
+    private final float[] fftInput = new float[MAX_CAPTURE];
+
+    private Visualizer visualizer;
+    private int sessionId;
+
+    /**
+     * Capture from an audio session (no-op if already attached to it)
+     */
+    public void attach(int audioSessionId) {
+        if (visualizer != null && audioSessionId == sessionId) return;
+        detach();
+
+        try {
+            Visualizer v = new Visualizer(audioSessionId);
+            v.setEnabled(false);
+            int[] range = Visualizer.getCaptureSizeRange();
+            v.setCaptureSize(Math.max(range[0], Math.min(MAX_CAPTURE, range[1])));
+            v.setDataCaptureListener(captureListener, Visualizer.getMaxCaptureRate(), true, true);
+            v.setEnabled(true);
+            visualizer = v;
+            sessionId = audioSessionId;
+            Log.d(TAG, "Visualizer attached (session: " + audioSessionId
+                    + ", capture: " + v.getCaptureSize() + ")");
+        } catch (RuntimeException e) {
+            // Missing RECORD_AUDIO permission or no visualizer on this device
+            Log.w(TAG, "Visualizer unavailable", e);
+            visualizer = null;
+        }
+    }
+
+    /**
+     * Stop capturing from the audio session
+     */
+    public void detach() {
+        if (visualizer == null) return;
+        try {
+            visualizer.setEnabled(false);
+            visualizer.release();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Error releasing visualizer", e);
+        }
+        visualizer = null;
+        sessionId = 0;
+    }
+
+    /**
+     * Check if a session visualizer is attached
+     */
+    public boolean isAttached() {
+        return visualizer != null;
+    }
+
+    /**
+     * Create a processor that feeds the waveform from decoded PCM
+     */
+    public PcmProcessor createPcmTap() {
+        return new PcmTap();
+    }
+
+    /**
+     * Copy the latest waveform (-1..1) into out
+     * @return number of samples, 0 if nothing recent
+     */
+    public int readWaveform(float[] out) {
+        synchronized (lock) {
+            if (isStale(waveformTimeMs)) return 0;
+            int n = Math.min(out.length, waveformLength);
+            System.arraycopy(waveform, 0, out, 0, n);
+            return n;
+        }
+    }
+
+    /**
+     * Copy the latest magnitude spectrum (DC..Nyquist, ~0..1) into out
+     * @return number of bins, 0 if nothing recent
+     */
+    public int readSpectrum(float[] out) {
+        synchronized (lock) {
+            if (isStale(pcmTimeMs)) {
+                if (isStale(spectrumTimeMs)) return 0;
+                int n = Math.min(out.length, spectrumLength);
+                System.arraycopy(spectrum, 0, out, 0, n);
+                return n;
+            }
+            System.arraycopy(waveform, 0, fftInput, 0, MAX_CAPTURE);
+        }
+
+        // Transform outside the lock so the audio thread never waits on it
+        if (out.length < fft.getBinCount()) return 0;
+        return fft.magnitudes(fftInput, 0, out);
+    }
+
+    /**
+     * Get sample rate of the current source (Hz)
+     */
+    public int getSampleRate() {
+        synchronized (lock) {
+            return sampleRate;
+        }
+    }
+
+    /**
+     * Release resources
+     */
+    public void release() {
+        detach();
+        synchronized (lock) {
+            waveformLength = 0;
+            spectrumLength = 0;
+        }
+    }
+
+    private boolean isStale(long timeMs) {
+        return SystemClock.uptimeMillis() - timeMs > STALE_MS;
+    }
+
+    private final Visualizer.OnDataCaptureListener captureListener =
+            new Visualizer.OnDataCaptureListener() {
+        public void onWaveFormDataCapture(Visualizer v, byte[] data, int samplingRate) {
+            synchronized (lock) {
+                // The PCM tap is closer to the source; prefer it while it is live
+                if (!isStale(pcmTimeMs)) return;
+                int n = Math.min(MAX_CAPTURE, data.length);
+                for (int i = 0; i < n; i++) {
+                    waveform[i] = ((data[i] & 0xFF) - 128) / 128.0f;
+                }
+                waveformLength = n;
+                sampleRate = samplingRate / 1000; // mHz
+                waveformTimeMs = SystemClock.uptimeMillis();
+            }
+        }
+
+        public void onFftDataCapture(Visualizer v, byte[] fft, int samplingRate) {
+            synchronized (lock) {
+                // Layout: Re0, Re(n/2), then Re/Im pairs for bins 1..n/2-1
+                int bins = Math.min(spectrum.length, fft.length / 2);
+                spectrum[0] = Math.abs(fft[0]) / 128.0f;
+                for (int k = 1; k < bins; k++) {
+                    float re = fft[2 * k];
+                    float im = fft[2 * k + 1];
+                    spectrum[k] = (float) Math.sqrt(re * re + im * im) / 128.0f;
+                }
+                spectrumLength = bins;
+                sampleRate = samplingRate / 1000;
+                spectrumTimeMs = SystemClock.uptimeMillis();
+            }
+        }
+    };
+
+    /**
+     * Mono downmix of the output stream into a short history ring
+     */
+    private class PcmTap implements PcmProcessor {
+        private final float[] history = new float[MAX_CAPTURE];
+        private int historyPos;
+        private int channelCount = 2;
+        private int rate = 44100;
+
+        public void configure(int sampleRate, int channelCount) {
+            this.rate = sampleRate;
+            this.channelCount = Math.max(1, channelCount);
+            historyPos = 0;
+        }
+
+        public void process(short[] buffer, int offset, int length) {
+            int channels = channelCount;
+            int end = offset + length - channels + 1;
+            float scale = 1.0f / (32768.0f * channels);
+            int pos = historyPos;
+            for (int i = offset; i < end; i += channels) {
+                int sum = 0;
+                for (int c = 0; c < channels; c++) {
+                    sum += buffer[i + c];
+                }
+                history[pos] = sum * scale;
+                pos = (pos + 1) & (MAX_CAPTURE - 1);
+            }
+            historyPos = pos;
+
+            synchronized (lock) {
+                // Unroll the ring, oldest sample first
+                int tail = MAX_CAPTURE - pos;
+                System.arraycopy(history, pos, waveform, 0, tail);
+                System.arraycopy(history, 0, waveform, tail, pos);
+                waveformLength = MAX_CAPTURE;
+                sampleRate = rate;
+                pcmTimeMs = SystemClock.uptimeMillis();
+                waveformTimeMs = pcmTimeMs;
+            }
+        }
+    }
+}
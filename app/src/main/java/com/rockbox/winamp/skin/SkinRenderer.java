@@ -7,6 +7,8 @@ import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.RectF;
 
+import com.rockbox.winamp.audio.VisualizerFeed;
+
 /**
  * Renders Winamp-style UI using Canvas.
  * Phase 2: Renders loaded .wsz skin bitmaps when available.
@@ -55,9 +57,15 @@ public class SkinRenderer {
     private boolean repeat = false;
     private int focusedButton = -1; // -1 = none, 0-4 = button index
 
+    // Visualizer (spectrum / oscilloscope)
+    private VisualizerRenderer visualizerRenderer;
+    private VisualizerFeed visualizerFeed;
+    private Rect visualizerRect = new Rect();
+
     public SkinRenderer() {
         this.skinAssets = null;
         this.skinParser = new SkinParser();
+        this.visualizerRenderer = new VisualizerRenderer();
         initPaints();
         // Initialize with default size (will be updated by setDisplaySize)
         setDisplaySize(720, 720); // Default for BB Classic
@@ -134,6 +142,15 @@ public class SkinRenderer {
         // Center on screen
         offsetX = (width - scaleX) / 2;
         offsetY = (height - scaleY) / 2;
+
+        // Visualizer area scaled with the main window
+        Rect vis = skinParser.getVisualizerRect();
+        visualizerRect.set(
+            offsetX + vis.left * scaleX / WINAMP_WIDTH,
+            offsetY + vis.top * scaleY / WINAMP_HEIGHT,
+            offsetX + vis.right * scaleX / WINAMP_WIDTH,
+            offsetY + vis.bottom * scaleY / WINAMP_HEIGHT
+        );
     }
 
     /**
@@ -196,6 +213,9 @@ public class SkinRenderer {
         // Draw shuffle/repeat indicators
         drawModeIndicators(canvas);
 
+        // Draw spectrum / oscilloscope
+        drawVisualizer(canvas);
+
         // Draw usage hint
         drawHint(canvas);
     }
@@ -219,6 +239,18 @@ public class SkinRenderer {
 
         // Draw status indicator
         drawPlaybackStatus(canvas);
+
+        // Draw spectrum / oscilloscope
+        drawVisualizer(canvas);
+    }
+
+    /**
+     * Draw visualizer into the skin's visualizer area
+     */
+    private void drawVisualizer(Canvas canvas) {
+        if (visualizerRenderer.getMode() == VisualizerRenderer.MODE_OFF) return;
+        visualizerRenderer.update(visualizerFeed);
+        visualizerRenderer.draw(canvas, visualizerRect);
     }
 
     /**
@@ -486,6 +518,14 @@ public class SkinRenderer {
         return focusedButton;
     }
 
+    public void setVisualizerFeed(VisualizerFeed feed) {
+        this.visualizerFeed = feed;
+    }
+
+    public VisualizerRenderer getVisualizer() {
+        return visualizerRenderer;
+    }
+
     /**
      * Hit test for button clicks (touch/trackpad)
      * Returns button ID: 0=PREV, 1=PLAY, 2=PAUSE, 3=STOP, 4=NEXT, -1=none
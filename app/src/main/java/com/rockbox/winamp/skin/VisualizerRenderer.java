@@ -0,0 +1,258 @@
+package com.rockbox.winamp.skin;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Shader;
+
+import com.rockbox.winamp.audio.Fft;
+import com.rockbox.winamp.audio.VisualizerFeed;
+
+/**
+ * Winamp-style spectrum analyzer (19 bars with peak hold) and
+ * oscilloscope for the main window visualizer area.
+ * All per-frame work runs on preallocated arrays, and each layer is
+ * drawn with a single drawLines() call.
+ */
+public class VisualizerRenderer {
+
+    // Modes
+    public static final int MODE_OFF = 0;
+    public static final int MODE_SPECTRUM = 1;
+    public static final int MODE_OSCILLOSCOPE = 2;
+
+    private static final String[] MODE_NAMES = {
+        "Off", "Spectrum", "Oscilloscope"
+    };
+
+    // Classic analyzer layout
+    public static final int NUM_BARS = 19;
+    private static final int SCOPE_POINTS = 75; // one per skin pixel
+
+    // Level mapping and decay (per frame at ~30 FPS)
+    private static final float MIN_DB = -60.0f;
+    private static final float MIN_FREQ = 40.0f;
+    private static final float BAR_FALLOFF = 0.06f;
+    private static final float PEAK_FALLOFF = 0.015f;
+    private static final int PEAK_HOLD_FRAMES = 15;
+
+    // Classic palette: green at the bottom, red at the top
+    private static final int COLOR_BAR_LOW = Color.rgb(0, 200, 0);
+    private static final int COLOR_BAR_MID = Color.rgb(220, 220, 0);
+    private static final int COLOR_BAR_HIGH = Color.rgb(230, 40, 0);
+    private static final int COLOR_PEAK = Color.rgb(150, 150, 150);
+    private static final int COLOR_SCOPE = Color.rgb(255, 255, 255);
+
+    private int mode;
+
+    // Analysis state
+    private final float[] spectrum = new float[VisualizerFeed.MAX_CAPTURE / 2];
+    private final float[] waveform = new float[VisualizerFeed.MAX_CAPTURE];
+    private final int[] bandEdges = new int[NUM_BARS + 1];
+    private final float[] bandPeaks = new float[NUM_BARS];
+    private int edgeBins = -1;
+    private int edgeRate = -1;
+    private final float[] bars = new float[NUM_BARS];
+    private final float[] peaks = new float[NUM_BARS];
+    private final int[] peakHold = new int[NUM_BARS];
+    private int scopeLength;
+
+    // Draw batches (x0, y0, x1, y1 per line)
+    private final float[] barLines = new float[NUM_BARS * 4];
+    private final float[] peakLines = new float[NUM_BARS * 4];
+    private final float[] scopeLines = new float[(SCOPE_POINTS - 1) * 4];
+
+    private final Paint barPaint;
+    private final Paint peakPaint;
+    private final Paint scopePaint;
+    private int shaderTop = -1;
+    private int shaderBottom = -1;
+
+    public VisualizerRenderer() {
+        this.mode = MODE_SPECTRUM;
+
+        barPaint = new Paint();
+        barPaint.setStyle(Paint.Style.STROKE);
+        barPaint.setStrokeCap(Paint.Cap.BUTT);
+
+        peakPaint = new Paint();
+        peakPaint.setColor(COLOR_PEAK);
+        peakPaint.setStyle(Paint.Style.STROKE);
+        peakPaint.setStrokeCap(Paint.Cap.BUTT);
+
+        scopePaint = new Paint();
+        scopePaint.setColor(COLOR_SCOPE);
+        scopePaint.setStyle(Paint.Style.STROKE);
+    }
+
+    /**
+     * Set display mode (MODE_OFF, MODE_SPECTRUM, MODE_OSCILLOSCOPE)
+     */
+    public void setMode(int mode) {
+        if (mode < MODE_OFF || mode > MODE_OSCILLOSCOPE) return;
+        this.mode = mode;
+        for (int i = 0; i < NUM_BARS; i++) {
+            bars[i] = 0;
+            peaks[i] = 0;
+            peakHold[i] = 0;
+        }
+        scopeLength = 0;
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    /**
+     * Advance to the next mode
+     * @return the new mode
+     */
+    public int cycleMode() {
+        setMode((mode + 1) % MODE_NAMES.length);
+        return mode;
+    }
+
+    /**
+     * Get mode name for display
+     */
+    public static String getModeName(int mode) {
+        if (mode >= 0 && mode < MODE_NAMES.length) {
+            return MODE_NAMES[mode];
+        }
+        return "Unknown";
+    }
+
+    /**
+     * Pull the latest data from the feed and advance bar decay (once per frame)
+     */
+    public void update(VisualizerFeed feed) {
+        if (mode == MODE_SPECTRUM) {
+            int bins = feed != null ? feed.readSpectrum(spectrum) : 0;
+            if (bins > 1) {
+                updateBandEdges(bins, feed.getSampleRate());
+                Fft.binToBands(spectrum, bandEdges, bandPeaks);
+            }
+            for (int i = 0; i < NUM_BARS; i++) {
+                decayBar(i, bins > 1 ? toLevel(bandPeaks[i]) : 0.0f);
+            }
+        } else if (mode == MODE_OSCILLOSCOPE) {
+            scopeLength = feed != null ? feed.readWaveform(waveform) : 0;
+        }
+    }
+
+    /**
+     * Draw into the given screen rectangle
+     */
+    public void draw(Canvas canvas, Rect dst) {
+        if (mode == MODE_SPECTRUM) {
+            drawSpectrum(canvas, dst);
+        } else if (mode == MODE_OSCILLOSCOPE) {
+            drawOscilloscope(canvas, dst);
+        }
+    }
+
+    private void drawSpectrum(Canvas canvas, Rect dst) {
+        float slot = (float) dst.width() / NUM_BARS;
+        float barWidth = Math.max(1.0f, slot * 0.75f);
+        float height = dst.height();
+        float bottom = dst.bottom;
+
+        updateBarShader(dst);
+        barPaint.setStrokeWidth(barWidth);
+        peakPaint.setStrokeWidth(Math.max(1.0f, height / 15.0f));
+
+        int barCount = 0;
+        int peakCount = 0;
+        for (int i = 0; i < NUM_BARS; i++) {
+            float x = dst.left + slot * i + slot * 0.5f;
+            if (bars[i] > 0.0f) {
+                barLines[barCount++] = x;
+                barLines[barCount++] = bottom;
+                barLines[barCount++] = x;
+                barLines[barCount++] = bottom - bars[i] * height;
+            }
+            if (peaks[i] > 0.0f) {
+                float y = bottom - peaks[i] * height;
+                peakLines[peakCount++] = x - barWidth * 0.5f;
+                peakLines[peakCount++] = y;
+                peakLines[peakCount++] = x + barWidth * 0.5f;
+                peakLines[peakCount++] = y;
+            }
+        }
+
+        if (barCount > 0) {
+            canvas.drawLines(barLines, 0, barCount, barPaint);
+        }
+        if (peakCount > 0) {
+            canvas.drawLines(peakLines, 0, peakCount, peakPaint);
+        }
+    }
+
+    private void drawOscilloscope(Canvas canvas, Rect dst) {
+        float mid = dst.exactCenterY();
+        float half = dst.height() * 0.5f;
+        float step = (float) dst.width() / (SCOPE_POINTS - 1);
+        scopePaint.setStrokeWidth(Math.max(1.0f, dst.height() / 16.0f));
+
+        // Decimate the capture to one point per skin pixel
+        int stride = Math.max(1, scopeLength / SCOPE_POINTS);
+        float prevX = dst.left;
+        float prevY = mid;
+        int n = 0;
+        for (int p = 0; p < SCOPE_POINTS; p++) {
+            float sample = scopeLength > 0 ? waveform[Math.min(scopeLength - 1, p * stride)] : 0.0f;
+            float x = dst.left + p * step;
+            float y = mid - Math.max(-1.0f, Math.min(1.0f, sample)) * half;
+            if (p > 0) {
+                scopeLines[n++] = prevX;
+                scopeLines[n++] = prevY;
+                scopeLines[n++] = x;
+                scopeLines[n++] = y;
+            }
+            prevX = x;
+            prevY = y;
+        }
+        canvas.drawLines(scopeLines, 0, n, scopePaint);
+    }
+
+    /**
+     * Map bars to logarithmically spaced bin ranges
+     */
+    private void updateBandEdges(int bins, int sampleRate) {
+        if (bins == edgeBins && sampleRate == edgeRate) return;
+
+        Fft.computeBandEdges(bins, sampleRate, MIN_FREQ, bandEdges);
+        edgeBins = bins;
+        edgeRate = sampleRate;
+    }
+
+    private void decayBar(int i, float level) {
+        bars[i] = Math.max(level, bars[i] - BAR_FALLOFF);
+
+        if (bars[i] >= peaks[i]) {
+            peaks[i] = bars[i];
+            peakHold[i] = PEAK_HOLD_FRAMES;
+        } else if (peakHold[i] > 0) {
+            peakHold[i]--;
+        } else {
+            peaks[i] = Math.max(0.0f, peaks[i] - PEAK_FALLOFF);
+        }
+    }
+
+    private static float toLevel(float magnitude) {
+        if (magnitude <= 0.0f) return 0.0f;
+        float db = 20.0f * (float) Math.log10(magnitude);
+        return Math.max(0.0f, Math.min(1.0f, (db - MIN_DB) / -MIN_DB));
+    }
+
+    private void updateBarShader(Rect dst) {
+        if (dst.top == shaderTop && dst.bottom == shaderBottom) return;
+        barPaint.setShader(new LinearGradient(0, dst.bottom, 0, dst.top,
+                new int[] {COLOR_BAR_LOW, COLOR_BAR_MID, COLOR_BAR_HIGH},
+                null, Shader.TileMode.CLAMP));
+        shaderTop = dst.top;
+        shaderBottom = dst.bottom;
+    }
+}
@@ -40,6 +40,7 @@ public class KeyboardHandler {
     public static final int ACTION_FOCUS_LEFT = 20;
     public static final int ACTION_FOCUS_RIGHT = 21;
     public static final int ACTION_ACTIVATE_FOCUSED = 22;
+    public static final int ACTION_CYCLE_VISUALIZER = 23;
 
     // Key binding maps
     private Map<Integer, Integer> keyBindings;
@@ -93,6 +94,7 @@ public class KeyboardHandler {
         // Skin
         keyBindings.put(KeyEvent.KEYCODE_L, ACTION_LOAD_SKIN);
         keyBindings.put(KeyEvent.KEYCODE_D, ACTION_DEFAULT_SKIN);
+        keyBindings.put(KeyEvent.KEYCODE_V, ACTION_CYCLE_VISUALIZER);
 
         // Help
         keyBindings.put(KeyEvent.KEYCODE_H, ACTION_SHOW_HELP);
@@ -282,6 +284,7 @@ public class KeyboardHandler {
             case ACTION_FOCUS_LEFT: return "Focus Left";
             case ACTION_FOCUS_RIGHT: return "Focus Right";
             case ACTION_ACTIVATE_FOCUSED: return "Activate";
+            case ACTION_CYCLE_VISUALIZER: return "Visualizer Mode";
             default: return "Unknown";
         }
     }
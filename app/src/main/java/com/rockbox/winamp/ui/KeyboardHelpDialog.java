@@ -56,6 +56,7 @@ public class KeyboardHelpDialog {
         helpText.append("=== SKIN ===\n");
         addBinding(helpText, bindings, KeyboardHandler.ACTION_LOAD_SKIN);
         addBinding(helpText, bindings, KeyboardHandler.ACTION_DEFAULT_SKIN);
+        addBinding(helpText, bindings, KeyboardHandler.ACTION_CYCLE_VISUALIZER);
         helpText.append("\n");
 
         // Navigation
@@ -54,7 +54,7 @@ public class PlaylistView extends View {
     private int touchStartY = 0;
     private int scrollStartOffset = 0;
 
-    public PlaylistView(Context context, Playlist playlist) {
+    public PlaylistView(Context context, final Playlist playlist) {
         super(context);
         this.playlist = playlist;
         this.selectedIndices = new HashSet<Integer>();
@@ -64,8 +64,8 @@ public class PlaylistView extends View {
 
         initPaints();
 
-        // Listen for playlist changes
-        playlist.addListener(new Playlist.PlaylistListener() {
+        // Listen for playlist changes; ranges only redraw the rows they touch
+        playlist.addListener(new Playlist.PlaylistRangeListener() {
             public void onPlaylistChanged() {
                 updateScrollLimits();
                 invalidate();
@@ -75,6 +75,44 @@ public class PlaylistView extends View {
                 scrollToCurrentTrack();
                 invalidate();
             }
+
+            public void onTracksInserted(int from, int count) {
+                shiftSelection(from, Integer.MAX_VALUE, count);
+                updateScrollLimits();
+                if (playlist.size() == count) {
+                    invalidate(); // Replaces the empty message
+                } else {
+                    invalidateRows(from, playlist.size(), true);
+                }
+            }
+
+            public void onTracksRemoved(int from, int count) {
+                for (int i = from; i < from + count; i++) {
+                    selectedIndices.remove(i);
+                }
+                shiftSelection(from + count, Integer.MAX_VALUE, -count);
+                updateScrollLimits();
+                if (playlist.isEmpty()) {
+                    invalidate();
+                } else {
+                    invalidateRows(from, playlist.size() + count, true);
+                }
+            }
+
+            public void onTrackMoved(int from, int to) {
+                if (!selectedIndices.isEmpty()) {
+                    Set<Integer> moved = new HashSet<Integer>();
+                    for (int index : selectedIndices) {
+                        moved.add(Playlist.movedIndex(index, from, to));
+                    }
+                    selectedIndices = moved;
+                }
+                invalidateRows(Math.min(from, to), Math.max(from, to) + 1, false);
+            }
+
+            public void onTracksUpdated(int from, int count) {
+                invalidateRows(from, from + count, false);
+            }
         });
     }
 
@@ -111,6 +149,40 @@ public class PlaylistView extends View {
         visibleLines = getHeight() / lineHeight;
         int totalLines = playlist.size();
         maxScroll = Math.max(0, (totalLines - visibleLines) * lineHeight);
+        if (scrollOffset > maxScroll) {
+            scrollOffset = maxScroll;
+            invalidate();
+        }
+    }
+
+    /**
+     * Redraw rows [from, to) if any are on screen, and the scrollbar if
+     * the track count changed
+     */
+    private void invalidateRows(int from, int to, boolean resized) {
+        int top = from * lineHeight - scrollOffset;
+        int bottom = to * lineHeight - scrollOffset;
+        if (bottom > 0 && top < getHeight()) {
+            invalidate(0, Math.max(0, top), getWidth(), Math.min(getHeight(), bottom));
+        }
+        if (resized) {
+            invalidate(getWidth() - 15, 0, getWidth(), getHeight());
+        }
+    }
+
+    /**
+     * Move selected indices in [from, to) by delta
+     */
+    private void shiftSelection(int from, int to, int delta) {
+        if (selectedIndices.isEmpty()) return;
+        Set<Integer> shifted = new HashSet<Integer>();
+        for (int index : selectedIndices) {
+            shifted.add(index >= from && index < to ? index + delta : index);
+        }
+        selectedIndices = shifted;
+        if (lastSelectedIndex >= from && lastSelectedIndex < to) {
+            lastSelectedIndex += delta;
+        }
     }
 
     @Override
@@ -146,21 +218,15 @@ public class PlaylistView extends View {
     }
 
     private void drawTracks(Canvas canvas) {
-        int y = -scrollOffset;
-        int currentIndex = playlist.getCurrentIndex();
-        List<Track> tracks = playlist.getTracks();
-
-        for (int i = 0; i < tracks.size(); i++) {
-            // Skip if not visible
-            if (y + lineHeight < 0) {
-                y += lineHeight;
-                continue;
-            }
-            if (y > getHeight()) {
-                break;
-            }
+        int currentIndex = playlist.getCurrentTrackIndex();
+
+        // Only the visible rows; reading them does not copy the playlist
+        int first = scrollOffset / lineHeight;
+        int last = Math.min(playlist.size(), (scrollOffset + getHeight()) / lineHeight + 1);
+        int y = first * lineHeight - scrollOffset;
 
-            Track track = tracks.get(i);
+        for (int i = first; i < last; i++) {
+            Track track = playlist.getTrack(i);
 
             // Draw selection/current highlight
             if (i == currentIndex) {
@@ -232,7 +298,7 @@ public class PlaylistView extends View {
     private void handleTrackClick(int index, MotionEvent event) {
         // Double-click to play
         if (event.getEventTime() - event.getDownTime() < 300) {
-            playlist.setCurrentIndex(index);
+            playlist.setCurrentTrackIndex(index);
             return;
         }
 
@@ -300,7 +366,7 @@ public class PlaylistView extends View {
      * Scroll to show current track
      */
     public void scrollToCurrentTrack() {
-        int currentIndex = playlist.getCurrentIndex();
+        int currentIndex = playlist.getCurrentTrackIndex();
         int trackY = currentIndex * lineHeight;
 
         // Scroll if current track is not visible
@@ -324,9 +390,12 @@ public class PlaylistView extends View {
         java.util.Collections.sort(sorted);
         java.util.Collections.reverse(sorted);
 
+        // One coalesced update instead of one per track
+        playlist.beginBatch();
         for (int index : sorted) {
             playlist.removeTrack(index);
         }
+        playlist.endBatch();
 
         selectedIndices.clear();
         updateScrollLimits();
@@ -342,7 +411,7 @@ public class PlaylistView extends View {
         if (selectedIndices.isEmpty()) return;
 
         int index = selectedIndices.iterator().next();
-        playlist.setCurrentIndex(index);
+        playlist.setCurrentTrackIndex(index);
         Log.d(TAG, "Playing track: " + index);
     }
 
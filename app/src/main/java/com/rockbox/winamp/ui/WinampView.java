@@ -13,10 +13,12 @@ import android.view.SurfaceView;
 import android.widget.Toast;
 
 import com.rockbox.winamp.audio.PlaybackController;
+import com.rockbox.winamp.audio.SessionManager;
 import com.rockbox.winamp.audio.Track;
 import com.rockbox.winamp.skin.SkinAssets;
 import com.rockbox.winamp.skin.SkinLoader;
 import com.rockbox.winamp.skin.SkinRenderer;
+import com.rockbox.winamp.skin.VisualizerRenderer;
 import com.rockbox.winamp.util.FilePicker;
 import com.rockbox.winamp.util.TrackBrowser;
 
@@ -40,6 +42,9 @@ public class WinampView extends SurfaceView implements SurfaceHolder.Callback {
     private KeyboardHandler keyboardHandler;
     private FocusManager focusManager;
 
+    // Set by the render thread once the first frame is on screen
+    private volatile boolean sessionRestoreStarted;
+
     public WinampView(Context context) {
         super(context);
         this.context = context;
@@ -77,6 +82,11 @@ public class WinampView extends SurfaceView implements SurfaceHolder.Callback {
         // Set initial volume
         playbackController.setVolume(50);
 
+        // Feed the visualizer area from the playback session
+        skinRenderer.setVisualizerFeed(playbackController.getVisualizerFeed());
+        playbackController.setVisualizerEnabled(
+            skinRenderer.getVisualizer().getMode() != VisualizerRenderer.MODE_OFF);
+
         // Initialize focus on first button
         focusManager.setFocus(FocusManager.ELEMENT_PLAY_BUTTON);
 
@@ -101,17 +111,31 @@ public class WinampView extends SurfaceView implements SurfaceHolder.Callback {
      * Load custom .wsz skin from file
      */
     private void loadSkin(final File wszFile) {
+        loadSkin(wszFile, true);
+    }
+
+    /**
+     * Load custom .wsz skin from file
+     * @param announce show toasts (off when restoring the session's skin)
+     */
+    private void loadSkin(final File wszFile, final boolean announce) {
         if (wszFile == null || !wszFile.exists()) {
-            Toast.makeText(context, "Skin file not found", Toast.LENGTH_SHORT).show();
+            if (announce) {
+                Toast.makeText(context, "Skin file not found", Toast.LENGTH_SHORT).show();
+            } else {
+                playbackController.getSessionManager().setSkinPath(null);
+            }
             return;
         }
 
         // Show loading message
-        post(new Runnable() {
-            public void run() {
-                Toast.makeText(context, "Loading skin...", Toast.LENGTH_SHORT).show();
-            }
-        });
+        if (announce) {
+            post(new Runnable() {
+                public void run() {
+                    Toast.makeText(context, "Loading skin...", Toast.LENGTH_SHORT).show();
+                }
+            });
+        }
 
         // Load skin in background to avoid blocking UI
         new Thread(new Runnable() {
@@ -122,10 +146,17 @@ public class WinampView extends SurfaceView implements SurfaceHolder.Callback {
                     public void run() {
                         if (assets != null && assets.isLoaded()) {
                             skinRenderer.setSkinAssets(assets);
-                            Toast.makeText(context, "Skin loaded: " + assets.getSkinName(), Toast.LENGTH_SHORT).show();
+                            playbackController.getSessionManager().setSkinPath(wszFile.getAbsolutePath());
+                            if (announce) {
+                                Toast.makeText(context, "Skin loaded: " + assets.getSkinName(), Toast.LENGTH_SHORT).show();
+                            }
                             Log.i(TAG, "Skin loaded: " + assets.getSkinName() + " (" + assets.getBitmapCount() + " bitmaps)");
                         } else {
-                            Toast.makeText(context, "Failed to load skin", Toast.LENGTH_SHORT).show();
+                            if (announce) {
+                                Toast.makeText(context, "Failed to load skin", Toast.LENGTH_SHORT).show();
+                            } else {
+                                playbackController.getSessionManager().setSkinPath(null);
+                            }
                             Log.e(TAG, "Failed to load skin from: " + wszFile);
                         }
                     }
@@ -134,6 +165,20 @@ public class WinampView extends SurfaceView implements SurfaceHolder.Callback {
         }).start();
     }
 
+    /**
+     * Bring back the last session (queue, volume, EQ, skin) in the
+     * background; started after the first frame so startup is not held up
+     */
+    private void restoreSession() {
+        playbackController.getSessionManager().restore(new SessionManager.RestoreCallback() {
+            public void onSessionRestored(String skinPath) {
+                if (skinPath != null) {
+                    loadSkin(new File(skinPath), false);
+                }
+            }
+        });
+    }
+
     /**
      * Show skin file picker dialog
      */
@@ -244,8 +289,14 @@ public class WinampView extends SurfaceView implements SurfaceHolder.Callback {
                 break;
             case KeyboardHandler.ACTION_DEFAULT_SKIN:
                 loadDefaultSkin();
+                playbackController.getSessionManager().setSkinPath(null);
                 Toast.makeText(context, "Default skin", Toast.LENGTH_SHORT).show();
                 break;
+            case KeyboardHandler.ACTION_CYCLE_VISUALIZER:
+                int mode = skinRenderer.getVisualizer().cycleMode();
+                playbackController.setVisualizerEnabled(mode != VisualizerRenderer.MODE_OFF);
+                Toast.makeText(context, "Visualizer: " + VisualizerRenderer.getModeName(mode), Toast.LENGTH_SHORT).show();
+                break;
             case KeyboardHandler.ACTION_SHOW_HELP:
                 KeyboardHelpDialog.show(context, keyboardHandler);
                 break;
@@ -422,14 +473,21 @@ public class WinampView extends SurfaceView implements SurfaceHolder.Callback {
         TrackBrowser.showQuickBrowser(context, new TrackBrowser.TrackBrowserCallback() {
             public void onTracksSelected(List<Track> tracks) {
                 playbackController.getPlaylist().addTracks(tracks);
-                Toast.makeText(context, "Added " + tracks.size() + " track(s)", Toast.LENGTH_SHORT).show();
 
-                // Auto-play if playlist was empty
+                // Auto-play if playlist was empty (first batch of a scan)
                 if (playbackController.getPlaylist().size() == tracks.size()) {
                     playbackController.play();
                 }
             }
 
+            public void onTracksUpdated(List<Track> tracks) {
+                playbackController.getPlaylist().updateTrackInfo(tracks);
+            }
+
+            public void onSelectionFinished(int trackCount, boolean cancelled) {
+                Toast.makeText(context, "Added " + trackCount + " track(s)", Toast.LENGTH_SHORT).show();
+            }
+
             public void onCancelled() {
                 // User cancelled
             }
@@ -487,6 +545,16 @@ public class WinampView extends SurfaceView implements SurfaceHolder.Callback {
                     }
                 }
 
+                // First frame is up: now load the saved session
+                if (!sessionRestoreStarted) {
+                    sessionRestoreStarted = true;
+                    post(new Runnable() {
+                        public void run() {
+                            restoreSession();
+                        }
+                    });
+                }
+
                 // Notify progress update
                 if (playbackController != null) {
                     playbackController.notifyProgress();
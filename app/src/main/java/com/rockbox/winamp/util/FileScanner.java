@@ -3,15 +3,30 @@ package com.rockbox.winamp.util;
 import android.content.Context;
 import android.media.MediaMetadataRetriever;
 import android.os.Environment;
+import android.os.Process;
 import android.util.Log;
 
+import com.rockbox.winamp.audio.DurationEstimator;
+import com.rockbox.winamp.audio.TagReader;
 import com.rockbox.winamp.audio.Track;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Scans device storage for audio files.
@@ -31,17 +46,118 @@ public class FileScanner {
         "Music", "music", "Audio", "audio", "Songs", "songs"
     };
 
+    private static final String INDEX_FILE = "library.index";
+
+    // Walkers mostly wait on directory metadata; tag readers on file reads
+    private static final int WALK_THREADS = 3;
+    private static final int TAG_THREADS = 2;
+
+    // Names with these extensions are taken to be plain files (no stat)
+    private static final String[] NON_AUDIO_EXTENSIONS = {
+        ".jpg", ".jpeg", ".png", ".gif", ".bmp", ".txt", ".nfo", ".cue",
+        ".m3u", ".m3u8", ".pls", ".log", ".pdf", ".sfv", ".md5", ".lrc", ".ini", ".db"
+    };
+
+    /**
+     * Receives scan results as they are discovered. Calls come from pool
+     * threads but never overlap.
+     */
+    public interface ScanCallback {
+        /** Tracks from one directory, in discovery order */
+        void onTracksFound(List<Track> tracks);
+
+        /** All tracks, in final (alphabetical, depth-first) order */
+        void onScanComplete(List<Track> tracks);
+    }
+
+    private static LibraryIndex sharedIndex;
+
     private Context context;
+    private final LibraryIndex index;
+    private final ThreadPoolExecutor walkPool;
+    private final ThreadPoolExecutor tagPool;
+
+    // For extractMetadata() callers (single thread)
+    private final TagReader tagReader = new TagReader();
+    private final TagReader.Tags tags = new TagReader.Tags();
+
+    // Per pool thread
+    private static class Readers {
+        final TagReader tagReader = new TagReader();
+        final TagReader.Tags tags = new TagReader.Tags();
+        final DurationEstimator durationEstimator = new DurationEstimator();
+    }
+
+    private final ThreadLocal<Readers> readers = new ThreadLocal<Readers>() {
+        @Override
+        protected Readers initialValue() {
+            return new Readers();
+        }
+    };
 
     public FileScanner(Context context) {
         this.context = context;
+        this.index = getSharedIndex(context);
+        this.walkPool = createPool("Walk", WALK_THREADS);
+        this.tagPool = createPool("Tags", TAG_THREADS);
+    }
+
+    /**
+     * One index per process, shared by every scanner and watcher
+     */
+    private static synchronized LibraryIndex getSharedIndex(Context context) {
+        if (sharedIndex == null) {
+            sharedIndex = new LibraryIndex(new File(context.getFilesDir(), INDEX_FILE));
+        }
+        return sharedIndex;
+    }
+
+    /**
+     * Get the library index (loaded on first scan)
+     */
+    public LibraryIndex getLibraryIndex() {
+        return index;
+    }
+
+    /**
+     * Drop a directory and everything below it from the index
+     */
+    public void forgetDirectory(File directory) {
+        index.prune(directory.getPath(), Collections.<String>emptySet());
+        index.saveIfDirty();
+    }
+
+    private static ThreadPoolExecutor createPool(final String name, int threads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 5, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private int count;
+
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, TAG + "-" + name + "-" + (++count));
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
     }
 
     /**
      * Scan default music directories for audio files
      */
     public List<Track> scanMusicLibrary() {
-        List<Track> tracks = new ArrayList<Track>();
+        return scanMusicLibrary(null);
+    }
+
+    /**
+     * Scan default music directories, streaming results to a callback
+     */
+    public List<Track> scanMusicLibrary(ScanCallback callback) {
+        List<File> roots = new ArrayList<File>();
+        List<Boolean> recursive = new ArrayList<Boolean>();
 
         // Scan external storage
         File externalStorage = Environment.getExternalStorageDirectory();
@@ -49,7 +165,8 @@ public class FileScanner {
             // Scan Music directory
             File musicDir = new File(externalStorage, "Music");
             if (musicDir.exists() && musicDir.isDirectory()) {
-                scanDirectory(musicDir, tracks, true);
+                roots.add(musicDir);
+                recursive.add(true);
             }
 
             // Scan Download directory
@@ -57,10 +174,12 @@ public class FileScanner {
                 Environment.DIRECTORY_DOWNLOADS
             );
             if (downloadDir != null && downloadDir.exists()) {
-                scanDirectory(downloadDir, tracks, false); // Non-recursive for downloads
+                roots.add(downloadDir);
+                recursive.add(false); // Non-recursive for downloads
             }
         }
 
+        List<Track> tracks = scan(roots, recursive, callback);
         Log.i(TAG, "Scan complete: " + tracks.size() + " tracks found");
         return tracks;
     }
@@ -72,50 +191,386 @@ public class FileScanner {
      * @param recursive Scan subdirectories
      */
     public List<Track> scanDirectory(File directory, boolean recursive) {
+        return scanDirectory(directory, recursive, null);
+    }
+
+    /**
+     * Scan specific directory, streaming results to a callback
+     */
+    public List<Track> scanDirectory(File directory, boolean recursive, ScanCallback callback) {
+        List<File> roots = new ArrayList<File>();
+        List<Boolean> flags = new ArrayList<Boolean>();
+        roots.add(directory);
+        flags.add(recursive);
+        return scan(roots, flags, callback);
+    }
+
+    /**
+     * Re-list one directory even if its mtime is unchanged (in-place file
+     * rewrites do not touch it); files with unchanged size and mtime still
+     * come from the index
+     */
+    public List<Track> rescanDirectory(File directory) {
+        List<File> roots = new ArrayList<File>();
+        List<Boolean> flags = new ArrayList<Boolean>();
+        roots.add(directory);
+        flags.add(false);
+        return scan(roots, flags, null, true, new ScanHandle(null));
+    }
+
+    /**
+     * Scan a directory in the background. Tracks, progress and the final
+     * list are delivered to the listener on the main thread; the returned
+     * handle can cancel the scan.
+     */
+    public ScanHandle scanDirectoryAsync(File directory, boolean recursive, ScanHandle.Listener listener) {
+        final List<File> roots = new ArrayList<File>();
+        final List<Boolean> flags = new ArrayList<Boolean>();
+        roots.add(directory);
+        flags.add(recursive);
+
+        final ScanHandle handle = new ScanHandle(listener);
+        // scan() blocks on the pools, so it must not run on one of them
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                handle.finish(scan(roots, flags, null, false, handle));
+            }
+        }, TAG + "-Scan");
+        thread.start();
+        return handle;
+    }
+
+    private List<Track> scan(List<File> roots, List<Boolean> recursive, ScanCallback callback) {
+        return scan(roots, recursive, callback, false, new ScanHandle(null));
+    }
+
+    /**
+     * Walk roots on the pools and block until done (or cancelled)
+     */
+    private List<Track> scan(List<File> roots, List<Boolean> recursive, ScanCallback callback,
+                             boolean forceList, ScanHandle handle) {
+        index.load();
+
+        Scan scan = new Scan(callback, forceList, handle);
+        for (int i = 0; i < roots.size(); i++) {
+            scan.submitDirectory(roots.get(i), recursive.get(i));
+        }
+        try {
+            scan.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Restore the alphabetical, depth-first order only now
         List<Track> tracks = new ArrayList<Track>();
-        scanDirectory(directory, tracks, recursive);
+        for (int i = 0; i < roots.size(); i++) {
+            String root = roots.get(i).getPath();
+            scan.collect(root, tracks);
+            if (recursive.get(i) && !handle.isCancelled()) {
+                // Forget directories that have disappeared (a cancelled walk
+                // has not seen them all)
+                index.prune(root, scan.visited);
+            }
+        }
+        index.saveIfDirty();
+
+        if (callback != null) {
+            callback.onScanComplete(tracks);
+        }
         return tracks;
     }
 
     /**
-     * Internal recursive scan method
+     * A directory as walked: its listing and the tracks built from it
+     */
+    private static class DirResult {
+        final LibraryIndex.DirEntry entry;
+        final List<Track> tracks;
+
+        DirResult(LibraryIndex.DirEntry entry, List<Track> tracks) {
+            this.entry = entry;
+            this.tracks = tracks;
+        }
+    }
+
+    /**
+     * State of one scan shared by walk and tag tasks. Finishes when the
+     * count of outstanding tasks drops to zero.
+     */
+    private class Scan {
+        final ScanCallback callback;
+        final boolean forceList;
+        final ScanHandle handle;
+        // Paths as walked (for pruning the index) and their real locations
+        final Set<String> visited = Collections.synchronizedSet(new HashSet<String>());
+        final Set<String> canonicalVisited = Collections.synchronizedSet(new HashSet<String>());
+        final Map<String, DirResult> results = new ConcurrentHashMap<String, DirResult>();
+        final AtomicInteger pending = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Scan(ScanCallback callback, boolean forceList, ScanHandle handle) {
+            this.callback = callback;
+            this.forceList = forceList;
+            this.handle = handle;
+        }
+
+        /**
+         * Claim a directory for this scan. A directory reached again
+         * through a symlink resolves to a canonical path already claimed,
+         * which stops symlink loops and duplicate listings.
+         */
+        boolean enter(File directory, String path) {
+            String canonical;
+            try {
+                canonical = directory.getCanonicalPath();
+            } catch (IOException e) {
+                canonical = path;
+            }
+            if (!canonicalVisited.add(canonical)) return false;
+            visited.add(path);
+            return true;
+        }
+
+        void submitDirectory(final File directory, final boolean recursive) {
+            pending.incrementAndGet();
+            walkPool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        walk(Scan.this, directory, recursive);
+                    } catch (RuntimeException e) {
+                        Log.w(TAG, "Error scanning " + directory, e);
+                    } finally {
+                        finishTask();
+                    }
+                }
+            });
+        }
+
+        void submitTags(final Runnable task) {
+            pending.incrementAndGet();
+            tagPool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        finishTask();
+                    }
+                }
+            });
+        }
+
+        void finishTask() {
+            if (pending.decrementAndGet() == 0) {
+                done.countDown();
+            }
+        }
+
+        /**
+         * Hand over a directory whose tags are all known
+         */
+        void publish(String path, LibraryIndex.DirEntry entry) {
+            publishListing(path, entry);
+            complete(path, entry);
+        }
+
+        /**
+         * Hand a listed directory to the scan handle straight away; files
+         * whose tags are still being read show their names until
+         * updated. Stays the directory's result if the scan is cancelled.
+         */
+        void publishListing(String path, LibraryIndex.DirEntry entry) {
+            List<Track> tracks = createTracks(path, entry);
+            results.put(path, new DirResult(entry, tracks));
+            handle.addTracks(tracks);
+        }
+
+        /**
+         * All tags of a directory read: final result, and the callback
+         */
+        void complete(String path, LibraryIndex.DirEntry entry) {
+            List<Track> tracks = createTracks(path, entry);
+            results.put(path, new DirResult(entry, tracks));
+            if (callback != null && !tracks.isEmpty()) {
+                synchronized (this) {
+                    callback.onTracksFound(tracks);
+                }
+            }
+        }
+
+        private List<Track> createTracks(String path, LibraryIndex.DirEntry entry) {
+            List<Track> tracks = new ArrayList<Track>(entry.files.size());
+            for (LibraryIndex.FileEntry e : entry.files) {
+                tracks.add(LibraryIndex.createTrack(path, e));
+            }
+            return tracks;
+        }
+
+        /**
+         * Append a walked directory's tracks, interleaving subdirectories
+         * in name order as a sequential depth-first walk would
+         */
+        void collect(String path, List<Track> out) {
+            DirResult result = results.get(path);
+            if (result == null) return;
+
+            List<LibraryIndex.FileEntry> files = result.entry.files;
+            List<String> subdirs = result.entry.subdirs;
+            int f = 0;
+            int d = 0;
+            while (f < files.size() || d < subdirs.size()) {
+                boolean takeFile = d >= subdirs.size() || (f < files.size()
+                        && files.get(f).name.compareToIgnoreCase(subdirs.get(d)) < 0);
+                if (takeFile) {
+                    out.add(result.tracks.get(f++));
+                } else {
+                    collect(path + "/" + subdirs.get(d++), out);
+                }
+            }
+        }
+    }
+
+    /**
+     * Walk one directory. Unchanged directories (same mtime as the index)
+     * are replayed without listing them; changed ones are listed by name,
+     * classified by extension first, and only new or modified files are
+     * handed to the tag pool.
      */
-    private void scanDirectory(File directory, List<Track> tracks, boolean recursive) {
-        if (directory == null || !directory.exists() || !directory.isDirectory()) {
+    private void walk(final Scan scan, File directory, boolean recursive) {
+        final ScanHandle handle = scan.handle;
+        if (handle.isCancelled()) return;
+
+        final String path = directory.getPath();
+        long mtime = directory.lastModified();
+        if (mtime == 0 || !scan.enter(directory, path)) return; // Missing, or already walked
+        handle.dirsVisited.incrementAndGet();
+
+        LibraryIndex.DirEntry cached = index.getDirectory(path);
+        if (cached != null && cached.mtime == mtime && !scan.forceList) {
+            handle.filesFound.addAndGet(cached.files.size());
+            scan.publish(path, cached);
+            handle.progressChanged();
+            if (recursive) {
+                for (String subdir : cached.subdirs) {
+                    scan.submitDirectory(new File(directory, subdir), true);
+                }
+            }
             return;
         }
 
-        File[] files = directory.listFiles();
-        if (files == null) return;
+        String[] names = directory.list();
+        if (names == null) return;
+        Arrays.sort(names, String.CASE_INSENSITIVE_ORDER);
 
-        // Sort files alphabetically
-        Arrays.sort(files, new Comparator<File>() {
-            public int compare(File f1, File f2) {
-                return f1.getName().compareToIgnoreCase(f2.getName());
+        Map<String, LibraryIndex.FileEntry> previous = new HashMap<String, LibraryIndex.FileEntry>();
+        if (cached != null) {
+            for (LibraryIndex.FileEntry e : cached.files) {
+                previous.put(e.name, e);
             }
-        });
+        }
+
+        final LibraryIndex.DirEntry entry = new LibraryIndex.DirEntry();
+        entry.mtime = mtime;
+        final List<LibraryIndex.FileEntry> toRead = new ArrayList<LibraryIndex.FileEntry>();
+
+        for (String name : names) {
+            if (hasAudioExtension(name)) {
+                File file = new File(directory, name);
+                long size = file.length();
+                long fileMtime = file.lastModified();
+                LibraryIndex.FileEntry e = previous.get(name);
+                if (e == null || e.size != size || e.mtime != fileMtime) {
+                    if (!file.isFile()) continue;
+                    e = new LibraryIndex.FileEntry();
+                    e.name = name;
+                    e.size = size;
+                    e.mtime = fileMtime;
+                    toRead.add(e);
+                }
+                entry.files.add(e);
+            } else if (!hasExtension(name, NON_AUDIO_EXTENSIONS)
+                    && new File(directory, name).isDirectory()) {
+                entry.subdirs.add(name);
+            }
+        }
 
-        for (File file : files) {
-            if (file.isDirectory() && recursive) {
-                // Recursively scan subdirectory
-                scanDirectory(file, tracks, true);
-            } else if (file.isFile() && isAudioFile(file)) {
-                // Create track and extract metadata
-                Track track = new Track(file.getAbsolutePath());
-                extractMetadata(track);
-                tracks.add(track);
+        handle.filesFound.addAndGet(entry.files.size());
+        if (toRead.isEmpty()) {
+            index.putDirectory(path, entry);
+            scan.publish(path, entry);
+        } else {
+            // Show the files now and send each one's tags as it is read.
+            // Last tag task to finish completes the directory; after a
+            // cancel the rest are skipped and the half-read entry is not
+            // indexed (the listing stays the scan's result).
+            scan.publishListing(path, entry);
+            handle.tagsQueued.addAndGet(toRead.size());
+            final AtomicInteger remaining = new AtomicInteger(toRead.size());
+            for (final LibraryIndex.FileEntry e : toRead) {
+                scan.submitTags(new Runnable() {
+                    public void run() {
+                        if (!handle.isCancelled()) {
+                            readEntry(path + "/" + e.name, e);
+                            handle.tagsRead.incrementAndGet();
+                            handle.updateTracks(Collections.singletonList(
+                                    LibraryIndex.createTrack(path, e)));
+                        }
+                        if (remaining.decrementAndGet() == 0 && !handle.isCancelled()) {
+                            index.putDirectory(path, entry);
+                            scan.complete(path, entry);
+                        }
+                    }
+                });
+            }
+        }
+        handle.progressChanged();
+
+        if (recursive) {
+            for (String subdir : entry.subdirs) {
+                scan.submitDirectory(new File(directory, subdir), true);
             }
         }
     }
 
+    /**
+     * Fill in tags and duration for an index entry (pool threads)
+     */
+    private void readEntry(String path, LibraryIndex.FileEntry e) {
+        Readers r = readers.get();
+        if (r.tagReader.read(path, r.tags)) {
+            e.title = r.tags.title;
+            e.artist = index.internTag(r.tags.artist);
+            e.album = index.internTag(r.tags.album);
+            // Scans run in the background, so a few KB more per file is fine here
+            e.durationMs = r.tags.durationMs > 0 ? r.tags.durationMs
+                    : r.durationEstimator.estimate(path, r.tags);
+            return;
+        }
+
+        Track track = new Track(path, e.size);
+        extractWithRetriever(track);
+        e.title = track.getTitle();
+        e.artist = track.getArtist().equals("Unknown Artist") ? null : index.internTag(track.getArtist());
+        e.album = track.getAlbum().equals("Unknown Album") ? null : index.internTag(track.getAlbum());
+        e.durationMs = track.getDurationMs();
+    }
+
     /**
      * Check if file is a supported audio format
      */
     public static boolean isAudioFile(File file) {
         if (file == null || !file.isFile()) return false;
 
-        String name = file.getName().toLowerCase();
-        for (String ext : AUDIO_EXTENSIONS) {
+        return hasAudioExtension(file.getName());
+    }
+
+    private static boolean hasAudioExtension(String fileName) {
+        return hasExtension(fileName, AUDIO_EXTENSIONS);
+    }
+
+    private static boolean hasExtension(String fileName, String[] extensions) {
+        String name = fileName.toLowerCase();
+        for (String ext : extensions) {
             if (name.endsWith(ext)) {
                 return true;
             }
@@ -124,11 +579,33 @@ public class FileScanner {
     }
 
     /**
-     * Extract metadata from audio file
+     * Extract metadata from audio file.
+     * Tags are parsed directly; MediaMetadataRetriever is only used for
+     * containers TagReader does not understand. Durations the tags do not
+     * carry (most MP3 and Ogg files) are left for DurationResolver.
      */
     public void extractMetadata(Track track) {
         if (track == null) return;
 
+        if (!tagReader.read(track.getFilePath(), tags)) {
+            extractWithRetriever(track);
+            return;
+        }
+
+        if (tags.title != null) track.setTitle(tags.title);
+        if (tags.artist != null) track.setArtist(tags.artist);
+        if (tags.album != null) track.setAlbum(tags.album);
+
+        if (tags.durationMs > 0) {
+            track.setDurationMs(tags.durationMs);
+        }
+    }
+
+    /**
+     * Extract metadata using the platform retriever (slow: spins up a
+     * native extractor per file)
+     */
+    private static void extractWithRetriever(Track track) {
         MediaMetadataRetriever retriever = null;
         try {
             retriever = new MediaMetadataRetriever();
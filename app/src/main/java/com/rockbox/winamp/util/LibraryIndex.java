@@ -0,0 +1,314 @@
+package com.rockbox.winamp.util;
+
+import android.util.Log;
+
+import com.rockbox.winamp.audio.StringPool;
+import com.rockbox.winamp.audio.Track;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent index of scanned directories and their audio files.
+ * Each directory is stored with its modification time, subdirectory names
+ * and per-file size, mtime and tags, so a rescan only has to stat
+ * directories and re-read files in directories that changed.
+ */
+public class LibraryIndex {
+
+    private static final String TAG = "LibraryIndex";
+    private static final int MAGIC = 0x4C494231; // "LIB1"
+    private static final int MAX_STRING = 4096;
+
+    /**
+     * An audio file, by name within its directory
+     */
+    public static class FileEntry {
+        public String name;
+        public long size;
+        public long mtime;
+        public String title;
+        public String artist;
+        public String album;
+        public int durationMs;
+    }
+
+    /**
+     * A directory listing as of its modification time
+     */
+    public static class DirEntry {
+        public long mtime;
+        public List<String> subdirs = new ArrayList<String>();
+        public List<FileEntry> files = new ArrayList<FileEntry>();
+    }
+
+    private final File file;
+    private final Map<String, DirEntry> dirs;
+    private final StringPool tags;
+    // Held for the whole first load, so later callers wait for its result
+    private final Object loadLock = new Object();
+    // Scans share one index; saves take turns on the temp file
+    private final Object saveLock = new Object();
+    private boolean loaded;
+    private boolean dirty;
+
+    public LibraryIndex(File file) {
+        this.file = file;
+        this.dirs = new HashMap<String, DirEntry>();
+        this.tags = new StringPool();
+    }
+
+    /**
+     * Get the shared instance of an artist or album name, so entries for
+     * the same artist or album hold one copy
+     */
+    public String internTag(String s) {
+        return tags.intern(s);
+    }
+
+    public synchronized DirEntry getDirectory(String path) {
+        return dirs.get(path);
+    }
+
+    public synchronized void putDirectory(String path, DirEntry entry) {
+        dirs.put(path, entry);
+        dirty = true;
+    }
+
+    /**
+     * Drop directories under root that were not seen by the last walk
+     * (deleted or moved away)
+     */
+    public synchronized void prune(String root, Set<String> visited) {
+        String prefix = root.endsWith("/") ? root : root + "/";
+        Iterator<String> it = dirs.keySet().iterator();
+        while (it.hasNext()) {
+            String path = it.next();
+            if ((path.equals(root) || path.startsWith(prefix)) && !visited.contains(path)) {
+                it.remove();
+                dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Get tracks for one indexed directory (empty if not indexed)
+     */
+    public synchronized List<Track> getTracks(String path) {
+        DirEntry dir = dirs.get(path);
+        List<Track> tracks = new ArrayList<Track>();
+        if (dir != null) {
+            for (FileEntry f : dir.files) {
+                tracks.add(createTrack(path, f));
+            }
+        }
+        return tracks;
+    }
+
+    /**
+     * Get indexed directories at or below root
+     */
+    public synchronized List<String> getDirectoriesUnder(String root) {
+        String prefix = root.endsWith("/") ? root : root + "/";
+        List<String> result = new ArrayList<String>();
+        for (String path : dirs.keySet()) {
+            if (path.equals(root) || path.startsWith(prefix)) {
+                result.add(path);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Build a track from an entry without touching the file
+     */
+    public static Track createTrack(String directory, FileEntry e) {
+        Track track = new Track(directory, e.name, e.size);
+        if (e.title != null) track.setTitle(e.title);
+        if (e.artist != null) track.setArtist(e.artist);
+        if (e.album != null) track.setAlbum(e.album);
+        track.setDurationMs(e.durationMs);
+        return track;
+    }
+
+    /**
+     * Get number of indexed files
+     */
+    public synchronized int getFileCount() {
+        int count = 0;
+        for (DirEntry dir : dirs.values()) {
+            count += dir.files.size();
+        }
+        return count;
+    }
+
+    /**
+     * Load from disk once. Later calls return at once, or wait if the
+     * first load is still reading.
+     */
+    public void load() {
+        synchronized (loadLock) {
+            if (loaded) return;
+            Map<String, DirEntry> read = read();
+            synchronized (this) {
+                for (Map.Entry<String, DirEntry> entry : read.entrySet()) {
+                    if (!dirs.containsKey(entry.getKey())) {
+                        dirs.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+            loaded = true;
+            Log.d(TAG, "Loaded " + read.size() + " directories");
+        }
+    }
+
+    /**
+     * Read the index file (empty if it is missing or unreadable)
+     */
+    private Map<String, DirEntry> read() {
+        Map<String, DirEntry> read = new HashMap<String, DirEntry>();
+        if (!file.exists()) return read;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            if (in.readInt() != MAGIC) {
+                Log.w(TAG, "Ignoring index with unknown format");
+                return read;
+            }
+            int dirCount = in.readInt();
+            for (int i = 0; i < dirCount; i++) {
+                String path = in.readUTF();
+                DirEntry dir = new DirEntry();
+                dir.mtime = in.readLong();
+
+                int subdirCount = in.readInt();
+                for (int j = 0; j < subdirCount; j++) {
+                    dir.subdirs.add(in.readUTF());
+                }
+
+                int fileCount = in.readInt();
+                for (int j = 0; j < fileCount; j++) {
+                    FileEntry f = new FileEntry();
+                    f.name = in.readUTF();
+                    f.size = in.readLong();
+                    f.mtime = in.readLong();
+                    f.title = readString(in);
+                    f.artist = tags.intern(readString(in));
+                    f.album = tags.intern(readString(in));
+                    f.durationMs = in.readInt();
+                    dir.files.add(f);
+                }
+                read.put(path, dir);
+            }
+        } catch (IOException e) {
+            // A torn index only costs a full rescan
+            Log.e(TAG, "Error loading index", e);
+            read.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+        return read;
+    }
+
+    /**
+     * Write to disk if anything changed (temp file + rename, one save at
+     * a time)
+     */
+    public void saveIfDirty() {
+        synchronized (saveLock) {
+            writeIfDirty();
+        }
+    }
+
+    private void writeIfDirty() {
+        Map<String, DirEntry> snapshot;
+        synchronized (this) {
+            if (!dirty) return;
+            snapshot = new HashMap<String, DirEntry>(dirs);
+            dirty = false;
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            FileOutputStream fos = new FileOutputStream(tmp);
+            out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, DirEntry> entry : snapshot.entrySet()) {
+                DirEntry dir = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(dir.mtime);
+
+                out.writeInt(dir.subdirs.size());
+                for (String name : dir.subdirs) {
+                    out.writeUTF(name);
+                }
+
+                out.writeInt(dir.files.size());
+                for (FileEntry f : dir.files) {
+                    out.writeUTF(f.name);
+                    out.writeLong(f.size);
+                    out.writeLong(f.mtime);
+                    writeString(out, f.title);
+                    writeString(out, f.artist);
+                    writeString(out, f.album);
+                    out.writeInt(f.durationMs);
+                }
+            }
+            // On disk before the rename, so a crash cannot leave an empty index
+            out.flush();
+            fos.getFD().sync();
+            out.close();
+            out = null;
+
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Cannot replace " + file);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving index", e);
+            synchronized (this) {
+                dirty = true;
+            }
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            // writeUTF is limited to 64 KB; no tag we display needs more
+            out.writeUTF(s.length() > MAX_STRING ? s.substring(0, MAX_STRING) : s);
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package com.rockbox.winamp.util;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.rockbox.winamp.audio.Playlist;
+import com.rockbox.winamp.audio.Track;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keeps scanned directories fresh with FileObservers instead of periodic
+ * rescans. Events are debounced per directory; each dirty directory is
+ * then rescanned through the library index (so only changed files are
+ * read) and the difference is applied to attached playlists and reported
+ * to listeners.
+ */
+public class LibraryWatcher {
+
+    private static final String TAG = "LibraryWatcher";
+
+    // Quiet period before a burst of events (e.g. a copy) is processed
+    private static final int DEBOUNCE_MS = 1500;
+
+    // Stay well inside the kernel's inotify watch limit
+    private static final int MAX_WATCHES = 2000;
+
+    private static final int EVENTS = FileObserver.CREATE | FileObserver.DELETE
+            | FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE
+            | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    /**
+     * Notified on the main thread after a batch of changes was applied
+     */
+    public interface Listener {
+        void onLibraryChanged(List<Track> added, List<Track> changed, Set<String> removed);
+    }
+
+    private final FileScanner scanner;
+    private final Handler handler;
+    private final ExecutorService worker;
+    private final List<Playlist> playlists;
+    private final List<Listener> listeners;
+
+    // Main thread only
+    private final Map<String, FileObserver> observers;
+
+    // Directories with pending events (guarded by itself)
+    private final Set<String> dirty;
+
+    public LibraryWatcher(FileScanner scanner) {
+        this.scanner = scanner;
+        this.handler = new Handler(Looper.getMainLooper());
+        this.playlists = new ArrayList<Playlist>();
+        this.listeners = new ArrayList<Listener>();
+        this.observers = new HashMap<String, FileObserver>();
+        this.dirty = new HashSet<String>();
+        this.worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG);
+            }
+        });
+    }
+
+    public void addListener(Listener listener) {
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Keep a playlist in step with the disk (removed files are dropped,
+     * re-tagged files refreshed)
+     */
+    public void attachPlaylist(Playlist playlist) {
+        if (!playlists.contains(playlist)) {
+            playlists.add(playlist);
+        }
+    }
+
+    public void detachPlaylist(Playlist playlist) {
+        playlists.remove(playlist);
+    }
+
+    /**
+     * Watch a scanned root and every indexed directory below it
+     */
+    public void watch(File root) {
+        for (String path : scanner.getLibraryIndex().getDirectoriesUnder(root.getPath())) {
+            startWatching(path);
+        }
+    }
+
+    /**
+     * Watch the directories holding these tracks
+     */
+    public void watchTracks(List<Track> tracks) {
+        String last = null;
+        for (Track track : tracks) {
+            String path = track.getFilePath();
+            int slash = path.lastIndexOf('/');
+            if (slash <= 0) continue;
+            // Playlists are usually grouped by folder; skip repeats cheaply
+            if (last != null && last.length() == slash && path.startsWith(last)) continue;
+            last = path.substring(0, slash);
+            if (startWatching(last)) {
+                indexInBackground(last);
+            }
+        }
+    }
+
+    /**
+     * Make sure a directory is in the index, so later events can be
+     * diffed against what was there before
+     */
+    private void indexInBackground(final String path) {
+        worker.execute(new Runnable() {
+            public void run() {
+                LibraryIndex index = scanner.getLibraryIndex();
+                index.load();
+                if (index.getDirectory(path) == null) {
+                    scanner.scanDirectory(new File(path), false);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return true if a new observer was registered
+     */
+    private boolean startWatching(String path) {
+        if (observers.containsKey(path)) return false;
+        if (observers.size() >= MAX_WATCHES) {
+            Log.w(TAG, "Watch limit reached, not watching " + path);
+            return false;
+        }
+        FileObserver observer = new DirectoryObserver(path);
+        observer.startWatching();
+        observers.put(path, observer);
+        return true;
+    }
+
+    private void stopWatching(String path) {
+        FileObserver observer = observers.remove(path);
+        if (observer != null) {
+            observer.stopWatching();
+        }
+    }
+
+    /**
+     * Stop all observers and drop pending work
+     */
+    public void release() {
+        for (FileObserver observer : observers.values()) {
+            observer.stopWatching();
+        }
+        observers.clear();
+        handler.removeCallbacks(flush);
+        synchronized (dirty) {
+            dirty.clear();
+        }
+        worker.shutdownNow();
+    }
+
+    // Events arrive on the FileObserver thread
+    private class DirectoryObserver extends FileObserver {
+        private final String path;
+
+        DirectoryObserver(String path) {
+            super(path, EVENTS);
+            this.path = path;
+        }
+
+        @Override
+        public void onEvent(int event, String name) {
+            synchronized (dirty) {
+                dirty.add(path);
+            }
+            // Restart the quiet period
+            handler.removeCallbacks(flush);
+            handler.postDelayed(flush, DEBOUNCE_MS);
+        }
+    }
+
+    private final Runnable flush = new Runnable() {
+        public void run() {
+            final Set<String> batch;
+            synchronized (dirty) {
+                if (dirty.isEmpty()) return;
+                batch = new HashSet<String>(dirty);
+                dirty.clear();
+            }
+            worker.execute(new Runnable() {
+                public void run() {
+                    process(batch);
+                }
+            });
+        }
+    };
+
+    /**
+     * Rescan dirty directories and diff against the index (worker thread)
+     */
+    private void process(Set<String> directories) {
+        LibraryIndex index = scanner.getLibraryIndex();
+        index.load();
+
+        final List<Track> added = new ArrayList<Track>();
+        final List<Track> changed = new ArrayList<Track>();
+        final Set<String> removed = new HashSet<String>();
+        final List<String> newDirs = new ArrayList<String>();
+        final List<String> goneDirs = new ArrayList<String>();
+
+        for (String path : directories) {
+            File directory = new File(path);
+            if (!directory.isDirectory()) {
+                forget(index, directory, removed, goneDirs);
+                continue;
+            }
+
+            LibraryIndex.DirEntry before = index.getDirectory(path);
+            Map<String, Track> old = new HashMap<String, Track>();
+            for (Track t : index.getTracks(path)) {
+                old.put(t.getFilePath(), t);
+            }
+
+            for (Track t : scanner.rescanDirectory(directory)) {
+                Track previous = old.remove(t.getFilePath());
+                if (previous == null) {
+                    added.add(t);
+                } else if (!sameInfo(previous, t)) {
+                    changed.add(t);
+                }
+            }
+            removed.addAll(old.keySet());
+
+            // Subdirectories created or removed since the last scan
+            LibraryIndex.DirEntry after = index.getDirectory(path);
+            List<String> beforeSubdirs = before != null ? before.subdirs : new ArrayList<String>();
+            List<String> afterSubdirs = after != null ? after.subdirs : new ArrayList<String>();
+            for (String name : afterSubdirs) {
+                if (!beforeSubdirs.contains(name)) {
+                    File sub = new File(directory, name);
+                    added.addAll(scanner.scanDirectory(sub, true));
+                    newDirs.addAll(index.getDirectoriesUnder(sub.getPath()));
+                }
+            }
+            for (String name : beforeSubdirs) {
+                if (!afterSubdirs.contains(name)) {
+                    forget(index, new File(directory, name), removed, goneDirs);
+                }
+            }
+        }
+
+        if (added.isEmpty() && changed.isEmpty() && removed.isEmpty()
+                && newDirs.isEmpty() && goneDirs.isEmpty()) {
+            return;
+        }
+        Log.d(TAG, "Library changed: " + added.size() + " added, " + changed.size()
+                + " changed, " + removed.size() + " removed");
+
+        handler.post(new Runnable() {
+            public void run() {
+                for (String path : goneDirs) {
+                    stopWatching(path);
+                }
+                for (String path : newDirs) {
+                    startWatching(path);
+                }
+                for (Playlist playlist : playlists) {
+                    playlist.removeTracksByPath(removed);
+                    playlist.updateTrackInfo(changed);
+                }
+                for (Listener listener : listeners) {
+                    listener.onLibraryChanged(added, changed, removed);
+                }
+            }
+        });
+    }
+
+    private void forget(LibraryIndex index, File directory, Set<String> removed, List<String> goneDirs) {
+        for (String path : index.getDirectoriesUnder(directory.getPath())) {
+            for (Track t : index.getTracks(path)) {
+                removed.add(t.getFilePath());
+            }
+            goneDirs.add(path);
+        }
+        scanner.forgetDirectory(directory);
+    }
+
+    private static boolean sameInfo(Track a, Track b) {
+        return a.getFileSize() == b.getFileSize()
+                && a.getDurationMs() == b.getDurationMs()
+                && a.getTitle().equals(b.getTitle())
+                && a.getArtist().equals(b.getArtist())
+                && a.getAlbum().equals(b.getAlbum());
+    }
+}
@@ -0,0 +1,168 @@
+package com.rockbox.winamp.util;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.rockbox.winamp.audio.Track;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handle on a running FileScanner scan: progress counters, cancellation
+ * and delivery of results to a listener on the main thread. Batches found
+ * by the pools are coalesced so the UI gets at most one update per
+ * interval; the first batch is delivered straight away. Tracks found
+ * before a cancel are still delivered.
+ */
+public class ScanHandle {
+
+    private static final int PUBLISH_INTERVAL_MS = 100;
+
+    /**
+     * Scan events, all on the main thread
+     */
+    public interface Listener {
+        /** Newly found tracks (discovery order); tags may follow */
+        void onTracksFound(List<Track> tracks);
+
+        /** Tags read for tracks delivered earlier (equal by file path) */
+        void onTracksUpdated(List<Track> tracks);
+
+        void onProgress(int dirsVisited, int filesFound, int tagsRead);
+
+        /** All tracks found, in final order; partial if cancelled */
+        void onScanFinished(List<Track> tracks, boolean cancelled);
+    }
+
+    private final Listener listener;
+    private final Handler handler;
+
+    final AtomicInteger dirsVisited = new AtomicInteger();
+    final AtomicInteger filesFound = new AtomicInteger();
+    final AtomicInteger tagsRead = new AtomicInteger();
+    final AtomicInteger tagsQueued = new AtomicInteger();
+
+    private volatile boolean cancelled;
+    private volatile boolean finished;
+
+    // Found but not yet delivered (guarded by itself)
+    private final List<Track> pending = new ArrayList<Track>();
+    private final List<Track> pendingUpdates = new ArrayList<Track>();
+    private boolean publishScheduled;
+    private boolean delivered;
+
+    ScanHandle(Listener listener) {
+        this.listener = listener;
+        this.handler = listener != null ? new Handler(Looper.getMainLooper()) : null;
+    }
+
+    /**
+     * Stop the scan; in-flight directories are abandoned. Tracks already
+     * found are still delivered, then onScanFinished.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public int getDirsVisited() {
+        return dirsVisited.get();
+    }
+
+    public int getFilesFound() {
+        return filesFound.get();
+    }
+
+    public int getTagsRead() {
+        return tagsRead.get();
+    }
+
+    /**
+     * Get number of files whose tags had to be read (not in the index)
+     */
+    public int getTagsQueued() {
+        return tagsQueued.get();
+    }
+
+    // Called from pool threads
+    void addTracks(List<Track> tracks) {
+        if (listener == null || cancelled) return;
+        synchronized (pending) {
+            pending.addAll(tracks);
+            schedulePublish();
+        }
+    }
+
+    // Called from pool threads
+    void updateTracks(List<Track> tracks) {
+        if (listener == null || cancelled) return;
+        synchronized (pending) {
+            pendingUpdates.addAll(tracks);
+            schedulePublish();
+        }
+    }
+
+    // Called from pool threads
+    void progressChanged() {
+        if (listener == null) return;
+        synchronized (pending) {
+            schedulePublish();
+        }
+    }
+
+    private void schedulePublish() {
+        if (publishScheduled) return;
+        publishScheduled = true;
+        handler.postDelayed(publish, delivered ? PUBLISH_INTERVAL_MS : 0);
+    }
+
+    /**
+     * Deliver the final result (scanning thread)
+     */
+    void finish(final List<Track> tracks) {
+        if (listener == null) {
+            finished = true;
+            return;
+        }
+        handler.post(new Runnable() {
+            public void run() {
+                handler.removeCallbacks(publish);
+                publish.run();
+                finished = true;
+                listener.onScanFinished(tracks, cancelled);
+            }
+        });
+    }
+
+    private final Runnable publish = new Runnable() {
+        public void run() {
+            List<Track> batch;
+            List<Track> updates;
+            synchronized (pending) {
+                batch = new ArrayList<Track>(pending);
+                updates = new ArrayList<Track>(pendingUpdates);
+                pending.clear();
+                pendingUpdates.clear();
+                publishScheduled = false;
+                delivered = true;
+            }
+
+            if (!batch.isEmpty()) {
+                listener.onTracksFound(batch);
+            }
+            if (!updates.isEmpty()) {
+                listener.onTracksUpdated(updates);
+            }
+            listener.onProgress(dirsVisited.get(), filesFound.get(), tagsRead.get());
+        }
+    };
+}
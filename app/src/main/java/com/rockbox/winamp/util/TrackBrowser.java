@@ -1,6 +1,7 @@
 package com.rockbox.winamp.util;
 
 import android.app.AlertDialog;
+import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.os.Environment;
@@ -22,7 +23,15 @@ public class TrackBrowser {
     private static final String TAG = "TrackBrowser";
 
     public interface TrackBrowserCallback {
+        /** Tracks to add; called once per batch while a folder is scanned */
         void onTracksSelected(List<Track> tracks);
+
+        /** Tags read for tracks selected earlier (equal by file path) */
+        void onTracksUpdated(List<Track> tracks);
+
+        /** Selection done (after the last onTracksSelected) */
+        void onSelectionFinished(int trackCount, boolean cancelled);
+
         void onCancelled();
     }
 
@@ -148,7 +157,7 @@ public class TrackBrowser {
             public void onClick(DialogInterface dialog, int which) {
                 // Check if "Add All" was selected
                 if (which == allFiles.size() && hasAudioFiles) {
-                    addAllTracks(finalAudioFiles, callback);
+                    addAllTracks(directory, finalAudioFiles.size(), callback);
                     return;
                 }
 
@@ -170,6 +179,7 @@ public class TrackBrowser {
 
                     if (callback != null) {
                         callback.onTracksSelected(tracks);
+                        callback.onSelectionFinished(1, false);
                     }
                 }
             }
@@ -187,20 +197,57 @@ public class TrackBrowser {
     }
 
     /**
-     * Add all audio files in list
+     * Add all audio files in directory. Files are handed over as soon as
+     * the folder is listed and their tags follow in batches as they are
+     * read, so the playlist fills in straight away.
      */
-    private void addAllTracks(List<File> audioFiles, TrackBrowserCallback callback) {
-        List<Track> tracks = new ArrayList<Track>();
+    private void addAllTracks(File directory, final int fileCount, final TrackBrowserCallback callback) {
+        final ProgressDialog progress = new ProgressDialog(context);
+        progress.setTitle("Adding " + directory.getName());
+        progress.setMessage("Reading tags...");
+        progress.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        progress.setMax(fileCount);
+        progress.setCancelable(false);
+
+        final ScanHandle[] handle = new ScanHandle[1];
+        handle[0] = fileScanner.scanDirectoryAsync(directory, false, new ScanHandle.Listener() {
+            private int added;
+
+            public void onTracksFound(List<Track> tracks) {
+                added += tracks.size();
+                if (callback != null) {
+                    callback.onTracksSelected(tracks);
+                }
+            }
 
-        for (File file : audioFiles) {
-            Track track = new Track(file.getAbsolutePath());
-            fileScanner.extractMetadata(track);
-            tracks.add(track);
-        }
+            public void onTracksUpdated(List<Track> tracks) {
+                if (callback != null) {
+                    callback.onTracksUpdated(tracks);
+                }
+            }
 
-        if (callback != null) {
-            callback.onTracksSelected(tracks);
-        }
+            public void onProgress(int dirsVisited, int filesFound, int tagsRead) {
+                // Files whose info is final: from the index, or tags read
+                progress.setMax(Math.max(fileCount, filesFound));
+                progress.setProgress(filesFound - handle[0].getTagsQueued() + tagsRead);
+            }
+
+            public void onScanFinished(List<Track> tracks, boolean cancelled) {
+                progress.dismiss();
+                Log.d(TAG, "Added " + added + " of " + fileCount + (cancelled ? " (cancelled)" : ""));
+                if (callback != null) {
+                    callback.onSelectionFinished(added, cancelled);
+                }
+            }
+        });
+
+        progress.setButton(DialogInterface.BUTTON_NEGATIVE, "Stop", new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int which) {
+                // Tracks already added stay in the playlist
+                handle[0].cancel();
+            }
+        });
+        progress.show();
     }
 
     /**
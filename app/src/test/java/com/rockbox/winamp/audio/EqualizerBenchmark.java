@@ -0,0 +1,88 @@
+package com.rockbox.winamp.audio;
+
+import java.util.Random;
+
+/**
+ * Micro-benchmark for the software equalizer kernels.
+ * Reports processing cost in nanoseconds per sample.
+ */
+public class EqualizerBenchmark {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int CHANNELS = 2;
+    private static final int BLOCK = 4096;
+    private static final int WARMUP_BLOCKS = 500;
+    private static final int MEASURE_BLOCKS = 2000;
+
+    /**
+     * Run the benchmark and return a one-line report
+     */
+    public static String run() {
+        short[] pcm = new short[BLOCK];
+        float[] pcmFloat = new float[BLOCK];
+        Random random = new Random(42);
+        for (int i = 0; i < BLOCK; i++) {
+            pcm[i] = (short) (random.nextGaussian() * 4000);
+            pcmFloat[i] = pcm[i] / 32768.0f;
+        }
+
+        BiquadEqualizer eq = new BiquadEqualizer();
+        eq.configure(SAMPLE_RATE, CHANNELS);
+        eq.applyPreset(Equalizer.PRESET_ROCK);
+        eq.setEnabled(true);
+
+        FixedPointEqualizer fixed = new FixedPointEqualizer();
+        fixed.configure(SAMPLE_RATE, CHANNELS);
+        fixed.applyPreset(Equalizer.PRESET_ROCK);
+        fixed.setEnabled(true);
+
+        GainStage gain = new GainStage();
+        gain.setGain(0.5f);
+        double gainFloatNs = measureShort(gain, pcm);
+        gain.setFixedPoint(true);
+        double gainFixedNs = measureShort(gain, pcm);
+
+        double shortNs = measureShort(eq, pcm);
+        double floatNs = measureFloat(eq, pcmFloat);
+        double fixedNs = measureShort(fixed, pcm);
+
+        return String.format("Equalizer (10 bands, %d Hz stereo): "
+                + "float/16-bit %.2f ns/sample, float/float %.2f ns/sample, "
+                + "Q28 fixed %.2f ns/sample; gain float %.2f, Q15 %.2f ns/sample",
+                SAMPLE_RATE, shortNs, floatNs, fixedNs, gainFloatNs, gainFixedNs);
+    }
+
+    static double measureShort(PcmProcessor processor, short[] pcm) {
+        short[] work = new short[pcm.length];
+        for (int i = 0; i < WARMUP_BLOCKS; i++) {
+            System.arraycopy(pcm, 0, work, 0, pcm.length);
+            processor.process(work, 0, work.length);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURE_BLOCKS; i++) {
+            System.arraycopy(pcm, 0, work, 0, pcm.length);
+            processor.process(work, 0, work.length);
+        }
+        long elapsed = System.nanoTime() - start;
+        return (double) elapsed / ((long) MEASURE_BLOCKS * pcm.length);
+    }
+
+    static double measureFloat(BiquadEqualizer eq, float[] pcm) {
+        float[] work = new float[pcm.length];
+        for (int i = 0; i < WARMUP_BLOCKS; i++) {
+            System.arraycopy(pcm, 0, work, 0, pcm.length);
+            eq.process(work, 0, work.length);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURE_BLOCKS; i++) {
+            System.arraycopy(pcm, 0, work, 0, pcm.length);
+            eq.process(work, 0, work.length);
+        }
+        long elapsed = System.nanoTime() - start;
+        return (double) elapsed / ((long) MEASURE_BLOCKS * pcm.length);
+    }
+
+    public static void main(String[] args) {
+        System.out.println(run());
+    }
+}
@@ -0,0 +1,61 @@
+package com.rockbox.winamp.audio;
+
+import java.util.Random;
+
+/**
+ * Micro-benchmark for the real FFT and the visualizer bar pipeline.
+ * Reports microseconds per windowed transform for each supported size.
+ */
+public class FftBenchmark {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int BARS = 19;
+    private static final int WARMUP_RUNS = 2000;
+    private static final int MEASURE_RUNS = 5000;
+
+    /**
+     * Run the benchmark and return a one-line report
+     */
+    public static String run() {
+        // One untimed pass so every size runs compiled code
+        for (int size = Fft.MIN_SIZE; size <= Fft.MAX_SIZE; size <<= 1) {
+            measure(size);
+        }
+
+        StringBuilder sb = new StringBuilder("FFT (Hann, magnitudes + 19 bars):");
+        for (int size = Fft.MIN_SIZE; size <= Fft.MAX_SIZE; size <<= 1) {
+            sb.append(String.format(" %d: %.2f us", size, measure(size)));
+            sb.append(size < Fft.MAX_SIZE ? "," : "");
+        }
+        return sb.toString();
+    }
+
+    static double measure(int size) {
+        Fft fft = new Fft(size, Fft.WINDOW_HANN);
+        float[] input = new float[size];
+        Random random = new Random(42);
+        for (int i = 0; i < size; i++) {
+            input[i] = (float) (random.nextGaussian() * 0.2);
+        }
+        float[] magnitudes = new float[fft.getBinCount()];
+        int[] edges = new int[BARS + 1];
+        float[] bars = new float[BARS];
+        Fft.computeBandEdges(fft.getBinCount(), SAMPLE_RATE, 40.0f, edges);
+
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            fft.magnitudes(input, 0, magnitudes);
+            Fft.binToBands(magnitudes, edges, bars);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURE_RUNS; i++) {
+            fft.magnitudes(input, 0, magnitudes);
+            Fft.binToBands(magnitudes, edges, bars);
+        }
+        long elapsed = System.nanoTime() - start;
+        return elapsed / 1000.0 / MEASURE_RUNS;
+    }
+
+    public static void main(String[] args) {
+        System.out.println(run());
+    }
+}
@@ -0,0 +1,183 @@
+package com.rockbox.winamp.audio;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Micro-benchmark for bulk playlist building. Adds N synthetic tracks in
+ * scan-sized batches and reports time per track, next to the old
+ * list-scanning dedupe for comparison; per-track cost should stay flat
+ * as N grows. Also times importing a large #EXTINF playlist file and
+ * saving/restoring a large queue through SessionFile.
+ * Playlist logs through android.util.Log, so run it with a Log stub
+ * ahead of android.jar on the classpath.
+ */
+public class PlaylistBenchmark {
+
+    private static final int[] SIZES = { 5000, 10000, 25000, 50000 };
+    private static final int BATCH_SIZE = 100;
+
+    // Quadratic baseline gets slow quickly; stop measuring it here
+    private static final int MAX_BASELINE_SIZE = 25000;
+
+    private static final int IMPORT_SIZE = 20000;
+    private static final int SESSION_SIZE = 50000;
+
+    /**
+     * Run the benchmark and return a three-line report
+     */
+    public static String run() {
+        // Untimed pass so both paths run compiled code
+        measurePlaylist(createTracks(SIZES[0]));
+        measureBaseline(createTracks(SIZES[0]));
+
+        StringBuilder sb = new StringBuilder("Playlist add (ns/track, indexed vs list scan):");
+        for (int i = 0; i < SIZES.length; i++) {
+            List<Track> tracks = createTracks(SIZES[i]);
+            sb.append(String.format(" %d: %.0f", SIZES[i], measurePlaylist(tracks)));
+            if (SIZES[i] <= MAX_BASELINE_SIZE) {
+                sb.append(String.format(" vs %.0f", measureBaseline(tracks)));
+            }
+            sb.append(i < SIZES.length - 1 ? "," : "");
+        }
+
+        sb.append('\n');
+        try {
+            measureImport(IMPORT_SIZE);
+            sb.append(String.format("M3U import, %d entries: %.1f ms", IMPORT_SIZE, measureImport(IMPORT_SIZE)));
+        } catch (IOException e) {
+            sb.append("M3U import failed: ").append(e.getMessage());
+        }
+
+        sb.append('\n');
+        try {
+            measureSession(SESSION_SIZE, sb);
+        } catch (IOException e) {
+            sb.append("Session failed: ").append(e.getMessage());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Save a shuffled queue, then load and restore it; appends timings
+     */
+    static void measureSession(int count, StringBuilder sb) throws IOException {
+        File file = File.createTempFile("bench", ".session");
+        try {
+            Playlist playlist = new Playlist();
+            playlist.addTracks(createTracks(count));
+            playlist.setShuffle(true);
+            SessionFile sessionFile = new SessionFile(file);
+
+            // Untimed round so both directions run compiled code
+            sessionFile.write(SessionFile.capture(playlist, 0));
+            sessionFile.read();
+
+            long start = System.nanoTime();
+            if (!sessionFile.write(SessionFile.capture(playlist, 0))) {
+                throw new IOException("Write failed");
+            }
+            long written = System.nanoTime();
+            SessionFile.Session session = sessionFile.read();
+            Playlist restored = new Playlist();
+            restored.restore(session.tracks, session.order, session.currentIndex, session.repeatMode);
+            long loaded = System.nanoTime();
+            if (restored.size() != count) {
+                throw new IOException("Restored " + restored.size() + " of " + count);
+            }
+
+            sb.append(String.format("Session, %d tracks: save %.1f ms, load + restore %.1f ms, %.1f bytes/track",
+                    count, (written - start) / 1e6, (loaded - written) / 1e6, (double) file.length() / count));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Write an #EXTINF playlist, then parse it and add it to a playlist
+     * (what loadFromM3U() does before its background check)
+     * @return milliseconds for parse + add
+     */
+    static double measureImport(int count) throws IOException {
+        File file = File.createTempFile("bench", ".m3u8");
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+            writer.write("#EXTM3U\n");
+            for (Track track : createTracks(count)) {
+                writer.write("#EXTINF:215,Artist - " + track.getTitle() + "\n");
+                writer.write(track.getFilePath() + "\n");
+            }
+            writer.close();
+            writer = null;
+
+            long start = System.nanoTime();
+            Playlist playlist = new Playlist();
+            playlist.addTracks(PlaylistImporter.parse(file));
+            long elapsed = System.nanoTime() - start;
+            if (playlist.size() != count) {
+                throw new IOException("Imported " + playlist.size() + " of " + count);
+            }
+            return elapsed / 1e6;
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+            file.delete();
+        }
+    }
+
+    static List<Track> createTracks(int count) {
+        List<Track> tracks = new ArrayList<Track>(count);
+        for (int i = 0; i < count; i++) {
+            tracks.add(new Track("/sdcard/Music/Artist " + (i / 200) + "/Album " + (i / 12)
+                    + "/" + (i % 12 + 1) + " Track " + i + ".mp3", 4000000));
+        }
+        return tracks;
+    }
+
+    /**
+     * Add in batches (as a streaming scan does), every track twice
+     * @return nanoseconds per added track
+     */
+    static double measurePlaylist(List<Track> tracks) {
+        Playlist playlist = new Playlist();
+        long start = System.nanoTime();
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < tracks.size(); i += BATCH_SIZE) {
+                playlist.addTracks(tracks.subList(i, Math.min(tracks.size(), i + BATCH_SIZE)));
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (playlist.size() != tracks.size()) {
+            throw new IllegalStateException("Dedupe failed: " + playlist.size());
+        }
+        return (double) elapsed / tracks.size();
+    }
+
+    /**
+     * The old dedupe: ArrayList.contains() per added track
+     */
+    static double measureBaseline(List<Track> tracks) {
+        List<Track> list = new ArrayList<Track>();
+        long start = System.nanoTime();
+        for (int pass = 0; pass < 2; pass++) {
+            for (Track track : tracks) {
+                if (!list.contains(track)) {
+                    list.add(track);
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        return (double) elapsed / tracks.size();
+    }
+
+    public static void main(String[] args) {
+        System.out.println(run());
+    }
+}
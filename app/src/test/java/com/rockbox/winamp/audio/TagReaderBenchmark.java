@@ -0,0 +1,233 @@
+package com.rockbox.winamp.audio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scan throughput (files/sec) of TagReader, over a directory or over
+ * generated files when none is given. MediaMetadataRetriever only exists
+ * on a device, so the comparison against it is not measured here.
+ */
+public class TagReaderBenchmark {
+
+    private static final int SYNTHETIC_FILES = 300;
+    private static final int PASSES = 5;
+
+    /**
+     * Run over the given files and return a one-line report
+     */
+    public static String run(List<String> paths) {
+        return String.format("%d files: TagReader %.0f files/s", paths.size(),
+                measureTagReader(paths));
+    }
+
+    static double measureTagReader(List<String> paths) {
+        TagReader reader = new TagReader();
+        TagReader.Tags tags = new TagReader.Tags();
+
+        // Warm up (and the page cache with it)
+        for (String path : paths) {
+            reader.read(path, tags);
+        }
+
+        long start = System.nanoTime();
+        for (int pass = 0; pass < PASSES; pass++) {
+            for (String path : paths) {
+                reader.read(path, tags);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        return paths.size() * PASSES / (elapsed / 1e9);
+    }
+
+    /**
+     * Collect audio files under a directory
+     */
+    static void collect(File dir, List<String> out) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (file.isDirectory()) {
+                collect(file, out);
+            } else {
+                String name = file.getName().toLowerCase();
+                if (name.endsWith(".mp3") || name.endsWith(".flac") || name.endsWith(".ogg")
+                        || name.endsWith(".m4a") || name.endsWith(".wav")) {
+                    out.add(file.getPath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a mix of tagged MP3/FLAC/WAV files (MP3s carry 64 KB of cover
+     * art, which the reader should skip rather than read)
+     */
+    static List<String> createSyntheticFiles(File dir) throws IOException {
+        List<String> paths = new ArrayList<String>();
+        byte[] audio = new byte[32 * 1024];
+        for (int i = 0; i < SYNTHETIC_FILES; i++) {
+            ByteArrayOutputStream file = new ByteArrayOutputStream();
+            String name;
+            switch (i % 3) {
+                case 0:
+                    name = "track" + i + ".mp3";
+                    writeId3(file, "Title " + i, "Artist", "Album", 64 * 1024);
+                    audio[0] = (byte) 0xFF;
+                    audio[1] = (byte) 0xFB;
+                    file.write(audio, 0, audio.length);
+                    break;
+                case 1:
+                    name = "track" + i + ".flac";
+                    writeFlac(file, "Title " + i, "Artist", "Album");
+                    file.write(audio, 0, audio.length);
+                    break;
+                default:
+                    name = "track" + i + ".wav";
+                    writeWav(file, "Title " + i, "Artist", "Album", audio.length);
+                    file.write(audio, 0, audio.length);
+                    break;
+            }
+            File out = new File(dir, name);
+            FileOutputStream fos = new FileOutputStream(out);
+            try {
+                file.writeTo(fos);
+            } finally {
+                fos.close();
+            }
+            paths.add(out.getPath());
+        }
+        return paths;
+    }
+
+    private static void writeId3(ByteArrayOutputStream out, String title, String artist,
+            String album, int pictureSize) throws IOException {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        writeId3Frame(frames, "TIT2", text(title));
+        writeId3Frame(frames, "TPE1", text(artist));
+        writeId3Frame(frames, "TALB", text(album));
+        writeId3Frame(frames, "APIC", new byte[pictureSize]);
+        int size = frames.size();
+        out.write(new byte[] { 'I', 'D', '3', 3, 0, 0,
+                (byte) ((size >> 21) & 0x7F), (byte) ((size >> 14) & 0x7F),
+                (byte) ((size >> 7) & 0x7F), (byte) (size & 0x7F) });
+        frames.writeTo(out);
+    }
+
+    private static byte[] text(String s) throws IOException {
+        byte[] b = s.getBytes("ISO-8859-1");
+        byte[] data = new byte[b.length + 1];
+        System.arraycopy(b, 0, data, 1, b.length);
+        return data;
+    }
+
+    private static void writeId3Frame(ByteArrayOutputStream out, String id, byte[] data)
+            throws IOException {
+        out.write(id.getBytes("ISO-8859-1"));
+        writeInt(out, data.length);
+        out.write(0);
+        out.write(0);
+        out.write(data);
+    }
+
+    private static void writeFlac(ByteArrayOutputStream out, String title, String artist,
+            String album) throws IOException {
+        out.write(new byte[] { 'f', 'L', 'a', 'C' });
+        // STREAMINFO: 44.1 kHz stereo 16-bit, 3 minutes
+        long samples = 44100L * 180;
+        byte[] info = new byte[34];
+        info[10] = (byte) (44100 >> 12);
+        info[11] = (byte) (44100 >> 4);
+        info[12] = (byte) (((44100 & 0x0F) << 4) | (1 << 1));
+        info[13] = (byte) ((15 << 4) | ((samples >> 32) & 0x0F));
+        info[14] = (byte) (samples >> 24);
+        info[15] = (byte) (samples >> 16);
+        info[16] = (byte) (samples >> 8);
+        info[17] = (byte) samples;
+        out.write(0);
+        writeInt24(out, info.length);
+        out.write(info);
+
+        ByteArrayOutputStream comments = new ByteArrayOutputStream();
+        writeIntLe(comments, 0);
+        String[] entries = { "TITLE=" + title, "ARTIST=" + artist, "ALBUM=" + album,
+                "REPLAYGAIN_TRACK_GAIN=-6.50 dB", "REPLAYGAIN_TRACK_PEAK=0.98" };
+        writeIntLe(comments, entries.length);
+        for (String entry : entries) {
+            byte[] b = entry.getBytes("UTF-8");
+            writeIntLe(comments, b.length);
+            comments.write(b);
+        }
+        out.write(0x84); // last block, VORBIS_COMMENT
+        writeInt24(out, comments.size());
+        comments.writeTo(out);
+    }
+
+    private static void writeWav(ByteArrayOutputStream out, String title, String artist,
+            String album, int dataSize) throws IOException {
+        ByteArrayOutputStream info = new ByteArrayOutputStream();
+        info.write("INFO".getBytes("ISO-8859-1"));
+        writeInfoChunk(info, "INAM", title);
+        writeInfoChunk(info, "IART", artist);
+        writeInfoChunk(info, "IPRD", album);
+
+        out.write("RIFF".getBytes("ISO-8859-1"));
+        writeIntLe(out, 4 + 24 + 8 + info.size() + 8 + dataSize);
+        out.write("WAVEfmt ".getBytes("ISO-8859-1"));
+        writeIntLe(out, 16);
+        out.write(new byte[] { 1, 0, 2, 0 });
+        writeIntLe(out, 44100);
+        writeIntLe(out, 44100 * 4);
+        out.write(new byte[] { 4, 0, 16, 0 });
+        out.write("LIST".getBytes("ISO-8859-1"));
+        writeIntLe(out, info.size());
+        info.writeTo(out);
+        out.write("data".getBytes("ISO-8859-1"));
+        writeIntLe(out, dataSize);
+    }
+
+    private static void writeInfoChunk(ByteArrayOutputStream out, String id, String value)
+            throws IOException {
+        byte[] b = (value + "\0").getBytes("UTF-8");
+        out.write(id.getBytes("ISO-8859-1"));
+        writeIntLe(out, b.length);
+        out.write(b);
+        if ((b.length & 1) != 0) out.write(0);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int v) {
+        out.write(v >> 24);
+        out.write(v >> 16);
+        out.write(v >> 8);
+        out.write(v);
+    }
+
+    private static void writeInt24(ByteArrayOutputStream out, int v) {
+        out.write(v >> 16);
+        out.write(v >> 8);
+        out.write(v);
+    }
+
+    private static void writeIntLe(ByteArrayOutputStream out, int v) {
+        out.write(v);
+        out.write(v >> 8);
+        out.write(v >> 16);
+        out.write(v >> 24);
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<String> paths = new ArrayList<String>();
+        if (args.length > 0) {
+            collect(new File(args[0]), paths);
+        } else {
+            File dir = new File(System.getProperty("java.io.tmpdir"), "tagreader-bench");
+            dir.mkdirs();
+            paths = createSyntheticFiles(dir);
+        }
+        System.out.println(run(paths));
+    }
+}
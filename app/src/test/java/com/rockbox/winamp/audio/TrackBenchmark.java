@@ -0,0 +1,144 @@
+package com.rockbox.winamp.audio;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Heap cost per track for a large library. Builds N tracks the way the
+ * library index does (fresh path and tag strings per file, as decoded
+ * from disk) and reports retained bytes per track for the current Track
+ * next to a copy of the old layout (full path, unshared tag strings).
+ * Numbers depend on the VM's object layout; compare them on one VM.
+ */
+public class TrackBenchmark {
+
+    private static final int LIBRARY_SIZE = 100000;
+
+    /**
+     * The old layout: one full path String and unshared tag Strings
+     */
+    static class OldTrack {
+        String filePath;
+        String title;
+        String artist;
+        String album;
+        int durationMs;
+        long fileSize;
+
+        OldTrack(String filePath, long fileSize) {
+            this.filePath = filePath;
+            this.fileSize = fileSize;
+            int slash = filePath.lastIndexOf('/');
+            int dot = filePath.lastIndexOf('.');
+            this.title = dot > slash + 1 ? filePath.substring(slash + 1, dot)
+                    : filePath.substring(slash + 1);
+        }
+    }
+
+    /**
+     * Run the benchmark and return a two-line report
+     */
+    public static String run() {
+        // Untimed pass so class loading and pools do not count
+        createTracks(1000, true);
+        createOldTracks(1000, true);
+
+        StringBuilder sb = new StringBuilder();
+        for (int pass = 0; pass < 2; pass++) {
+            boolean tagged = pass == 0;
+            double before = measureOld(LIBRARY_SIZE, tagged);
+            double after = measureNew(LIBRARY_SIZE, tagged);
+            sb.append(String.format("%d %s tracks: %.0f -> %.0f bytes/track (%.0f%% less)",
+                    LIBRARY_SIZE, tagged ? "tagged" : "untagged", before, after,
+                    100 * (1 - after / before)));
+            if (pass == 0) sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    static double measureOld(int count, boolean tagged) {
+        long base = usedMemory();
+        List<OldTrack> tracks = createOldTracks(count, tagged);
+        long used = usedMemory() - base;
+        if (tracks.size() != count) throw new IllegalStateException();
+        return (double) used / count;
+    }
+
+    static double measureNew(int count, boolean tagged) {
+        long base = usedMemory();
+        List<Track> tracks = createTracks(count, tagged);
+        long used = usedMemory() - base;
+        if (tracks.size() != count) throw new IllegalStateException();
+        return (double) used / count;
+    }
+
+    static List<OldTrack> createOldTracks(int count, boolean tagged) {
+        List<OldTrack> tracks = new ArrayList<OldTrack>(count);
+        for (int i = 0; i < count; i++) {
+            OldTrack track = new OldTrack(directory(i) + "/" + name(i), 4000000);
+            if (tagged) {
+                track.title = title(i);
+                track.artist = artist(i);
+                track.album = album(i);
+            }
+            track.durationMs = 215000;
+            tracks.add(track);
+        }
+        return tracks;
+    }
+
+    static List<Track> createTracks(int count, boolean tagged) {
+        List<Track> tracks = new ArrayList<Track>(count);
+        for (int i = 0; i < count; i++) {
+            // As LibraryIndex.createTrack(): directory and name apart
+            Track track = new Track(directory(i), name(i), 4000000);
+            if (tagged) {
+                track.setTitle(title(i));
+                track.setArtist(artist(i));
+                track.setAlbum(album(i));
+            }
+            track.setDurationMs(215000);
+            tracks.add(track);
+        }
+        return tracks;
+    }
+
+    // New String instances each call, like values read from disk
+    private static String directory(int i) {
+        return new StringBuilder("/sdcard/Music/Artist ").append(i / 120)
+                .append("/Album ").append(i / 12).toString();
+    }
+
+    private static String name(int i) {
+        return new StringBuilder().append(i % 12 + 1).append(" Track ").append(i).append(".mp3").toString();
+    }
+
+    private static String title(int i) {
+        return new StringBuilder("Song Title ").append(i).toString();
+    }
+
+    private static String artist(int i) {
+        return new StringBuilder("Artist ").append(i / 120).toString();
+    }
+
+    private static String album(int i) {
+        return new StringBuilder("Album ").append(i / 12).toString();
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public static void main(String[] args) {
+        System.out.println(run());
+    }
+}